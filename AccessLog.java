@@ -0,0 +1,177 @@
+package lab11;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes one line per request, and the server's error messages, from a thread of its own.
+ * The connection threads only put an entry in a bounded queue, they never wait for the console
+ * or a file. The writer takes whatever is queued, formats it and writes it in one go.
+ * When the queue is full the entry is dropped and counted instead of slowing the server down.
+ * Settings: server.accessLog (stdout, off, or the path of a file to append to)
+ * and server.accessLogQueue (entries that can wait).
+ *
+ * @Author Thorben Dhaenens
+ */
+public class AccessLog implements Runnable {
+
+    private final static int BATCH = 512;
+    private final static DateTimeFormatter clfDateFormat =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static class Entry {
+        final long time;
+        final InetAddress remote;
+        final String requestLine;
+        final String status;
+        final long nanos;
+        // set for messages, which are written as they are
+        final String message;
+
+        Entry(long time, InetAddress remote, String requestLine, String status, long nanos, String message) {
+            this.time = time;
+            this.remote = remote;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.nanos = nanos;
+            this.message = message;
+        }
+    }
+
+    private final PrintStream out;
+    private final boolean requests;
+    private final BlockingQueue<Entry> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param out where the lines go
+     * @param requests false to only write messages
+     * @param capacity entries that can wait for the writer
+     */
+    public AccessLog(PrintStream out, boolean requests, int capacity) {
+        this.out = out;
+        this.requests = requests;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        thread = new Thread(this, "access-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static AccessLog fromSystemProperties() {
+        String target = System.getProperty("server.accessLog", "stdout");
+        int capacity = Integer.getInteger("server.accessLogQueue", 8192);
+        if (!target.equals("stdout") && !target.equals("off")) {
+            try {
+                return new AccessLog(new PrintStream(new FileOutputStream(target, true), false), true, capacity);
+            } catch (IOException e) {
+                System.out.println("Cannot open the access log " + target + ", logging to the console: " + e);
+            }
+        }
+        return new AccessLog(System.out, !target.equals("off"), capacity);
+    }
+
+    /**
+     * @param remote the client
+     * @param requestLine for example "GET /text/index.html HTTP/1.1", or null when it could not be read
+     * @param response what was sent
+     * @param nanos how long the request took
+     */
+    public void request(InetAddress remote, String requestLine, HttpResponse response, long nanos) {
+        if (requests) {
+            offer(new Entry(System.currentTimeMillis(), remote, requestLine, response.status(), nanos, null));
+        }
+    }
+
+    /**
+     * Logs an error or a notice, without waiting for it to be written.
+     * @param message
+     */
+    public void message(String message) {
+        offer(new Entry(System.currentTimeMillis(), null, null, null, 0, message));
+    }
+
+    private void offer(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return the number of entries that were dropped because the queue was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of entries waiting to be written
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    public void run() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        StringBuilder lines = new StringBuilder(BATCH * 96);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                // close() wakes us up, whatever is queued is still written
+            }
+            queue.drainTo(batch, BATCH - batch.size());
+            for (Entry entry : batch) {
+                format(lines, entry);
+            }
+            out.print(lines);
+            out.flush();
+            lines.setLength(0);
+            batch.clear();
+        }
+    }
+
+    private static void format(StringBuilder line, Entry entry) {
+        if (entry.message != null) {
+            line.append(entry.message).append('\n');
+            return;
+        }
+        // the Common Log Format, with the time taken in microseconds where the size would be
+        line.append(entry.remote != null ? entry.remote.getHostAddress() : "-")
+                .append(" - - [").append(clfDateFormat.format(Instant.ofEpochMilli(entry.time))).append("] \"")
+                .append(entry.requestLine != null ? entry.requestLine : "-").append("\" ")
+                .append(entry.status, 0, Math.min(3, entry.status.length())).append(' ')
+                .append(entry.nanos / 1000).append('\n');
+    }
+
+    /**
+     * Writes what is still queued and stops the writer.
+     * @param timeoutMillis how long to wait for the queue to be written
+     */
+    public void close(long timeoutMillis) {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package lab11;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides in the accept loop whether a new connection may come in, so one client cannot use up
+ * the threads and file descriptors of everyone else.
+ * - a global limit on open connections; above it the connection gets a 503
+ * - a limit on open connections per remote address, and a token bucket per address that every
+ *   new connection takes a token from, and every request after the first on a connection;
+ *   a client over either limit gets a 429
+ * The buckets live in a concurrent map with a maximum size. When it is full, buckets of addresses
+ * without open connections are dropped, the longest unused first; a dropped bucket starts full
+ * again, which only ever favours the client.
+ * Settings: server.maxConnections, server.maxConnectionsPerAddress, server.rateLimit (tokens per
+ * second per address, by default 0 for no limit, since clients behind one proxy share an address),
+ * server.rateBurst (size of a bucket) and server.rateLimitAddresses (addresses kept in the map).
+ *
+ * @Author Thorben Dhaenens
+ */
+public class AdmissionControl {
+
+    public final static int ADMITTED = 0;
+    public final static int BUSY = 503;
+    public final static int TOO_MANY_REQUESTS = 429;
+
+    private static class Client {
+        final long burst;
+        double tokens;
+        long lastRefill;
+        long lastSeen;
+        int open;
+        boolean evicted;
+
+        Client(long burst, long now) {
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefill = now;
+            this.lastSeen = now;
+        }
+    }
+
+    private final Semaphore connections;
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final double tokensPerNano;
+    private final long burst;
+    private final int maxAddresses;
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private final ReentrantLock evicting = new ReentrantLock();
+    private final LongAdder refusedBusy = new LongAdder();
+    private final LongAdder refusedRate = new LongAdder();
+    // System.nanoTime, a clock that tests move by hand
+    private final LongSupplier clock;
+
+    /**
+     * @param maxConnections open connections for all clients together
+     * @param maxPerAddress open connections for one remote address
+     * @param rate tokens added per second to the bucket of an address, 0 for no rate limit
+     * @param burst tokens a bucket holds
+     * @param maxAddresses addresses that have a bucket at the same time
+     */
+    public AdmissionControl(int maxConnections, int maxPerAddress, double rate, long burst, int maxAddresses) {
+        this(maxConnections, maxPerAddress, rate, burst, maxAddresses, System::nanoTime);
+    }
+
+    /**
+     * @param clock the time in nanoseconds, like System.nanoTime
+     */
+    AdmissionControl(int maxConnections, int maxPerAddress, double rate, long burst, int maxAddresses,
+                     LongSupplier clock) {
+        this.clock = clock;
+        this.connections = new Semaphore(maxConnections);
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.tokensPerNano = rate / 1e9;
+        this.burst = burst;
+        this.maxAddresses = maxAddresses;
+    }
+
+    public static AdmissionControl fromSystemProperties() {
+        return new AdmissionControl(Integer.getInteger("server.maxConnections", 1024),
+                Integer.getInteger("server.maxConnectionsPerAddress", 64),
+                Double.parseDouble(System.getProperty("server.rateLimit", "0")),
+                Long.getLong("server.rateBurst", 400),
+                Integer.getInteger("server.rateLimitAddresses", 10_000));
+    }
+
+    /**
+     * Called for every accepted connection. When it returns ADMITTED, release has to be called
+     * once the connection is closed.
+     * @param address the remote address
+     * @return ADMITTED, or BUSY or TOO_MANY_REQUESTS as the status to refuse the connection with
+     */
+    public int admit(InetAddress address) {
+        if (!connections.tryAcquire()) {
+            refusedBusy.increment();
+            return BUSY;
+        }
+        long now = clock.getAsLong();
+        while (true) {
+            Client client = client(address, now);
+            synchronized (client) {
+                if (client.evicted) {
+                    continue; // dropped from the map between the lookup and the lock
+                }
+                client.lastSeen = now;
+                if (client.open >= maxPerAddress || !take(client, now)) {
+                    connections.release();
+                    refusedRate.increment();
+                    return TOO_MANY_REQUESTS;
+                }
+                client.open++;
+                return ADMITTED;
+            }
+        }
+    }
+
+    /**
+     * Takes a token for a further request on a connection that was admitted.
+     * @param address the remote address
+     * @return false when the client is over its rate and should get a 429
+     */
+    public boolean allowRequest(InetAddress address) {
+        if (tokensPerNano <= 0) {
+            return true;
+        }
+        Client client = clients.get(address);
+        if (client == null) {
+            return true; // not tracked any more, it starts with a full bucket anyway
+        }
+        long now = clock.getAsLong();
+        synchronized (client) {
+            client.lastSeen = now;
+            if (take(client, now)) {
+                return true;
+            }
+        }
+        refusedRate.increment();
+        return false;
+    }
+
+    /**
+     * Gives back the connection of an admitted client.
+     * @param address the remote address
+     */
+    public void release(InetAddress address) {
+        Client client = clients.get(address);
+        if (client != null) {
+            synchronized (client) {
+                client.open--;
+            }
+        }
+        connections.release();
+    }
+
+    private Client client(InetAddress address, long now) {
+        Client client = clients.get(address);
+        if (client != null) {
+            return client;
+        }
+        if (clients.size() >= maxAddresses) {
+            evict();
+        }
+        return clients.computeIfAbsent(address, key -> new Client(burst, now));
+    }
+
+    private boolean take(Client client, long now) {
+        if (tokensPerNano <= 0) {
+            return true;
+        }
+        client.tokens = Math.min(client.burst, client.tokens + (now - client.lastRefill) * tokensPerNano);
+        client.lastRefill = now;
+        if (client.tokens < 1) {
+            return false;
+        }
+        client.tokens--;
+        return true;
+    }
+
+    /**
+     * Drops buckets of addresses without open connections until the map is a quarter below its
+     * maximum. The oldest half of them goes first; one thread evicts at a time, the others go on.
+     */
+    private void evict() {
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            int target = maxAddresses - maxAddresses / 4;
+            long now = clock.getAsLong();
+            long cutoff = now - oldestIdle(now) / 2;
+            for (int pass = 0; pass < 2 && clients.size() > target; pass++) {
+                Iterator<Client> iterator = clients.values().iterator();
+                while (iterator.hasNext() && clients.size() > target) {
+                    Client client = iterator.next();
+                    synchronized (client) {
+                        // the first pass only takes the long unused ones
+                        if (client.open == 0 && (pass == 1 || client.lastSeen <= cutoff)) {
+                            client.evicted = true;
+                            iterator.remove();
+                        }
+                    }
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    private long oldestIdle(long now) {
+        long oldest = 0;
+        for (Client client : clients.values()) {
+            oldest = Math.max(oldest, now - client.lastSeen);
+        }
+        return oldest;
+    }
+
+    /**
+     * @return the number of connections that are admitted and not released yet
+     */
+    public int openConnections() {
+        return maxConnections - connections.availablePermits();
+    }
+
+    /**
+     * @return the number of addresses that have a bucket
+     */
+    public int trackedAddresses() {
+        return clients.size();
+    }
+
+    /**
+     * @return connections refused because the server was full
+     */
+    public long refusedBusy() {
+        return refusedBusy.sum();
+    }
+
+    /**
+     * @return connections and requests refused because a client was over its limits
+     */
+    public long refusedRate() {
+        return refusedRate.sum();
+    }
+}
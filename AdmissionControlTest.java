@@ -0,0 +1,131 @@
+package lab11;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static lab11.Checks.*;
+
+/**
+ * Tests for AdmissionControl on a clock that only moves when the test moves it.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class AdmissionControlTest {
+
+    private final static long SECOND = 1_000_000_000L;
+
+    // the time the admission control sees, in nanoseconds
+    private static long now;
+
+    public static void main(String[] args) {
+        run("a full bucket lets a burst through", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 100, 10, 3, 100, () -> now);
+            InetAddress client = address(1);
+            for (int i = 0; i < 3; i++) {
+                equal(AdmissionControl.ADMITTED, admission.admit(client));
+            }
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(client));
+            equal(1L, admission.refusedRate());
+            equal(3, admission.openConnections());
+        });
+        run("the bucket refills with time", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 100, 10, 3, 100, () -> now);
+            InetAddress client = address(1);
+            for (int i = 0; i < 3; i++) {
+                admission.admit(client);
+            }
+            now += SECOND / 20;
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(client));
+            now += SECOND / 20;
+            equal(AdmissionControl.ADMITTED, admission.admit(client));
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(client));
+        });
+        run("a bucket holds no more than the burst", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 100, 10, 3, 100, () -> now);
+            InetAddress client = address(1);
+            admission.admit(client);
+            now += 3600 * SECOND;
+            for (int i = 0; i < 3; i++) {
+                equal(AdmissionControl.ADMITTED, admission.admit(client));
+            }
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(client));
+        });
+        run("further requests take tokens too", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 100, 1, 2, 100, () -> now);
+            InetAddress client = address(1);
+            equal(AdmissionControl.ADMITTED, admission.admit(client));
+            check(admission.allowRequest(client), "second token");
+            check(!admission.allowRequest(client), "no third token");
+            now += SECOND;
+            check(admission.allowRequest(client), "refilled");
+        });
+        run("no rate limit", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 100, 0, 1, 100, () -> now);
+            InetAddress client = address(1);
+            for (int i = 0; i < 50; i++) {
+                equal(AdmissionControl.ADMITTED, admission.admit(client));
+                check(admission.allowRequest(client), "request " + i);
+            }
+        });
+        run("open connections per address", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 2, 0, 1, 100, () -> now);
+            InetAddress client = address(1);
+            equal(AdmissionControl.ADMITTED, admission.admit(client));
+            equal(AdmissionControl.ADMITTED, admission.admit(client));
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(client));
+            equal(AdmissionControl.ADMITTED, admission.admit(address(2)));
+            admission.release(client);
+            equal(AdmissionControl.ADMITTED, admission.admit(client));
+        });
+        run("open connections for everyone", () -> {
+            AdmissionControl admission = new AdmissionControl(2, 100, 0, 1, 100, () -> now);
+            equal(AdmissionControl.ADMITTED, admission.admit(address(1)));
+            equal(AdmissionControl.ADMITTED, admission.admit(address(2)));
+            equal(AdmissionControl.BUSY, admission.admit(address(3)));
+            equal(1L, admission.refusedBusy());
+            admission.release(address(1));
+            equal(AdmissionControl.ADMITTED, admission.admit(address(3)));
+        });
+        run("eviction drops the long unused buckets", () -> {
+            // one token per bucket that does not come back during the test
+            AdmissionControl admission = new AdmissionControl(100, 100, 0.001, 1, 8, () -> now);
+            for (int i = 0; i < 8; i++) {
+                equal(AdmissionControl.ADMITTED, admission.admit(address(i)));
+                if (i > 0) {
+                    admission.release(address(i));
+                }
+                now += SECOND;
+            }
+            now += 2 * SECOND;
+            // full: down to 6, only from the ones unused for over half of the longest idle time
+            equal(AdmissionControl.ADMITTED, admission.admit(address(8)));
+            equal(7, admission.trackedAddresses());
+            // still tracked with an empty bucket: the open one and the recently used ones
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(address(0)));
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(address(6)));
+            equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(address(7)));
+            // a dropped bucket starts full again
+            boolean dropped = false;
+            for (int i = 1; i <= 5 && !dropped; i++) {
+                dropped = admission.admit(address(i)) == AdmissionControl.ADMITTED;
+            }
+            check(dropped, "one of the old buckets was dropped");
+        });
+        run("buckets of open connections are kept", () -> {
+            AdmissionControl admission = new AdmissionControl(100, 100, 0.001, 1, 4, () -> now);
+            for (int i = 0; i < 6; i++) {
+                equal(AdmissionControl.ADMITTED, admission.admit(address(i)));
+                now += SECOND;
+            }
+            equal(6, admission.trackedAddresses());
+            for (int i = 0; i < 6; i++) {
+                equal(AdmissionControl.TOO_MANY_REQUESTS, admission.admit(address(i)));
+            }
+        });
+        done();
+    }
+
+    private static InetAddress address(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i});
+    }
+}
@@ -0,0 +1,282 @@
+package lab11;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct ByteBuffers in a few size classes, for response heads and for the bytes of a
+ * file that go out together with them. Direct buffers are written to a socket as they are, a heap
+ * buffer is first copied into a temporary direct one by the JDK, but they are slow to allocate,
+ * so they are kept and handed out again.
+ * Every size class has a shared queue, and threads that live as long as the server (the event
+ * loops and the workers of the bounded pool) also keep a few buffers of their own, which they take
+ * and give back without any contention. Virtual threads do not get such a cache: there is one per
+ * connection and the buffers would be lost with the thread.
+ * Settings: server.bufferPoolMemory (bytes the shared queues may hold, split over the classes),
+ * server.bufferThreadCache (buffers per class a thread keeps), server.bufferLeakSampling (every
+ * so many acquires is tracked, 0 turns tracking off). A tracked buffer that is garbage collected
+ * without being released is counted as a leak and printed with where it was taken.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class BufferPool {
+
+    private final static int[] SIZES = {4 * 1024, 16 * 1024, 64 * 1024};
+    private final static BufferPool shared = fromSystemProperties();
+
+    private final ArrayBlockingQueue<ByteBuffer>[] free;
+    private final int threadCacheSize;
+    private final int leakSampling;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = new ThreadLocal<>();
+    private final LongAdder threadHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final Map<Lease, Throwable> leases = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * @param memory bytes the shared queues may hold
+     * @param threadCacheSize buffers per size class a caching thread keeps
+     * @param leakSampling track one in this many acquires, 0 for none
+     */
+    public BufferPool(long memory, int threadCacheSize, int leakSampling) {
+        this.threadCacheSize = threadCacheSize;
+        this.leakSampling = leakSampling;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayBlockingQueue<ByteBuffer>[] queues = new ArrayBlockingQueue[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            int count = (int) Math.max(1, memory / SIZES.length / SIZES[i]);
+            queues[i] = new ArrayBlockingQueue<>(count);
+        }
+        free = queues;
+    }
+
+    private static BufferPool fromSystemProperties() {
+        return new BufferPool(Long.getLong("server.bufferPoolMemory", 32L * 1024 * 1024),
+                Integer.getInteger("server.bufferThreadCache", 4),
+                Integer.getInteger("server.bufferLeakSampling", 64));
+    }
+
+    /**
+     * @return the pool the whole server shares
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Gives the calling thread its own cache of buffers. Only for threads that live as long as the
+     * server, the buffers in the cache are lost when the thread ends.
+     */
+    public void enableThreadCache() {
+        if (threadCacheSize > 0 && threadCaches.get() == null) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZES.length];
+            for (int i = 0; i < SIZES.length; i++) {
+                caches[i] = new ArrayDeque<>(threadCacheSize);
+            }
+            threadCaches.set(caches);
+        }
+    }
+
+    /**
+     * @param size the bytes needed
+     * @return a cleared buffer of at least size bytes, limited to size; give it back with release
+     */
+    public ByteBuffer acquire(int size) {
+        acquired.increment();
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass < 0) {
+            oversized.increment();
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            ArrayDeque<ByteBuffer>[] caches = threadCaches.get();
+            if (caches != null) {
+                buffer = caches[sizeClass].pollLast();
+            }
+            if (buffer != null) {
+                threadHits.increment();
+            } else {
+                buffer = free[sizeClass].poll();
+                if (buffer != null) {
+                    sharedHits.increment();
+                } else {
+                    misses.increment();
+                    buffer = ByteBuffer.allocateDirect(SIZES[sizeClass]);
+                }
+            }
+        }
+        buffer.clear().limit(size);
+        if (leakSampling > 0 && sampleCount.incrementAndGet() % leakSampling == 0) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back. It must not be used afterwards, also not through views on it.
+     * @param buffer from acquire, null is ignored
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        released.increment();
+        if (!leases.isEmpty()) {
+            leases.remove(new Lease(buffer, null));
+        }
+        int sizeClass = classOf(buffer.capacity());
+        if (sizeClass < 0) {
+            return; // oversized, left to the garbage collector
+        }
+        ArrayDeque<ByteBuffer>[] caches = threadCaches.get();
+        if (caches != null && caches[sizeClass].size() < threadCacheSize) {
+            caches[sizeClass].addLast(buffer);
+        } else if (!free[sizeClass].offer(buffer)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return the largest buffer the pool keeps, a larger one is allocated on every acquire
+     */
+    public static int maxPooledSize() {
+        return SIZES[SIZES.length - 1];
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int classOf(int capacity) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (capacity == SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remembers where a buffer was taken, and reports the tracked buffers that were collected
+     * since the last time without having been released.
+     */
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+        leases.put(new Lease(buffer, collected), new Throwable());
+    }
+
+    private void reportLeaks() {
+        Lease lease;
+        while ((lease = (Lease) collected.poll()) != null) {
+            Throwable where = leases.remove(lease);
+            if (where != null) {
+                leaks.increment();
+                System.out.println("A pooled buffer was never released, it was taken at "
+                        + where.getStackTrace()[2]);
+            }
+        }
+    }
+
+    /**
+     * @return acquires served from the cache of the calling thread
+     */
+    public long threadHits() {
+        return threadHits.sum();
+    }
+
+    /**
+     * @return acquires served from the shared queues
+     */
+    public long sharedHits() {
+        return sharedHits.sum();
+    }
+
+    /**
+     * @return acquires that had to allocate a new buffer, oversized ones included
+     */
+    public long misses() {
+        return misses.sum() + oversized.sum();
+    }
+
+    /**
+     * @return buffers released while the pool was full, left to the garbage collector
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return buffers acquired and not released yet, a number that keeps growing means a leak
+     */
+    public long outstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * @return tracked buffers that were collected without being released
+     */
+    public long leaks() {
+        reportLeaks();
+        return leaks.sum();
+    }
+
+    /**
+     * @return bytes waiting in the shared queues
+     */
+    public long pooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < SIZES.length; i++) {
+            bytes += (long) free[i].size() * SIZES[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * A tracked buffer, compared by identity: the equals of ByteBuffer compares the contents.
+     */
+    private static class Lease extends WeakReference<ByteBuffer> {
+        private final int hash;
+
+        Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            hash = System.identityHashCode(buffer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Lease)) {
+                return false;
+            }
+            ByteBuffer buffer = get();
+            return buffer != null && buffer == ((Lease) other).get();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package lab11;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Answers Range requests (for example "Range: bytes=0-1023"). One range gives a 206 with the slice,
+ * several ranges give a multipart/byteranges body. Ranges that overlap or touch are merged into one,
+ * so a client cannot make the server send the same bytes over and over.
+ * For files held in memory, cached or mapped, the parts are slices of the shared content and nothing
+ * is copied. A file that is sent from disk sends one range straight from the file like a whole one;
+ * several ranges of it are read with positional reads, up to MAX_READ bytes together, and past that
+ * the whole file is sent, which a client has to accept as an answer to any Range request.
+ * If-Range is honoured with either validator, the ETag or the Last-Modified date: when the file
+ * changed since the client got it the whole file is sent instead.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class ByteRanges {
+
+    private final static int MAX_RANGES = 16;
+    // the bytes of a file on disk that are read into memory for a multipart answer
+    private final static long MAX_READ = 1024 * 1024;
+    private final static String boundary = "lab11-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    /**
+     * @param full the complete 200 response for the file
+     * @param range the Range header, or null
+     * @param ifRange the If-Range header, or null
+     * @return a 206 or 416 when the range applies, the full response otherwise
+     */
+    public static HttpResponse apply(HttpResponse full, String range, String ifRange) {
+        ByteBuffer content = full.content();
+        File file = full.file();
+        if (range == null || (content == null && file == null) || !full.status().startsWith("200")) {
+            return full;
+        }
+        if (ifRange != null && !ifRangeMatches(ifRange.trim(), full)) {
+            return full;
+        }
+        long length = content != null ? content.remaining() : full.fileEnd();
+        List<long[]> ranges = parse(range, length);
+        if (ranges == null) {
+            return full;
+        }
+        if (ranges.isEmpty()) {
+            return HttpResponse.parts("416 Range Not Satisfiable", full.contentType(),
+                    "Content-Range: bytes */" + length + "\r\n");
+        }
+        String lastModified = (full.etag() != null ? "ETag: " + full.etag() + "\r\n" : "") +
+                "Last-Modified: " + HttpResponse.httpDate(full.lastModified()) + "\r\n";
+        if (ranges.size() == 1) {
+            long[] only = ranges.get(0);
+            String fields = "Content-Range: " + contentRange(only, length) + "\r\n" + lastModified;
+            if (content == null) {
+                return HttpResponse.filePart("206 Partial Content", full.contentType(), fields, file, only[0],
+                        only[1] - only[0] + 1);
+            }
+            return HttpResponse.parts("206 Partial Content", full.contentType(), fields, slice(content, only));
+        }
+        ByteBuffer[] parts;
+        if (content != null) {
+            parts = new ByteBuffer[ranges.size()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = slice(content, ranges.get(i));
+            }
+        } else {
+            try {
+                parts = read(file, ranges);
+            } catch (IOException e) {
+                return full;
+            }
+            if (parts == null) {
+                return full;
+            }
+        }
+        ByteBuffer[] body = new ByteBuffer[ranges.size() * 2 + 1];
+        for (int i = 0; i < ranges.size(); i++) {
+            String partHead = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n" +
+                    "Content-Type: " + full.contentType() + "\r\n" +
+                    "Content-Range: " + contentRange(ranges.get(i), length) + "\r\n\r\n";
+            body[i * 2] = ascii(partHead);
+            body[i * 2 + 1] = parts[i];
+        }
+        body[body.length - 1] = ascii("\r\n--" + boundary + "--\r\n");
+        return HttpResponse.parts("206 Partial Content", "multipart/byteranges; boundary=" + boundary,
+                lastModified, body);
+    }
+
+    /**
+     * Reads the ranges of a file that is sent from disk with positional reads.
+     * @param file
+     * @param ranges
+     * @return one buffer per range, or null when they are more than MAX_READ bytes together
+     * @throws IOException when the file cannot be read, or got shorter
+     */
+    private static ByteBuffer[] read(File file, List<long[]> ranges) throws IOException {
+        long total = 0;
+        for (long[] range : ranges) {
+            total += range[1] - range[0] + 1;
+        }
+        if (total > MAX_READ) {
+            return null;
+        }
+        ByteBuffer[] parts = new ByteBuffer[ranges.size()];
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < parts.length; i++) {
+                long[] range = ranges.get(i);
+                ByteBuffer part = ByteBuffer.allocate((int) (range[1] - range[0] + 1));
+                while (part.hasRemaining()) {
+                    if (in.read(part, range[0] + part.position()) < 0) {
+                        throw new IOException("File got shorter while reading a range");
+                    }
+                }
+                parts[i] = part.flip();
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * A range of an old version must not be combined with the new one, so an entity tag has to
+     * match strongly; a weak tag never does.
+     * @param ifRange an entity tag or an HTTP date
+     * @param full
+     * @return whether the client's validator is that of the current file
+     */
+    private static boolean ifRangeMatches(String ifRange, HttpResponse full) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(full.etag());
+        }
+        return ifRange.equals(HttpResponse.httpDate(full.lastModified()));
+    }
+
+    /**
+     * @param header for example "bytes=0-99,200-,-50"
+     * @param length length of the content
+     * @return the satisfiable ranges as {first, last}, in ascending order with the ones that overlap
+     * or touch merged, an empty list when none is satisfiable, or null when the header is malformed
+     * and should be ignored
+     */
+    static List<long[]> parse(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                long first;
+                long last;
+                if (dash < 0) {
+                    return null;
+                } else if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+                if (first < length) {
+                    ranges.add(new long[]{first, last});
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        long[] last = null;
+        for (long[] range : ranges) {
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                last = range;
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    private static ByteBuffer slice(ByteBuffer content, long[] range) {
+        int start = content.position();
+        return content.duplicate().position(start + (int) range[0]).limit(start + (int) range[1] + 1).slice();
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
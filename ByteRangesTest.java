@@ -0,0 +1,146 @@
+package lab11;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static lab11.Checks.*;
+
+/**
+ * Tests for ByteRanges, on a file held in memory and on one sent from disk.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class ByteRangesTest {
+
+    private final static long lastModified = 1_600_000_000_000L;
+    private final static byte[] content = new byte[100];
+
+    static {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        HttpResponse full = HttpResponse.preloaded(ByteBuffer.wrap(content), "text/plain", lastModified, null);
+        File file = File.createTempFile("ranges", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        file.setLastModified(lastModified);
+        HttpResponse onDisk = HttpResponse.file(file, "text/plain", null);
+
+        run("one range", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=10-19", null);
+            equal("206 Partial Content", part.status());
+            check(head(part).contains("Content-Range: bytes 10-19/100\r\n"), head(part));
+            check(head(part).contains("Content-Length: 10\r\n"), head(part));
+            equal(slice(10, 19), text(part.body()));
+        });
+        run("open ended range", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=95-", null);
+            check(head(part).contains("Content-Range: bytes 95-99/100\r\n"), head(part));
+            equal(slice(95, 99), text(part.body()));
+        });
+        run("last byte past the end is cut off", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=90-1000", null);
+            check(head(part).contains("Content-Range: bytes 90-99/100\r\n"), head(part));
+        });
+        run("suffix range", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=-10", null);
+            check(head(part).contains("Content-Range: bytes 90-99/100\r\n"), head(part));
+            equal(slice(90, 99), text(part.body()));
+        });
+        run("suffix longer than the file", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=-500", null);
+            check(head(part).contains("Content-Range: bytes 0-99/100\r\n"), head(part));
+        });
+        run("overlapping ranges are merged", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=0-9,5-19,15-24", null);
+            equal("206 Partial Content", part.status());
+            check(head(part).contains("Content-Range: bytes 0-24/100\r\n"), head(part));
+            equal(slice(0, 24), text(part.body()));
+        });
+        run("touching ranges are merged", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=10-19,0-9", null);
+            check(head(part).contains("Content-Range: bytes 0-19/100\r\n"), head(part));
+        });
+        run("repeated ranges are sent once", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=0-99,0-99,0-99", null);
+            check(head(part).contains("Content-Length: 100\r\n"), head(part));
+        });
+        run("multipart/byteranges", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=50-54,0-4", null);
+            equal("206 Partial Content", part.status());
+            String type = part.contentType();
+            check(type.startsWith("multipart/byteranges; boundary="), type);
+            String boundary = type.substring(type.indexOf('=') + 1);
+            String expected = "--" + boundary + "\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Range: bytes 0-4/100\r\n\r\n" + slice(0, 4) + "\r\n" +
+                    "--" + boundary + "\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Range: bytes 50-54/100\r\n\r\n" + slice(50, 54) + "\r\n" +
+                    "--" + boundary + "--\r\n";
+            equal(expected, text(part.body()));
+            check(head(part).contains("Content-Length: " + expected.length() + "\r\n"), head(part));
+        });
+        run("unsatisfiable range", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=100-200", null);
+            equal("416 Range Not Satisfiable", part.status());
+            check(head(part).contains("Content-Range: bytes */100\r\n"), head(part));
+        });
+        run("unsatisfiable ranges are left out", () -> {
+            HttpResponse part = ByteRanges.apply(full, "bytes=200-300,0-0", null);
+            check(head(part).contains("Content-Range: bytes 0-0/100\r\n"), head(part));
+        });
+        run("malformed ranges are ignored", () -> {
+            equal(full, ByteRanges.apply(full, "bytes=a-b", null));
+            equal(full, ByteRanges.apply(full, "bytes=20-10", null));
+            equal(full, ByteRanges.apply(full, "lines=0-1", null));
+            equal(full, ByteRanges.apply(full, "bytes=0-0,1-1,2-2,3-3,4-4,5-5,6-6,7-7,8-8,9-9,"
+                    + "10-10,11-11,12-12,13-13,14-14,15-15,16-16", null));
+        });
+        run("If-Range with the current entity tag", () ->
+                equal("206 Partial Content", ByteRanges.apply(full, "bytes=0-9", full.etag()).status()));
+        run("If-Range with an old entity tag", () ->
+                equal(full, ByteRanges.apply(full, "bytes=0-9", "\"old\"")));
+        run("If-Range with a weak entity tag", () ->
+                equal(full, ByteRanges.apply(full, "bytes=0-9", "W/" + full.etag())));
+        run("If-Range with the current date", () -> equal("206 Partial Content",
+                ByteRanges.apply(full, "bytes=0-9", HttpResponse.httpDate(lastModified)).status()));
+        run("If-Range with an old date", () ->
+                equal(full, ByteRanges.apply(full, "bytes=0-9", HttpResponse.httpDate(lastModified - 1000))));
+        run("not modified is left alone", () -> {
+            HttpResponse notModified = full.notModified();
+            equal(notModified, ByteRanges.apply(notModified, "bytes=0-9", null));
+        });
+        run("one range of a file on disk", () -> {
+            HttpResponse part = ByteRanges.apply(onDisk, "bytes=-30", null);
+            equal("206 Partial Content", part.status());
+            check(head(part).contains("Content-Range: bytes 70-99/100\r\n"), head(part));
+            check(head(part).contains("Content-Length: 30\r\n"), head(part));
+            equal(file, part.file());
+            equal(70L, part.fileStart());
+            equal(100L, part.fileEnd());
+        });
+        run("several ranges of a file on disk", () -> {
+            HttpResponse part = ByteRanges.apply(onDisk, "bytes=0-1,98-", null);
+            String body = text(part.body());
+            check(body.contains("Content-Range: bytes 0-1/100\r\n\r\n" + slice(0, 1) + "\r\n"), body);
+            check(body.contains("Content-Range: bytes 98-99/100\r\n\r\n" + slice(98, 99) + "\r\n"), body);
+        });
+        run("unsatisfiable range of a file on disk", () ->
+                equal("416 Range Not Satisfiable", ByteRanges.apply(onDisk, "bytes=100-", null).status()));
+        done();
+    }
+
+    private static String head(HttpResponse response) {
+        return new String(response.head(false), StandardCharsets.US_ASCII);
+    }
+
+    private static String slice(int first, int last) {
+        return new String(content, first, last - first + 1, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,77 @@
+package lab11;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides the Cache-Control header of a file from its path or its type.
+ * The rules come from server.cacheControl, separated by ';', each a key and a value joined by '='.
+ * A key starting with '/' is a path prefix, the longest matching prefix wins. Otherwise the key is
+ * a type as getMimeType gives it ("text/html"), a family of types ("image/*") or "*" for every
+ * file. Prefixes are tried before types. For example:
+ * server.cacheControl=/image/=public, max-age=604800;text/html=no-cache;*=max-age=60
+ *
+ * @Author Thorben Dhaenens
+ */
+public class CachePolicy {
+
+    // pages change and must be revalidated, images hardly ever do
+    private final static String DEFAULT_RULES = "text/html=no-cache;image/*=public, max-age=86400";
+
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<String> prefixValues = new ArrayList<>();
+    private final Map<String, String> types = new HashMap<>();
+
+    /**
+     * @param rules as described above
+     */
+    public CachePolicy(String rules) {
+        for (String rule : rules.split(";")) {
+            int equals = rule.indexOf('=');
+            if (equals <= 0) {
+                if (!rule.isBlank()) {
+                    System.out.println("Ignoring cache rule without a value: " + rule);
+                }
+                continue;
+            }
+            String key = rule.substring(0, equals).trim();
+            String value = rule.substring(equals + 1).trim();
+            if (key.startsWith("/")) {
+                // keep the prefixes longest first, so the first match is the longest
+                int index = 0;
+                while (index < prefixes.size() && prefixes.get(index).length() >= key.length()) {
+                    index++;
+                }
+                prefixes.add(index, key);
+                prefixValues.add(index, value);
+            } else {
+                types.put(key.toLowerCase(), value);
+            }
+        }
+    }
+
+    public static CachePolicy fromSystemProperties() {
+        return new CachePolicy(System.getProperty("server.cacheControl", DEFAULT_RULES));
+    }
+
+    /**
+     * @param requestPath the path as it was requested
+     * @param mimeType as decided by getMimeType
+     * @return the value of the Cache-Control header, or null when no rule applies
+     */
+    public String cacheControl(String requestPath, String mimeType) {
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (requestPath.startsWith(prefixes.get(i))) {
+                return prefixValues.get(i);
+            }
+        }
+        String value = types.get(mimeType);
+        if (value == null) {
+            int slash = mimeType.indexOf('/');
+            value = types.get(slash < 0 ? "*" : mimeType.substring(0, slash + 1) + "*");
+        }
+        return value != null ? value : types.get("*");
+    }
+}
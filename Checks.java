@@ -0,0 +1,89 @@
+package lab11;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * The little there is to the tests: they are plain programs like the benchmarks, so they run
+ * with nothing but the JDK. A test class runs its cases through run and ends with done, which
+ * exits with status 1 when a case failed.
+ * Usage: java -cp out lab11.ByteRangesTest (from the directory the server is started from)
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Checks {
+
+    private static int passed;
+    private static int failed;
+
+    public interface Case {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs one case and prints whether it passed.
+     * @param name
+     * @param test
+     */
+    public static void run(String name, Case test) {
+        try {
+            test.run();
+            passed++;
+            System.out.println("ok    " + name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL  " + name + ": " + e);
+        }
+    }
+
+    /**
+     * Prints the totals and exits, with status 1 when anything failed. Exiting also stops the
+     * threads the server classes start, such as the directory watchers.
+     */
+    public static void done() {
+        System.out.println(passed + " passed, " + failed + " failed");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    public static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    public static void equal(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * @param test
+     * @param type
+     * @return the exception the case threw, it fails when it throws nothing or something else
+     */
+    public static <T extends Throwable> T fails(Case test, Class<T> type) {
+        try {
+            test.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError("expected " + type.getSimpleName() + " but got " + e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+
+    /**
+     * @param buffers
+     * @return the remaining bytes of the buffers as ISO-8859-1 text, the buffers do not move
+     */
+    public static String text(ByteBuffer... buffers) {
+        StringBuilder text = new StringBuilder();
+        for (ByteBuffer buffer : buffers) {
+            text.append(StandardCharsets.ISO_8859_1.decode(buffer.duplicate()));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package lab11;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Answers conditional GETs. A client that sends back the ETag in If-None-Match, or the
+ * Last-Modified date in If-Modified-Since, of a file that has not changed gets a 304 Not Modified
+ * without the body. If-None-Match decides alone when it is present, as RFC 7232 asks.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class ConditionalRequests {
+
+    /**
+     * @param full the 200 response for the file
+     * @param ifNoneMatch the If-None-Match header, or null
+     * @param ifModifiedSince the If-Modified-Since header, or null
+     * @return the 304 of the response when the client's copy is current, the response itself otherwise
+     */
+    public static HttpResponse apply(HttpResponse full, String ifNoneMatch, String ifModifiedSince) {
+        if (full.etag() == null || (ifNoneMatch == null && ifModifiedSince == null)) {
+            return full;
+        }
+        return notModified(full.etag(), full.lastModified(), ifNoneMatch, ifModifiedSince) ? full.notModified() : full;
+    }
+
+    /**
+     * @param etag the current entity tag
+     * @param lastModified the current modification time
+     * @param ifNoneMatch the If-None-Match header, or null
+     * @param ifModifiedSince the If-Modified-Since header, or null
+     * @return whether the client's copy is current
+     */
+    public static boolean notModified(String etag, long lastModified, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            // HTTP dates have whole seconds
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Weak comparison, a W/ prefix on either side is ignored.
+     * @param ifNoneMatch a list of entity tags or "*"
+     * @param etag
+     * @return whether one of the tags in the list is the etag
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        String opaque = opaque(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || opaque(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * @param date an HTTP date, for example "Mon, 09 Aug 2021 10:15:30 GMT"
+     * @return the time in milliseconds, or -1 when it is not a valid date
+     */
+    static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
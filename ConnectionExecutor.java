@@ -0,0 +1,249 @@
+package lab11;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs accepted connections on an executor instead of starting a new thread per socket.
+ * Two modes are supported:
+ * - virtual: one virtual thread per connection (needs Java 21, falls back to bounded otherwise)
+ * - bounded: a fixed pool of platform threads with a bounded queue in front of it
+ * When the bounded pool and its queue are full the rejection policy decides what happens
+ * to the new connection: "503" answers with the 503 page of the server and closes, "close" drops the
+ * socket and "caller" handles it on the accepting thread, which slows down accepting.
+ * The server hands in how it writes that page and where errors are logged, so the executor does
+ * not depend on any one server.
+ *
+ * Settings are read from system properties:
+ * server.executor (virtual|bounded), server.threads, server.queue, server.rejection (503|close|caller)
+ *
+ * @Author Thorben Dhaenens
+ */
+public class ConnectionExecutor {
+
+    /**
+     * Whatever the server does with one connection, usually handleConnection.
+     */
+    public interface ConnectionHandler {
+        void handle(Socket connection) throws IOException;
+    }
+
+    private final ConnectionHandler handler;
+    private final ConnectionHandler reject;
+    private final Consumer<String> log;
+    private final ExecutorService executor;
+    private final String rejection;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile LatencyHistogram waiting;
+    private volatile ConnectionHandler closed;
+
+    private ConnectionExecutor(ConnectionHandler handler, ConnectionHandler reject, Consumer<String> log,
+                               ExecutorService executor, String rejection) {
+        this.handler = handler;
+        this.reject = reject;
+        this.log = log;
+        this.executor = executor;
+        this.rejection = rejection;
+    }
+
+    /**
+     * Builds the executor that is configured through the system properties.
+     * @param handler
+     * @param reject writes the 503 page to a connection that is turned away
+     * @param log where errors of the workers go
+     * @return
+     */
+    public static ConnectionExecutor fromSystemProperties(ConnectionHandler handler, ConnectionHandler reject,
+                                                          Consumer<String> log) {
+        String mode = System.getProperty("server.executor", "bounded");
+        String rejection = System.getProperty("server.rejection", "503");
+        int threads = Integer.getInteger("server.threads", Runtime.getRuntime().availableProcessors() * 8);
+        int queue = Integer.getInteger("server.queue", 256);
+        if (mode.equals("virtual")) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new ConnectionExecutor(handler, reject, log, virtual, rejection);
+            }
+            System.out.println("Virtual threads are not available, using a bounded pool.");
+        }
+        return bounded(handler, reject, log, threads, queue, rejection);
+    }
+
+    /**
+     * A fixed pool of platform threads with a bounded queue.
+     * @param handler
+     * @param reject writes the 503 page to a connection that is turned away
+     * @param log where errors of the workers go
+     * @param threads
+     * @param queue
+     * @param rejection 503, close or caller
+     * @return
+     */
+    public static ConnectionExecutor bounded(ConnectionHandler handler, ConnectionHandler reject, Consumer<String> log,
+                                             int threads, int queue, String rejection) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), new NamedThreadFactory("connection-"));
+        ConnectionExecutor connectionExecutor = new ConnectionExecutor(handler, reject, log, pool, rejection);
+        pool.setRejectedExecutionHandler((task, executor) -> connectionExecutor.reject((ConnectionTask) task));
+        return connectionExecutor;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor only exists from Java 21 on,
+     * so it is looked up by reflection to keep compiling on older versions.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hands the connection to a worker. Never blocks unless the rejection policy is "caller".
+     * @param connection
+     */
+    public void execute(Socket connection) {
+        ConnectionTask task = new ConnectionTask(connection);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // thrown by the virtual thread executor once it is shut down
+            reject(task);
+        }
+    }
+
+    /**
+     * Stops taking new connections and waits for the running ones to finish.
+     * @param timeoutMillis how long to wait before interrupting the workers
+     * @return true when every connection finished in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    /**
+     * @return the number of connections that are being handled right now
+     */
+    public int activeConnections() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of connections that were turned away because the pool was full
+     */
+    public long rejectedConnections() {
+        return rejected.sum();
+    }
+
+    /**
+     * Lets the server know when a connection is done with, whether it was handled or rejected.
+     * @param listener called once per connection, after it is closed
+     */
+    public void onClose(ConnectionHandler listener) {
+        closed = listener;
+    }
+
+    /**
+     * Records for every connection how long it waited between accept and a worker picking it up.
+     * @param histogram
+     */
+    public void measureWaiting(LatencyHistogram histogram) {
+        waiting = histogram;
+    }
+
+    /**
+     * @return the number of connections waiting for a worker, always 0 for virtual threads
+     */
+    public int queuedConnections() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    private void reject(ConnectionTask task) {
+        if (rejection.equals("caller") && !executor.isShutdown()) {
+            task.run();
+            return;
+        }
+        rejected.increment();
+        try (Socket connection = task.connection) {
+            if (rejection.equals("503") || executor.isShutdown()) {
+                // the same 503 page the accept loop and the workers send
+                reject.handle(connection);
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        } finally {
+            closed(task.connection);
+        }
+    }
+
+    private void closed(Socket connection) {
+        ConnectionHandler listener = closed;
+        if (listener != null) {
+            try {
+                listener.handle(connection);
+            } catch (IOException e) {
+                log.accept("Error while closing a connection: " + e);
+            }
+        }
+    }
+
+    private class ConnectionTask implements Runnable {
+        final Socket connection;
+        final long accepted = System.nanoTime();
+
+        ConnectionTask(Socket connection) {
+            this.connection = connection;
+        }
+
+        public void run() {
+            LatencyHistogram histogram = waiting;
+            if (histogram != null) {
+                histogram.record(System.nanoTime() - accepted);
+            }
+            active.incrementAndGet();
+            try {
+                handler.handle(connection);
+            } catch (IOException e) {
+                log.accept("Error while communicating with client: " + e);
+            } finally {
+                active.decrementAndGet();
+                closed(connection);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            // pool threads live as long as the server, so they keep pooled buffers of their own
+            Thread thread = new Thread(() -> {
+                BufferPool.shared().enableThreadCache();
+                runnable.run();
+            }, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
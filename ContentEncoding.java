@@ -0,0 +1,320 @@
+package lab11;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed variants of text files, chosen from the Accept-Encoding header.
+ * A sidecar next to the file (book.txt.br, book.txt.gz) is sent when it exists and is not older
+ * than the file. Otherwise the file is gzipped on the fly and the result is kept, up to a byte
+ * budget, so it is compressed only once until it changes. Only the types from getMimeType that
+ * are text compress well; images, archives and files that are too small or too large are sent
+ * as they are. The JDK has no brotli encoder, so br is only sent from sidecars.
+ * Settings: server.compressBytes (budget for variants), server.compressMinSize (smallest file
+ * that is compressed), server.compressMaxFile (largest file compressed on the fly)
+ * and server.gzipLevel (1 to 9).
+ *
+ * @Author Thorben Dhaenens
+ */
+public class ContentEncoding implements DirectoryWatcher.Listener {
+
+    public final static int GZIP = 1;
+    public final static int BROTLI = 2;
+
+    private static class Variant {
+        final Path path;
+        final long lastModified;
+        final File sidecar;
+        // null when the file is better sent as it is
+        final HttpResponse response;
+
+        Variant(Path path, long lastModified, File sidecar, HttpResponse response) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.sidecar = sidecar;
+            this.response = response;
+        }
+
+        long memorySize() {
+            return response == null || response.file() != null ? 0 : response.memorySize();
+        }
+    }
+
+    private final long budget;
+    private final long minSize;
+    private final long maxFileSize;
+    private final int level;
+    private final CachePolicy cachePolicy;
+    // access ordered, keyed by the requested path and the encoding
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+    private long generation;
+    private volatile boolean watched;
+
+    /**
+     * @param budget bytes of compressed variants kept in memory
+     * @param minSize smallest file that is compressed
+     * @param maxFileSize largest file that is compressed on the fly
+     * @param level gzip level, 1 to 9
+     * @param cachePolicy gives the Cache-Control header of each file
+     */
+    public ContentEncoding(long budget, long minSize, long maxFileSize, int level, CachePolicy cachePolicy) {
+        this.budget = budget;
+        this.minSize = minSize;
+        this.maxFileSize = maxFileSize;
+        this.level = level;
+        this.cachePolicy = cachePolicy;
+    }
+
+    /**
+     * @param cachePolicy gives the Cache-Control header of each file
+     * @param share the part of the budget for these variants, when several sites divide it
+     * @return
+     */
+    public static ContentEncoding fromSystemProperties(CachePolicy cachePolicy, double share) {
+        return new ContentEncoding((long) (Long.getLong("server.compressBytes", 16L * 1024 * 1024) * share),
+                Long.getLong("server.compressMinSize", 1024),
+                Long.getLong("server.compressMaxFile", 1024 * 1024),
+                Integer.getInteger("server.gzipLevel", 6), cachePolicy);
+    }
+
+    /**
+     * Lets the watcher invalidate variants. Until this is called hits check the modification time.
+     * @param watcher
+     */
+    public void watch(DirectoryWatcher watcher) {
+        watcher.addListener(this);
+        watched = true;
+    }
+
+    /**
+     * @param mimeType as decided by getMimeType
+     * @return whether files of this type are worth compressing
+     */
+    public static boolean compressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.endsWith("xml")
+                || mimeType.endsWith("javascript") || mimeType.endsWith("json");
+    }
+
+    /**
+     * Reads an Accept-Encoding header such as "gzip, deflate, br;q=0.9".
+     * An encoding with q=0 is refused, "*" accepts every encoding that is not named.
+     * @param acceptEncoding the header, or null
+     * @return the accepted encodings, GZIP and BROTLI or'ed together
+     */
+    public static int accepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return 0;
+        }
+        int accepted = 0;
+        int refused = 0;
+        boolean any = false;
+        for (String element : acceptEncoding.split(",")) {
+            int parameters = element.indexOf(';');
+            String coding = (parameters < 0 ? element : element.substring(0, parameters)).trim().toLowerCase();
+            boolean zero = parameters >= 0 && zeroQuality(element.substring(parameters + 1));
+            int flag = switch (coding) {
+                case "gzip", "x-gzip" -> GZIP;
+                case "br" -> BROTLI;
+                case "*" -> {
+                    any = !zero;
+                    yield 0;
+                }
+                default -> 0;
+            };
+            if (zero) {
+                refused |= flag;
+            } else {
+                accepted |= flag;
+            }
+        }
+        if (any) {
+            accepted |= (GZIP | BROTLI) & ~refused;
+        }
+        return accepted & ~refused;
+    }
+
+    private static boolean zeroQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.startsWith("q=") || trimmed.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(trimmed.substring(2)) == 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the compressed variant of a file, brotli before gzip.
+     * @param requestPath the path as it was requested
+     * @param file
+     * @param mimeType
+     * @param encodings the accepted encodings
+     * @param indexed what the path index knows about the file, null to ask the filesystem
+     * @return the encoded response, or null when the file should be sent as it is
+     */
+    public HttpResponse get(String requestPath, File file, String mimeType, int encodings, PathIndex.Entry indexed) {
+        if ((encodings & BROTLI) != 0) {
+            HttpResponse response = variant(requestPath, file, mimeType, "br", indexed);
+            if (response != null) {
+                return response;
+            }
+        }
+        if ((encodings & GZIP) != 0) {
+            return variant(requestPath, file, mimeType, "gzip", indexed);
+        }
+        return null;
+    }
+
+    private HttpResponse variant(String requestPath, File file, String mimeType, String encoding,
+                                 PathIndex.Entry indexed) {
+        String key = encoding + " " + requestPath;
+        Variant variant;
+        long loadGeneration;
+        synchronized (this) {
+            variant = variants.get(key);
+            loadGeneration = generation;
+        }
+        if (variant != null && (watched || fresh(variant))) {
+            return variant.response;
+        }
+        if (indexed != null ? !indexed.isReadableFile() : !file.isFile() || !file.canRead()) {
+            return null;
+        }
+        long lastModified = indexed != null ? indexed.lastModified() : file.lastModified();
+        long length = indexed != null ? indexed.length() : file.length();
+        variant = load(file, mimeType, encoding, cachePolicy.cacheControl(requestPath, mimeType), lastModified, length);
+        synchronized (this) {
+            // a change that was reported while compressing may not be in the bytes we have
+            if (generation == loadGeneration) {
+                Variant old = variants.put(key, variant);
+                if (old != null) {
+                    size -= old.memorySize();
+                }
+                size += variant.memorySize();
+                evict();
+            }
+        }
+        return variant.response;
+    }
+
+    private static boolean fresh(Variant variant) {
+        return variant.path.toFile().lastModified() == variant.lastModified
+                && (variant.sidecar == null || variant.sidecar.lastModified() >= variant.lastModified);
+    }
+
+    private Variant load(File file, String mimeType, String encoding, String cacheControl, long lastModified,
+                         long length) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        File sidecar = new File(file.getPath() + (encoding.equals("br") ? ".br" : ".gz"));
+        // a sidecar older than the file was made from an older version
+        if (sidecar.isFile() && sidecar.canRead() && sidecar.lastModified() >= lastModified) {
+            if (sidecar.length() > maxFileSize) {
+                return new Variant(path, lastModified, sidecar,
+                        HttpResponse.encoded(sidecar, mimeType, lastModified, encoding, cacheControl));
+            }
+            try {
+                return new Variant(path, lastModified, sidecar, HttpResponse.encoded(
+                        ByteBuffer.wrap(Files.readAllBytes(sidecar.toPath())), mimeType, lastModified, encoding,
+                        cacheControl));
+            } catch (IOException e) {
+                return new Variant(path, lastModified, null, null);
+            }
+        }
+        if (!encoding.equals("gzip") || length < minSize || length > maxFileSize) {
+            return new Variant(path, lastModified, null, null);
+        }
+        try {
+            byte[] compressed = gzip(Files.readAllBytes(path));
+            if (compressed.length >= length) {
+                return new Variant(path, lastModified, null, null);
+            }
+            return new Variant(path, lastModified, null,
+                    HttpResponse.encoded(ByteBuffer.wrap(compressed), mimeType, lastModified, encoding, cacheControl));
+        } catch (IOException | OutOfMemoryError e) {
+            return new Variant(path, lastModified, null, null);
+        }
+    }
+
+    private byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed, 8192) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void evict() {
+        Iterator<Variant> iterator = variants.values().iterator();
+        while (size > budget && iterator.hasNext()) {
+            Variant variant = iterator.next();
+            size -= variant.memorySize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the variants of the path, of everything under it, and of the file a changed
+     * sidecar belongs to.
+     * @param path the changed path, or null to drop everything
+     */
+    public synchronized void changed(Path path) {
+        generation++;
+        Path source = null;
+        if (path != null && path.getFileName() != null) {
+            String name = path.getFileName().toString();
+            if (name.endsWith(".gz") || name.endsWith(".br")) {
+                source = path.resolveSibling(name.substring(0, name.length() - 3));
+            }
+        }
+        Iterator<Map.Entry<String, Variant>> iterator = variants.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Variant variant = iterator.next().getValue();
+            if (path == null || variant.path.startsWith(path) || variant.path.equals(source)) {
+                size -= variant.memorySize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param max
+     * @return the requested paths of the variants, the most recently used first, every path once
+     */
+    public synchronized List<String> recentPaths(int max) {
+        List<String> keys = new ArrayList<>(variants.keySet());
+        Set<String> recent = new LinkedHashSet<>();
+        for (int i = keys.size() - 1; i >= 0 && recent.size() < max; i--) {
+            String key = keys.get(i);
+            recent.add(key.substring(key.indexOf(' ') + 1));
+        }
+        return new ArrayList<>(recent);
+    }
+
+    /**
+     * @return the number of bytes of compressed variants held in memory
+     */
+    public synchronized long size() {
+        return size;
+    }
+}
@@ -0,0 +1,154 @@
+package lab11;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders the custom.html page with the list of files in a directory and keeps the finished
+ * response per directory, so browsing a directory does not list it on every request.
+ * When the DirectoryWatcher reports a change inside a directory its page is dropped, and a change
+ * to custom.html compiles the template again and drops every page.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class DirectoryListings implements DirectoryWatcher.Listener {
+
+    private final static int MAX_PAGES = 256;
+
+    private final File customFile;
+    private volatile Template template;
+    // access ordered, the least recently used page is dropped when there are too many
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(64, 0.75f, true);
+    private long generation;
+
+    private static class Page {
+        final Path folder;
+        final HttpResponse response;
+
+        Page(Path folder, HttpResponse response) {
+            this.folder = folder;
+            this.response = response;
+        }
+    }
+
+    public DirectoryListings(File customFile) {
+        this.customFile = customFile;
+    }
+
+    /**
+     * @param folder the directory to list
+     * @param path the path of the directory in the request, such as /text; it is what the page shows
+     *             and where the links start, the folder on disk is never shown
+     * @param status "200 OK" when the directory was requested, "404 Not Found" when it is
+     *               shown because a file in it was not found
+     * @return the page, or null when folder is not a directory that can be listed
+     * @throws IOException when custom.html cannot be read
+     */
+    public HttpResponse page(File folder, String path, String status) throws IOException {
+        String key = status + " " + path;
+        long renderGeneration;
+        synchronized (this) {
+            Page page = pages.get(key);
+            if (page != null) {
+                return page.response;
+            }
+            renderGeneration = generation;
+        }
+        File[] listOfFiles = folder.listFiles();
+        if (listOfFiles == null) {
+            return null;
+        }
+        String base = path.endsWith("/") ? path : path + "/";
+        String name = base.length() > 1 ? base.substring(base.lastIndexOf('/', base.length() - 2) + 1, base.length() - 1) : "/";
+        StringBuilder subContent = new StringBuilder();
+        subContent.append("<h2>").append(html(name)).append("</h2>\n");
+        for (File listOfFile : listOfFiles) {
+            if (listOfFile.isFile()) {
+                subContent.append("<p><a href='").append(html(href(base + listOfFile.getName()))).append("'>File ")
+                        .append(html(listOfFile.getName())).append("</a></p>\n");
+            } else if (listOfFile.isDirectory()) {
+                subContent.append("<p>Directory ").append(html(listOfFile.getName())).append("</p>\n");
+            }
+        }
+        String content = template().render(Map.of(
+                "list", subContent.toString(),
+                "directory", html(name),
+                "path", html(path)));
+        HttpResponse response = HttpResponse.prebuilt(status, "text/html", content);
+        synchronized (this) {
+            if (generation != renderGeneration) {
+                return response; // the directory changed while it was listed, do not keep this page
+            }
+            pages.put(key, new Page(folder.toPath().toAbsolutePath().normalize(), response));
+            if (pages.size() > MAX_PAGES) {
+                Iterator<Page> eldest = pages.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Percent-encodes a decoded path for a link, the slashes stay.
+     */
+    private static String href(String path) {
+        StringBuilder encoded = new StringBuilder(path.length());
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || "/-._~".indexOf(c) >= 0) {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String html(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '&': escaped.append("&amp;"); break;
+                case '\'': escaped.append("&#39;"); break;
+                case '"': escaped.append("&quot;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private Template template() throws IOException {
+        Template compiled = template;
+        if (compiled == null) {
+            compiled = Template.load(customFile);
+            template = compiled;
+        }
+        return compiled;
+    }
+
+    public void changed(Path path) {
+        if (path == null || path.equals(customFile.toPath().toAbsolutePath().normalize())) {
+            template = null;
+            synchronized (this) {
+                generation++;
+                pages.clear();
+            }
+            return;
+        }
+        synchronized (this) {
+            generation++;
+            // a file in the folder changed, or the folder itself went away
+            pages.values().removeIf(page -> page.folder.equals(path.getParent()) || page.folder.startsWith(path));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package lab11;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a directory tree with a WatchService and tells the listeners which paths changed,
+ * so caches in front of the filesystem know what to throw away without checking files
+ * on every request. New subdirectories are watched as soon as they appear.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class DirectoryWatcher implements Runnable {
+
+    /**
+     * Gets the changed path, or null when events were lost and anything may have changed.
+     */
+    public interface Listener {
+        void changed(Path path);
+    }
+
+    private final WatchService watchService;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private DirectoryWatcher(Path root) throws IOException {
+        watchService = root.getFileSystem().newWatchService();
+        registerTree(root);
+    }
+
+    /**
+     * Starts watching the tree under root on a daemon thread.
+     * @param root
+     * @return
+     * @throws IOException when the directory cannot be watched
+     */
+    public static DirectoryWatcher start(String root) throws IOException {
+        DirectoryWatcher watcher = new DirectoryWatcher(Paths.get(root).toAbsolutePath().normalize());
+        Thread thread = new Thread(watcher, "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return watcher;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        notifyListeners(null);
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                        try {
+                            registerTree(path);
+                        } catch (IOException e) {
+                            System.out.println("Cannot watch " + path + ": " + e);
+                        }
+                    }
+                    notifyListeners(path);
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // watcher closed
+        }
+    }
+
+    private void notifyListeners(Path path) {
+        for (Listener listener : listeners) {
+            listener.changed(path);
+        }
+    }
+}
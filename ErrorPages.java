@@ -0,0 +1,104 @@
+package lab11;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every error response, rendered from the compiled error404.html or error500.html template once
+ * at startup and kept as finished bytes. Answering an error is then only a write. When the
+ * DirectoryWatcher reports a change to one of the templates all pages are rendered again and
+ * swapped in at once. The templates can use {{ errorCodeTagChangesWhenRealOccur }}, {{ status }}
+ * and {{ code }}.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class ErrorPages implements DirectoryWatcher.Listener {
+
+    private final static int[] errorCodes = {400, 403, 404, 413, 429, 500, 501, 503};
+
+    private final File error404File;
+    private final File error500File;
+    private volatile Map<Integer, HttpResponse> pages;
+
+    /**
+     * @param error404File template for the client errors 400, 403, 404, 413 and 429
+     * @param error500File template for the server errors
+     */
+    public ErrorPages(File error404File, File error500File) {
+        this.error404File = error404File;
+        this.error500File = error500File;
+        reload();
+    }
+
+    /**
+     * @param errorCode
+     * @return the page for the code, the 500 page for codes without a page of their own
+     */
+    public HttpResponse get(int errorCode) {
+        HttpResponse page = pages.get(errorCode);
+        return page != null ? page : pages.get(500);
+    }
+
+    public void changed(Path path) {
+        if (path == null || isTemplate(path, error404File) || isTemplate(path, error500File)) {
+            reload();
+        }
+    }
+
+    private static boolean isTemplate(Path path, File template) {
+        return path.equals(template.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * Renders all pages again from the templates.
+     */
+    public void reload() {
+        Template clientError = compile(error404File);
+        Template serverError = compile(error500File);
+        Map<Integer, HttpResponse> rendered = new HashMap<>();
+        for (int errorCode : errorCodes) {
+            String statusInfo = statusInfo(errorCode);
+            Template template = errorCode < 500 ? clientError : serverError;
+            String content = template.render(Map.of(
+                    "errorCodeTagChangesWhenRealOccur", statusInfo,
+                    "status", statusInfo.trim(),
+                    "code", String.valueOf(errorCode)));
+            // tells a client that was turned away when it may try again
+            String extraFields = errorCode == 429 || errorCode == 503 ? "Retry-After: 1\r\n" : "";
+            rendered.put(errorCode, HttpResponse.prebuilt(statusInfo.trim(), "text/html", extraFields, content));
+        }
+        pages = Map.copyOf(rendered);
+    }
+
+    private static Template compile(File template) {
+        try {
+            return Template.load(template);
+        } catch (IOException e) {
+            System.out.println("Cannot read the error template: " + e);
+            return Template.compile("<h1>{{ errorCodeTagChangesWhenRealOccur }}</h1>");
+        }
+    }
+
+    /**
+     * @param errorCode
+     * @return the status as it appears in the status line, with a leading space
+     */
+    static String statusInfo(int errorCode) {
+        String statusInfo = " ";
+
+        switch (errorCode) {
+            case 400 -> statusInfo += "400 Bad Request";
+            case 403 -> statusInfo += "403 Forbidden";
+            case 404 -> statusInfo += "404 Not Found";
+            case 413 -> statusInfo += "413 Content Too Large";
+            case 429 -> statusInfo += "429 Too Many Requests";
+            case 501 -> statusInfo += "501 Not Implemented";
+            case 503 -> statusInfo += "503 Service Unavailable";
+            default -> statusInfo += "500 Internal Server Error";
+        }
+        return statusInfo;
+    }
+}
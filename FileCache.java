@@ -0,0 +1,251 @@
+package lab11;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps small and medium files as ready-made responses, head and body in one direct buffer.
+ * The cache has a total byte budget and drops files that were not used lately when it is full.
+ * A hit takes no lock: it only sets the reference bit of its entry, and eviction sweeps the
+ * entries like a clock hand, giving an entry whose bit is set a second chance and clearing it.
+ * Larger files are mapped into memory with FileChannel.map instead; the mappings are shared by
+ * all connections and have their own budget, since they cost address space rather than memory.
+ * Entries are thrown away when the DirectoryWatcher reports a change, so a hit does not touch
+ * the filesystem at all. Without a watcher every hit checks the modification time instead.
+ * Settings: server.cacheBytes (total budget), server.cacheMaxFile (largest file kept),
+ * server.mmap (map larger files, default true) and server.mmapBytes (budget for mappings).
+ * The validators and the Cache-Control header are worked out when a file is loaded and are kept
+ * in its response, so they are not computed again until the file changes.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class FileCache implements DirectoryWatcher.Listener {
+
+    private static class Entry {
+        final Path path;
+        final long lastModified;
+        final HttpResponse response;
+        final boolean mapped;
+        // set by every hit, cleared by the clock hand; a new entry counts as used
+        volatile boolean referenced = true;
+
+        Entry(Path path, long lastModified, HttpResponse response, boolean mapped) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.response = response;
+            this.mapped = mapped;
+        }
+    }
+
+    private final long budget;
+    private final long maxFileSize;
+    private final long mappedBudget;
+    private final CachePolicy cachePolicy;
+    // read without a lock, changed and swept while holding the lock of the cache
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // where the clock hand stands, carries on from one eviction to the next
+    private Iterator<Map.Entry<String, Entry>> hand;
+    private long size;
+    private long mappedSize;
+    private long generation;
+    private volatile boolean watched;
+
+    /**
+     * @param budget bytes of file content kept in memory
+     * @param maxFileSize largest file kept in memory
+     * @param mappedBudget bytes of larger files kept mapped, 0 to never map
+     * @param cachePolicy gives the Cache-Control header of each file
+     */
+    public FileCache(long budget, long maxFileSize, long mappedBudget, CachePolicy cachePolicy) {
+        this.budget = budget;
+        this.maxFileSize = maxFileSize;
+        this.mappedBudget = mappedBudget;
+        this.cachePolicy = cachePolicy;
+    }
+
+    /**
+     * @param cachePolicy gives the Cache-Control header of each file
+     * @param share the part of the budgets for this cache, when several sites divide them
+     * @return
+     */
+    public static FileCache fromSystemProperties(CachePolicy cachePolicy, double share) {
+        boolean mmap = Boolean.parseBoolean(System.getProperty("server.mmap", "true"));
+        return new FileCache((long) (Long.getLong("server.cacheBytes", 64L * 1024 * 1024) * share),
+                Long.getLong("server.cacheMaxFile", 1024 * 1024),
+                mmap ? (long) (Long.getLong("server.mmapBytes", 1024L * 1024 * 1024) * share) : 0, cachePolicy);
+    }
+
+    /**
+     * Lets the watcher invalidate entries. Until this is called hits check the modification time.
+     * @param watcher
+     */
+    public void watch(DirectoryWatcher watcher) {
+        watcher.addListener(this);
+        watched = true;
+    }
+
+    /**
+     * @param requestPath the path as it was requested
+     * @return the cached response, or null on a miss
+     */
+    public HttpResponse get(String requestPath) {
+        Entry entry = entries.get(requestPath);
+        if (entry == null) {
+            return null;
+        }
+        if (!watched && entry.path.toFile().lastModified() != entry.lastModified) {
+            remove(requestPath, entry);
+            return null;
+        }
+        if (!entry.referenced) {
+            // written only when it changes, so hot entries are not written by every hit
+            entry.referenced = true;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Builds the response for a readable file and keeps it when it fits in the cache.
+     * Files that are too large are mapped, or answered straight from disk when they cannot be.
+     * @param requestPath the path as it was requested
+     * @param file
+     * @param mimeType
+     * @param indexed what the path index knows about the file, null to ask the filesystem
+     * @return
+     */
+    public HttpResponse load(String requestPath, File file, String mimeType, PathIndex.Entry indexed) {
+        long length = indexed != null ? indexed.length() : file.length();
+        long lastModified = indexed != null ? indexed.lastModified() : file.lastModified();
+        boolean mapped = length > maxFileSize;
+        String cacheControl = cachePolicy.cacheControl(requestPath, mimeType);
+        if (mapped ? length > mappedBudget || length > Integer.MAX_VALUE : length > budget) {
+            return HttpResponse.file(file, mimeType, cacheControl, length, lastModified);
+        }
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        Path path = file.toPath().toAbsolutePath().normalize();
+        HttpResponse response;
+        try {
+            if (mapped) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    response = HttpResponse.mapped(channel.map(FileChannel.MapMode.READ_ONLY, 0, length),
+                            mimeType, lastModified, cacheControl);
+                }
+            } else {
+                response = HttpResponse.preloaded(ByteBuffer.wrap(Files.readAllBytes(path)), mimeType, lastModified,
+                        cacheControl);
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            return HttpResponse.file(file, mimeType, cacheControl, length, lastModified);
+        }
+        synchronized (this) {
+            // a change that was reported while reading may not be in the bytes we have
+            if (generation == loadGeneration) {
+                Entry entry = new Entry(path, lastModified, response, mapped);
+                Entry old = entries.put(requestPath, entry);
+                if (old != null) {
+                    account(old, -1);
+                }
+                account(entry, 1);
+                evict();
+            }
+        }
+        return response;
+    }
+
+    private void account(Entry entry, int sign) {
+        if (entry.mapped) {
+            mappedSize += sign * entry.response.memorySize();
+        } else {
+            size += sign * entry.response.memorySize();
+        }
+    }
+
+    /**
+     * Moves the clock hand until the budgets are kept. Two rounds are enough: the first clears
+     * every bit it passes, so the second finds entries to drop.
+     */
+    private void evict() {
+        int steps = 2 * entries.size() + 1;
+        while ((size > budget || mappedSize > mappedBudget) && steps-- > 0) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Map.Entry<String, Entry> next = hand.next();
+            Entry entry = next.getValue();
+            if (entry.mapped ? mappedSize <= mappedBudget : size <= budget) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entries.remove(next.getKey(), entry)) {
+                account(entry, -1);
+            }
+        }
+    }
+
+    private synchronized void remove(String requestPath, Entry entry) {
+        if (entries.remove(requestPath, entry)) {
+            account(entry, -1);
+        }
+    }
+
+    /**
+     * Drops every entry for the path, or for everything under it when it is a directory.
+     * @param path the changed path, or null to drop everything
+     */
+    public synchronized void changed(Path path) {
+        generation++;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (path == null || entry.path.startsWith(path)) {
+                account(entry, -1);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param max
+     * @return the requested paths of the entries, the ones used since the last sweep first
+     */
+    public List<String> recentPaths(int max) {
+        List<String> recent = new ArrayList<>();
+        List<String> older = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            (entry.getValue().referenced ? recent : older).add(entry.getKey());
+        }
+        recent.addAll(older);
+        return recent.size() > max ? new ArrayList<>(recent.subList(0, max)) : recent;
+    }
+
+    /**
+     * @return the number of bytes held in memory by the cache, mappings not included
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of files that are mapped
+     */
+    public synchronized long mappedSize() {
+        return mappedSize;
+    }
+}
@@ -0,0 +1,205 @@
+package lab11;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Copies files to a socket. When the socket was accepted from a ServerSocketChannel
+ * the file goes straight from the page cache to the socket with FileChannel.transferTo
+ * (sendfile on Linux). Otherwise the bytes are copied in bulk through a pooled buffer.
+ * A response head is best sent with the file through send(head, file, connection): the head and
+ * the start of the file leave in one gathering write, a small file in one write altogether. Writing
+ * the head on its own costs a system call and often a TCP segment of its own, which the client may
+ * hold on to waiting for the rest (delayed ACK against Nagle).
+ * The length of the file is taken once, when its head is made, and exactly that many bytes are
+ * sent: a file that grows in the meantime is cut off there, and one that gets shorter ends in a
+ * TruncatedException, after which the connection has to be closed.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class FileTransfer {
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int POOL_SIZE = 32;
+    // the bytes of a file that go out in the same write as the head
+    final static int FIRST_CHUNK = 16 * 1024;
+    private final static ArrayBlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * The file got shorter while it was sent, so fewer bytes went out than the Content-Length
+     * promised. Nothing else can be sent on the connection after it.
+     */
+    public static class TruncatedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TruncatedException(File file) {
+            super("File got shorter while sending it: " + file);
+        }
+    }
+
+    /**
+     * Sends the whole file to the connection, zero-copy when the socket has a channel.
+     * @param file
+     * @param connection
+     * @return the number of bytes sent
+     * @throws IOException
+     */
+    public static long send(File file, Socket connection) throws IOException {
+        SocketChannel channel = connection.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            return transfer(file, channel);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return copy(in, connection.getOutputStream());
+        }
+    }
+
+    /**
+     * Sends a response head and then the whole file. With a channel the head goes out together
+     * with the first FIRST_CHUNK bytes of the file, read into a pooled buffer, and the rest with
+     * transferTo.
+     * @param head the status line and headers, their positions move on as they are written
+     * @param file
+     * @param connection
+     * @return the number of bytes of the file sent
+     * @throws IOException
+     */
+    public static long send(ByteBuffer[] head, File file, Socket connection) throws IOException {
+        return send(head, file, 0, file.length(), connection);
+    }
+
+    /**
+     * Sends a response head and then the bytes of the file from start up to end, for a range.
+     * @param head the status line and headers, their positions move on as they are written
+     * @param file
+     * @param start the first byte to send
+     * @param end the byte after the last one to send
+     * @param connection
+     * @return the number of bytes of the file sent, always end - start
+     * @throws TruncatedException when the file no longer reaches end
+     * @throws IOException
+     */
+    public static long send(ByteBuffer[] head, File file, long start, long end, Socket connection) throws IOException {
+        SocketChannel channel = connection.getChannel();
+        if (channel == null || !channel.isBlocking()) {
+            OutputStream out = connection.getOutputStream();
+            for (ByteBuffer buffer : head) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.write(bytes);
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                in.skipNBytes(start);
+                if (copy(in, out, end - start) < end - start) {
+                    throw new TruncatedException(file);
+                }
+                return end - start;
+            } catch (EOFException e) {
+                throw new TruncatedException(file);
+            }
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (in.size() < end) {
+                throw new TruncatedException(file);
+            }
+            BufferPool pool = BufferPool.shared();
+            ByteBuffer first = pool.acquire((int) Math.min(Math.max(end - start, 0), FIRST_CHUNK));
+            long position;
+            try {
+                while (first.hasRemaining() && in.read(first, start + first.position()) > 0) {
+                    // reads the start of the file, normally in one go
+                }
+                position = start + first.flip().remaining();
+                ByteBuffer[] buffers = Arrays.copyOf(head, head.length + 1);
+                buffers[head.length] = first;
+                while (HttpResponse.hasRemaining(buffers)) {
+                    channel.write(buffers);
+                }
+            } finally {
+                pool.release(first);
+            }
+            while (position < end) {
+                long sent = in.transferTo(position, end - position, channel);
+                if (sent <= 0 && in.size() <= position) {
+                    throw new TruncatedException(file);
+                }
+                position += sent;
+            }
+            return end - start;
+        }
+    }
+
+    /**
+     * Zero-copy path. transferTo may send less than asked for, so it loops until the
+     * whole file is written.
+     * @param file
+     * @param channel a blocking socket channel
+     * @return the number of bytes sent, the size of the file when it was opened
+     * @throws TruncatedException when the file got shorter while it was sent
+     * @throws IOException
+     */
+    public static long transfer(File file, SocketChannel channel) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long sent = in.transferTo(position, size - position, channel);
+                if (sent <= 0 && in.size() <= position) {
+                    throw new TruncatedException(file);
+                }
+                position += sent;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Fallback path: bulk copy through a buffer borrowed from a small pool.
+     * @param in
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Bulk copy of at most limit bytes.
+     * @param in
+     * @param out
+     * @param limit
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = borrowBuffer();
+        long total = 0;
+        try {
+            int n;
+            while (total < limit && (n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) > 0) {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+            out.flush();
+        } finally {
+            returnBuffer(buffer);
+        }
+        return total;
+    }
+
+    private static byte[] borrowBuffer() {
+        byte[] buffer = bufferPool.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void returnBuffer(byte[] buffer) {
+        bufferPool.offer(buffer);
+    }
+}
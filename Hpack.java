@@ -0,0 +1,541 @@
+package lab11;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541), the header compression of HTTP/2. Every connection has a Decoder for the
+ * request headers and an Encoder for the response headers, each with its own dynamic table; the
+ * static table, its lookup maps and the Huffman code are built once and shared by all of them.
+ * The encoder refers to the static and dynamic table wherever it can, adds the fields that repeat
+ * between responses (content types, caching headers) to its dynamic table and leaves out the ones
+ * that change every time (lengths, validators). Strings are Huffman coded when that is shorter.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Hpack {
+
+    /**
+     * What every connection starts with and what we allow the client to use for its dynamic table.
+     */
+    public final static int DEFAULT_TABLE_SIZE = 4096;
+    // every entry costs its name, its value and 32 bytes of bookkeeping
+    private final static int ENTRY_OVERHEAD = 32;
+
+    /**
+     * A header block that cannot be decoded. The dynamic table is then out of step with the
+     * client's, so the whole connection is lost.
+     */
+    public static class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    private final static String[][] staticTable = {
+            null,
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+    private final static int STATIC_SIZE = staticTable.length - 1;
+    // name + '\0' + value and name alone, to the lowest index that has them
+    private final static Map<String, Integer> staticFields = new HashMap<>();
+    private final static Map<String, Integer> staticNames = new HashMap<>();
+
+    // RFC 7541 appendix B, symbols 0 to 255 and EOS
+    private final static int[] huffmanCodes = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private final static byte[] huffmanLengths = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private final static int EOS = 256;
+    // the decoding tree: two slots per inner node, a positive slot is the next node and a
+    // negative one the symbol -slot - 1
+    private final static int[] huffmanTree = new int[2 * EOS];
+
+    static {
+        for (int i = STATIC_SIZE; i >= 1; i--) {
+            staticFields.put(staticTable[i][0] + '\0' + staticTable[i][1], i);
+            staticNames.put(staticTable[i][0], i);
+        }
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = huffmanLengths[symbol] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((huffmanCodes[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    huffmanTree[slot] = -symbol - 1;
+                } else {
+                    if (huffmanTree[slot] == 0) {
+                        huffmanTree[slot] = nodes++;
+                    }
+                    node = huffmanTree[slot];
+                }
+            }
+        }
+    }
+
+    /**
+     * The fields one side added, newest first, with the absolute number of every entry so the
+     * encoder can find an entry again after newer ones pushed it further down.
+     */
+    private static class DynamicTable {
+        final ArrayDeque<String[]> entries = new ArrayDeque<>();
+        final ArrayDeque<Long> numbers = new ArrayDeque<>();
+        // only kept by the encoder
+        final Map<String, Long> fields;
+        final Map<String, Long> names;
+        long added;
+        int size;
+        int maxSize = DEFAULT_TABLE_SIZE;
+
+        DynamicTable(boolean lookups) {
+            fields = lookups ? new HashMap<>() : null;
+            names = lookups ? new HashMap<>() : null;
+        }
+
+        /**
+         * @param index counting from 1, the static table included
+         * @return name and value
+         */
+        String[] get(int index) throws CompressionException {
+            if (index >= 1 && index <= STATIC_SIZE) {
+                return staticTable[index];
+            }
+            int position = index - STATIC_SIZE - 1;
+            if (index <= 0 || position >= entries.size()) {
+                throw new CompressionException("No entry " + index + " in the header table");
+            }
+            for (String[] entry : entries) {
+                if (position-- == 0) {
+                    return entry;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        /**
+         * @param number absolute number of an entry
+         * @return its index as the other side sees it now
+         */
+        int index(long number) {
+            return (int) (added - 1 - number) + STATIC_SIZE + 1;
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if (entrySize > maxSize) {
+                // adding an entry larger than the table empties it
+                evict(0);
+                return;
+            }
+            evict(maxSize - entrySize);
+            entries.addFirst(new String[]{name, value});
+            numbers.addFirst(added);
+            if (fields != null) {
+                fields.put(name + '\0' + value, added);
+                names.put(name, added);
+            }
+            added++;
+            size += entrySize;
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int until) {
+            while (size > until) {
+                String[] entry = entries.removeLast();
+                long number = numbers.removeLast();
+                size -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+                if (fields != null) {
+                    fields.remove(entry[0] + '\0' + entry[1], number);
+                    names.remove(entry[0], number);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they arrive.
+     */
+    public static class Decoder {
+        private final DynamicTable table = new DynamicTable(false);
+        private final int maxTableSize;
+
+        /**
+         * @param maxTableSize the largest table the client may ask for, as we announced it
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.resize(maxTableSize);
+        }
+
+        /**
+         * Decodes a whole header block. The block is always decoded to its end, also when the
+         * fields get too many, so the table stays in step with the client's.
+         * @param block
+         * @param fields gets name and value of every field, one after the other
+         * @return the size of the fields as RFC 7541 counts it, to compare with the announced limit
+         * @throws CompressionException
+         */
+        public int decode(ByteBuffer block, List<String> fields) throws CompressionException {
+            int listSize = 0;
+            boolean first = true;
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    String[] entry = table.get(integer(block, 7));
+                    name = entry[0];
+                    value = entry[1];
+                } else if ((b & 0xe0) == 0x20) {
+                    if (!first) {
+                        throw new CompressionException("Table size update after a header field");
+                    }
+                    int size = integer(block, 5);
+                    if (size > maxTableSize) {
+                        throw new CompressionException("Table size " + size + " is over " + maxTableSize);
+                    }
+                    table.resize(size);
+                    continue;
+                } else {
+                    // with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                    boolean indexing = (b & 0x40) != 0;
+                    int index = integer(block, indexing ? 6 : 4);
+                    name = index == 0 ? string(block) : table.get(index)[0];
+                    value = string(block);
+                    if (indexing) {
+                        table.add(name, value);
+                    }
+                }
+                first = false;
+                fields.add(name);
+                fields.add(value);
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+            }
+            return listSize;
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection. A block has to be sent before the next one
+     * is encoded, the client's table follows the order of the blocks.
+     */
+    public static class Encoder {
+        private final DynamicTable table = new DynamicTable(true);
+        private byte[] out = new byte[1024];
+        private int length;
+        // the smallest size the client allowed since the last block, -1 when it did not change
+        private int smallestSize = -1;
+
+        /**
+         * Follows the client's SETTINGS_HEADER_TABLE_SIZE. The change is announced at the start
+         * of the next block.
+         * @param maxSize
+         */
+        public void setMaxTableSize(int maxSize) {
+            maxSize = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+            smallestSize = smallestSize < 0 ? maxSize : Math.min(smallestSize, maxSize);
+            table.resize(maxSize);
+        }
+
+        /**
+         * @param fields name and value of every field, names in lower case
+         * @param indexed whether each field may go into the dynamic table, by its position in fields / 2
+         * @return the block, valid until the next call
+         */
+        public ByteBuffer encode(List<String> fields, boolean[] indexed) {
+            length = 0;
+            if (smallestSize >= 0) {
+                if (smallestSize < table.maxSize) {
+                    integer(0x20, 5, smallestSize);
+                }
+                integer(0x20, 5, table.maxSize);
+                smallestSize = -1;
+            }
+            for (int i = 0; i < fields.size(); i += 2) {
+                field(fields.get(i), fields.get(i + 1), indexed[i / 2]);
+            }
+            return ByteBuffer.wrap(out, 0, length);
+        }
+
+        private void field(String name, String value, boolean indexed) {
+            String key = name + '\0' + value;
+            Integer index = staticFields.get(key);
+            if (index == null) {
+                Long number = table.fields.get(key);
+                index = number != null ? table.index(number) : null;
+            }
+            if (index != null) {
+                integer(0x80, 7, index);
+                return;
+            }
+            Integer nameIndex = staticNames.get(name);
+            if (nameIndex == null) {
+                Long number = table.names.get(name);
+                nameIndex = number != null ? table.index(number) : 0;
+            }
+            if (indexed && name.length() + value.length() + ENTRY_OVERHEAD <= table.maxSize) {
+                integer(0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                integer(0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                string(name);
+            }
+            string(value);
+        }
+
+        private void integer(int pattern, int prefixBits, int value) {
+            ensure(6);
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                out[length++] = (byte) (pattern | value);
+                return;
+            }
+            out[length++] = (byte) (pattern | max);
+            value -= max;
+            while (value >= 0x80) {
+                out[length++] = (byte) (0x80 | (value & 0x7f));
+                value >>>= 7;
+            }
+            out[length++] = (byte) value;
+        }
+
+        private void string(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            long bits = 0;
+            for (byte b : bytes) {
+                bits += huffmanLengths[b & 0xff];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= bytes.length) {
+                integer(0x00, 7, bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, out, length, bytes.length);
+                length += bytes.length;
+                return;
+            }
+            integer(0x80, 7, huffmanLength);
+            ensure(huffmanLength);
+            long pending = 0;
+            int pendingBits = 0;
+            for (byte b : bytes) {
+                int symbol = b & 0xff;
+                pending = (pending << huffmanLengths[symbol]) | huffmanCodes[symbol];
+                pendingBits += huffmanLengths[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    out[length++] = (byte) (pending >>> pendingBits);
+                }
+            }
+            if (pendingBits > 0) {
+                // padded with the first bits of EOS, which are all ones
+                out[length++] = (byte) ((pending << (8 - pendingBits)) | (0xff >>> pendingBits));
+            }
+        }
+
+        private void ensure(int room) {
+            if (length + room > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, length + room));
+            }
+        }
+    }
+
+    /**
+     * Reads an integer with an N-bit prefix (RFC 7541 section 5.1).
+     */
+    private static int integer(ByteBuffer block, int prefixBits) throws CompressionException {
+        int max = (1 << prefixBits) - 1;
+        int value = block.get() & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!block.hasRemaining()) {
+                throw new CompressionException("Integer cut off");
+            }
+            int b = block.get() & 0xff;
+            long sum = value + ((long) (b & 0x7f) << shift);
+            if (sum > Integer.MAX_VALUE) {
+                break;
+            }
+            value = (int) sum;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CompressionException("Integer too large");
+    }
+
+    /**
+     * Reads a string literal, Huffman coded or not, as ISO-8859-1 so every byte is kept.
+     */
+    private static String string(ByteBuffer block) throws CompressionException {
+        if (!block.hasRemaining()) {
+            throw new CompressionException("String cut off");
+        }
+        boolean huffman = (block.get(block.position()) & 0x80) != 0;
+        int length = integer(block, 7);
+        if (length > block.remaining()) {
+            throw new CompressionException("String longer than the block");
+        }
+        if (!huffman) {
+            String text = new String(block.array(), block.arrayOffset() + block.position(), length,
+                    StandardCharsets.ISO_8859_1);
+            block.position(block.position() + length);
+            return text;
+        }
+        // every symbol takes at least 5 bits
+        byte[] decoded = new byte[length * 8 / 5];
+        int count = 0;
+        int node = 0;
+        int bitsSinceSymbol = 0;
+        boolean allOnes = true;
+        for (int i = 0; i < length; i++) {
+            int b = block.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                node = huffmanTree[2 * node + one];
+                bitsSinceSymbol++;
+                allOnes &= one == 1;
+                if (node < 0) {
+                    int symbol = -node - 1;
+                    if (symbol == EOS) {
+                        throw new CompressionException("EOS in a Huffman string");
+                    }
+                    decoded[count++] = (byte) symbol;
+                    node = 0;
+                    bitsSinceSymbol = 0;
+                    allOnes = true;
+                }
+            }
+        }
+        // what is left must be a prefix of EOS, shorter than a byte
+        if (bitsSinceSymbol > 7 || !allOnes) {
+            throw new CompressionException("Bad Huffman padding");
+        }
+        return new String(decoded, 0, count, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,185 @@
+package lab11;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+import static lab11.Checks.*;
+
+/**
+ * Tests for Hpack, mostly with the examples of RFC 7541 Appendix C: every block is decoded with
+ * one decoder per connection, so the dynamic table has to follow along from block to block, and the
+ * responses of C.6 are encoded again byte for byte, as far as the encoder makes the same choices.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class HpackTest {
+
+    private final static HexFormat hex = HexFormat.of();
+
+    public static void main(String[] args) {
+        run("C.2.1 literal with indexing", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            equal(List.of("custom-key", "custom-header"),
+                    decode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572"));
+            // now the first entry of the dynamic table
+            equal(List.of("custom-key", "custom-header"), decode(decoder, "be"));
+        });
+        run("C.2.2 literal without indexing", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            equal(List.of(":path", "/sample/path"), decode(decoder, "040c2f73616d706c652f70617468"));
+            noEntry(decoder, "be");
+        });
+        run("C.2.3 never indexed", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            equal(List.of("password", "secret"), decode(decoder, "100870617373776f726406736563726574"));
+            noEntry(decoder, "be");
+        });
+        run("C.2.4 indexed from the static table", () ->
+                equal(List.of(":method", "GET"), decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "82")));
+        run("C.3 requests", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            equal(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                    decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+            equal(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                    "cache-control", "no-cache"), decode(decoder, "828684be58086e6f2d6361636865"));
+            equal(List.of(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                    ":authority", "www.example.com", "custom-key", "custom-value"),
+                    decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+        });
+        run("C.4 requests with Huffman", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            equal(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                    decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+            equal(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                    "cache-control", "no-cache"), decode(decoder, "828684be5886a8eb10649cbf"));
+            equal(List.of(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                    ":authority", "www.example.com", "custom-key", "custom-value"),
+                    decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+        });
+        run("C.5 responses, entries evicted from a 256 byte table", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(256);
+            for (int i = 0; i < 3; i++) {
+                equal(responses.get(i), decode(decoder, responsesPlain[i]));
+            }
+            // the table holds set-cookie, content-encoding and date, the rest was evicted
+            equal(List.of("date", "Mon, 21 Oct 2013 20:13:22 GMT"), decode(decoder, "c0"));
+            noEntry(decoder, "c1");
+        });
+        run("C.6 responses with Huffman", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(256);
+            for (int i = 0; i < 3; i++) {
+                equal(responses.get(i), decode(decoder, responsesHuffman[i]));
+            }
+            noEntry(decoder, "c1");
+        });
+        run("C.6 encoded again", () -> {
+            Hpack.Encoder encoder = new Hpack.Encoder();
+            encoder.setMaxTableSize(256);
+            for (int i = 0; i < 3; i++) {
+                List<String> fields = responses.get(i);
+                boolean[] indexed = new boolean[fields.size() / 2];
+                Arrays.fill(indexed, true);
+                // "307" is no shorter Huffman coded, so it goes out plain as in C.5
+                String expected = i == 1 ? responsesPlain[1] : responsesHuffman[i];
+                // the first block starts with the new table size, 256
+                expected = (i == 0 ? "3fe101" : "") + expected;
+                equal(expected, hex.formatHex(bytes(encoder.encode(fields, indexed))));
+            }
+        });
+        run("encoded and decoded again", () -> {
+            Hpack.Encoder encoder = new Hpack.Encoder();
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            List<String> fields = List.of(":status", "200", "content-type", "text/html", "x-binary", "\u00ff\u0001~",
+                    "etag", "\"17c9-1f\"", "x-long", "x".repeat(5000));
+            boolean[] indexed = {true, true, true, false, true};
+            for (int i = 0; i < 3; i++) {
+                List<String> decoded = new ArrayList<>();
+                decoder.decode(encoder.encode(fields, indexed), decoded);
+                equal(fields, decoded);
+            }
+        });
+        run("a smaller table is announced and kept to", () -> {
+            Hpack.Encoder encoder = new Hpack.Encoder();
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            List<String> fields = List.of("content-type", "text/html");
+            List<String> decoded = new ArrayList<>();
+            decoder.decode(encoder.encode(fields, new boolean[]{true}), decoded);
+            encoder.setMaxTableSize(0);
+            encoder.setMaxTableSize(100);
+            ByteBuffer block = encoder.encode(fields, new boolean[]{true});
+            // down to 0 first, which empties the table, then up to 100
+            equal("203f45", hex.formatHex(bytes(block)).substring(0, 6));
+            decoder.decode(block, decoded);
+            equal(List.of("content-type", "text/html", "content-type", "text/html"), decoded);
+        });
+        run("an entry larger than the table empties it", () -> {
+            Hpack.Decoder decoder = new Hpack.Decoder(64);
+            decode(decoder, "400161" + "0162");
+            equal(List.of("a", "b"), decode(decoder, "be"));
+            // 40 bytes of value and 32 of overhead do not fit in 64
+            decode(decoder, "400161" + "28" + "62".repeat(40));
+            noEntry(decoder, "be");
+        });
+        run("table size over the limit", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "3fe21f"));
+        run("table size update after a field", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "8220"));
+        run("integer too large", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "ffffffffffff7f"));
+        run("string longer than the block", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "4003616263"));
+        run("Huffman padding that is not EOS", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "00016181" + "00"));
+        run("Huffman padding longer than 7 bits", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "00016182" + "1fff"));
+        run("EOS in a Huffman string", () ->
+                compressionError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "00016184" + "ffffffff"));
+        done();
+    }
+
+    // RFC 7541 C.5 and C.6, three responses with a table of 256 bytes
+    private final static List<List<String>> responses = List.of(
+            List.of(":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                    "location", "https://www.example.com"),
+            List.of(":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+                    "location", "https://www.example.com"),
+            List.of(":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+                    "location", "https://www.example.com", "content-encoding", "gzip",
+                    "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"));
+    private final static String[] responsesPlain = {
+            "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+                    + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+            "4803333037c1c0bf",
+            "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d"
+                    + "4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076"
+                    + "657273696f6e3d31"};
+    private final static String[] responsesHuffman = {
+            "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b"
+                    + "97c8e9ae82ae43d3",
+            "4883640effc1c0bf",
+            "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdf"
+                    + "cd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"};
+
+    private static List<String> decode(Hpack.Decoder decoder, String block) throws Hpack.CompressionException {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(ByteBuffer.wrap(hex.parseHex(block)), fields);
+        return fields;
+    }
+
+    private static void noEntry(Hpack.Decoder decoder, String block) {
+        compressionError(decoder, block);
+    }
+
+    private static void compressionError(Hpack.Decoder decoder, String block) {
+        fails(() -> decode(decoder, block), Hpack.CompressionException.class);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
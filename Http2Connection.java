@@ -0,0 +1,1229 @@
+package lab11;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The HTTP/2 side (RFC 9113) of one connection of the NIO server. The event loop puts the bytes it
+ * reads in input() and calls receive, and writes whatever produce leaves in output(); this class
+ * never touches the socket, so plaintext and TLS connections share it.
+ * Every stream is one request. Its header block is decoded with the connection's HPACK decoder,
+ * turned into the same HttpRequest the HTTP/1.1 parser makes and answered by ReadRequest.route,
+ * so files, directory listings and error pages are the same for both protocols.
+ * Responses go out as frames of many streams at once. Control frames go first, then the heads of
+ * new responses, then DATA within the flow-control windows of the stream and of the connection.
+ * Which stream gets the next DATA frame follows the client's priorities: the urgency of the
+ * Priority header (RFC 9218) first, then the dependency tree of PRIORITY frames (RFC 7540), where
+ * a stream waits while its parent can send and siblings share by weight in a deficit round robin.
+ * A request body is collected until END_STREAM and then routed with its request; one over
+ * server.maxBodySize is answered with a 413 and the rest of it is dropped, and so is the body of a
+ * request that is refused by admission control or has no route that takes it (see Routes.takesBody). The window is opened
+ * again as the body arrives, the limit is what keeps a stream in bounds. The answer of an async
+ * handler comes back through the executor of the connection, the event loop, and the stream's head
+ * goes out from there.
+ * A client cannot make the connection do unbounded work: after server.maxRequests streams, the
+ * same limit as for HTTP/1.1 keep-alive, it gets GOAWAY and has to open a new connection. A client
+ * that resets many of its streams while they are being answered (CVE-2023-44487, rapid reset) or
+ * piles up PING and SETTINGS frames without reading the answers gets GOAWAY with ENHANCE_YOUR_CALM.
+ * Settings: server.h2MaxStreams (concurrent streams per connection).
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Http2Connection {
+
+    private final static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] SWITCHING = ("HTTP/1.1 101 Switching Protocols\r\n" +
+            "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final static int FRAME_HEADER = 9;
+    private final static int MAX_FRAME_SIZE = 16384;
+    private final static int DEFAULT_WINDOW = 65535;
+    private final static int MAX_WINDOW = Integer.MAX_VALUE;
+    private final static int MAX_STREAMS = Integer.getInteger("server.h2MaxStreams", 100);
+    private final static int MAX_HEADER_BLOCK = 4 * HttpRequest.MAX_HEAD_SIZE;
+    private final static int OUTPUT_SIZE = 64 * 1024;
+    // a response head has to fit in the output buffer at once
+    private final static int HEADERS_ROOM = 8 * 1024;
+    // DATA frames smaller than this wait for a fresh output buffer
+    private final static int MIN_DATA = 1024;
+    // bytes a stream of weight 1 may send per round
+    private final static int QUANTUM = 1024;
+    // streams a client may reset while they are answered, before resets have to stay under half of them
+    private final static int RESET_ALLOWANCE = 20;
+    // control frames waiting to be written, acknowledgements and resets mostly
+    private final static int MAX_CONTROL_FRAMES = 1024;
+
+    private final static int DATA = 0;
+    private final static int HEADERS = 1;
+    private final static int PRIORITY = 2;
+    private final static int RST_STREAM = 3;
+    private final static int SETTINGS = 4;
+    private final static int PUSH_PROMISE = 5;
+    private final static int PING = 6;
+    private final static int GOAWAY = 7;
+    private final static int WINDOW_UPDATE = 8;
+    private final static int CONTINUATION = 9;
+
+    private final static int FLAG_END_STREAM = 0x1;
+    private final static int FLAG_ACK = 0x1;
+    private final static int FLAG_END_HEADERS = 0x4;
+    private final static int FLAG_PADDED = 0x8;
+    private final static int FLAG_PRIORITY = 0x20;
+
+    private final static int NO_ERROR = 0x0;
+    private final static int PROTOCOL_ERROR = 0x1;
+    private final static int FLOW_CONTROL_ERROR = 0x3;
+    private final static int STREAM_CLOSED = 0x5;
+    private final static int FRAME_SIZE_ERROR = 0x6;
+    private final static int REFUSED_STREAM = 0x7;
+    private final static int COMPRESSION_ERROR = 0x9;
+    private final static int ENHANCE_YOUR_CALM = 0xb;
+
+    private final static int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private final static int SETTINGS_ENABLE_PUSH = 0x2;
+    private final static int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private final static int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private final static int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private final static int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // not allowed in HTTP/2 requests
+    private final static Set<String> connectionHeaders =
+            Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    // response headers that differ for every file, not worth a place in the dynamic table
+    private final static Set<String> unindexed =
+            Set.of("content-length", "etag", "last-modified", "content-range", "date");
+
+    private final static LongAdder connections = new LongAdder();
+    private final static LongAdder streamCount = new LongAdder();
+
+    /**
+     * A protocol error, for one stream or, with stream 0, for the whole connection.
+     */
+    private static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+        final int streamId;
+
+        Http2Exception(int code, int streamId, String message) {
+            super(message);
+            this.code = code;
+            this.streamId = streamId;
+        }
+    }
+
+    /**
+     * One request and its response, with how far the response has been sent.
+     */
+    private static class Stream {
+        final int id;
+        int sendWindow;
+        int receiveWindow = DEFAULT_WINDOW;
+        boolean remoteClosed;
+        // RFC 7540 priority
+        int dependency;
+        int weight = 16;
+        // RFC 9218 urgency, 0 is the most urgent
+        int urgency = 3;
+        long credit;
+
+        HttpResponse response;
+        boolean headersSent;
+        ByteBuffer[] body;
+        int part;
+        FileChannel file;
+        long filePosition;
+        long fileEnd;
+
+        // a request whose body is still coming in
+        HttpRequest request;
+        byte[] requestBody;
+        int requestBodyLength;
+        long declaredLength = -1;
+
+        String requestLine;
+        long started;
+        long routed;
+        int stage = Metrics.SEND;
+
+        Stream(int id, int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        long remaining() {
+            long remaining = file != null ? fileEnd - filePosition : 0;
+            if (body != null) {
+                for (int i = part; i < body.length; i++) {
+                    remaining += body[i].remaining();
+                }
+            }
+            return remaining;
+        }
+
+        void close() {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // read only, nothing lost
+            }
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    private final InetAddress remote;
+    // runs the answers of async handlers on the thread that owns this connection
+    private final Executor executor;
+    // bytes from the client in fill mode, room for the largest frame we allow
+    private final ByteBuffer input = ByteBuffer.allocate(2 * (FRAME_HEADER + MAX_FRAME_SIZE));
+    // frames for the client in read mode, a pooled direct buffer until the connection is closed
+    private ByteBuffer output = BufferPool.shared().acquire(OUTPUT_SIZE).flip();
+    private final ArrayDeque<byte[]> control = new ArrayDeque<>();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    // open streams by id, so new heads and equal turns go out in the order of the requests
+    private final TreeMap<Integer, Stream> streams = new TreeMap<>();
+    private boolean prefaceReceived;
+    private int lastStreamId;
+    private int served;
+    // streams the client reset before their answer was out
+    private int resets;
+    private int connectionWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private int maxFrameSize = MAX_FRAME_SIZE;
+    private int receiveWindow = DEFAULT_WINDOW;
+    // a header block waiting for its CONTINUATION frames
+    private ByteBuffer headerBlock;
+    private int headerStream;
+    private int headerFlags;
+    private boolean goingAway;
+    // after a connection error, nothing more is read
+    private boolean failed;
+    private boolean peerGoingAway;
+    // when the first bytes of a frame that is not complete yet arrived, 0 when there are none
+    private long frameStarted;
+
+    /**
+     * @param remote address of the client, for admission control and the access log
+     * @param executor runs a task on the thread that calls receive and produce, and then produces
+     */
+    public Http2Connection(InetAddress remote, Executor executor) {
+        this.remote = remote;
+        this.executor = executor;
+    }
+
+    /**
+     * @param in bytes read from a new plaintext connection, in fill mode
+     * @return 1 when they start with the HTTP/2 connection preface, 0 when they could still turn
+     * into it, -1 when they cannot
+     */
+    public static int preface(ByteBuffer in) {
+        int length = Math.min(in.position(), PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (in.get(i) != PREFACE[i]) {
+                return -1;
+            }
+        }
+        return length == PREFACE.length ? 1 : 0;
+    }
+
+    /**
+     * @param request an HTTP/1.1 request
+     * @return true for a request without a body that asks to continue in HTTP/2 without TLS
+     */
+    public static boolean upgradeRequested(HttpRequest request) {
+        return request.headerHasToken("upgrade", "h2c") && request.headerHasToken("connection", "upgrade")
+                && request.headerHasToken("connection", "http2-settings") && request.header("http2-settings") != null
+                && request.method().equals("GET") && request.header("transfer-encoding") == null
+                && (request.header("content-length") == null || request.header("content-length").trim().equals("0"));
+    }
+
+    /**
+     * Starts the connection after the preface or after ALPN chose h2: our SETTINGS go first.
+     * @param received bytes that were already read, in fill mode; they are moved to input()
+     */
+    public void start(ByteBuffer received) {
+        connections.increment();
+        control.add(settingsFrame());
+        input.put(received.flip());
+        received.clear();
+    }
+
+    /**
+     * Starts the connection from an HTTP/1.1 request with Upgrade: h2c. The 101 goes out first,
+     * then our SETTINGS, and the request becomes stream 1, already closed on the client's side.
+     * @param request
+     * @param started when parsing the request began, from System.nanoTime
+     * @param received what came after the request, in fill mode; it is moved to input()
+     * @param headEnd where the request ends in received
+     * @return false when the HTTP2-Settings header cannot be decoded, nothing is changed then
+     */
+    public boolean upgrade(HttpRequest request, long started, ByteBuffer received, int headEnd) {
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(request.header("http2-settings").trim());
+            // a 101 is acknowledgement enough, no SETTINGS frame with ACK is sent for these
+            settings(ByteBuffer.wrap(settings));
+        } catch (IllegalArgumentException | Http2Exception e) {
+            return false;
+        }
+        connections.increment();
+        control.add(SWITCHING);
+        control.add(settingsFrame());
+        received.flip().position(headEnd);
+        input.put(received);
+        received.clear();
+        prefaceReceived = false;
+        lastStreamId = 1;
+        Stream stream = new Stream(1, initialWindow);
+        stream.remoteClosed = true;
+        streams.put(1, stream);
+        streamCount.increment();
+        countRequest();
+        stream.started = started;
+        long parsed = System.nanoTime();
+        ReadRequest.metrics.record(Metrics.PARSE, parsed - started);
+        respond(stream, request, request.requestLine(), admitted());
+        return true;
+    }
+
+    private static byte[] settingsFrame() {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 3 * 6);
+        frameHeader(frame, 3 * 6, SETTINGS, 0, 0);
+        frame.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_STREAMS);
+        frame.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(HttpRequest.MAX_HEAD_SIZE);
+        frame.putShort((short) SETTINGS_HEADER_TABLE_SIZE).putInt(Hpack.DEFAULT_TABLE_SIZE);
+        return frame.array();
+    }
+
+    /**
+     * @return the buffer the event loop reads into, in fill mode
+     */
+    public ByteBuffer input() {
+        return input;
+    }
+
+    /**
+     * @return the frames to write, in read mode; produce fills it again once it is empty
+     */
+    public ByteBuffer output() {
+        return output;
+    }
+
+    /**
+     * Handles every complete frame in input().
+     */
+    public void receive() {
+        input.flip();
+        try {
+            if (!prefaceReceived) {
+                int length = Math.min(input.remaining(), PREFACE.length);
+                for (int i = 0; i < length; i++) {
+                    if (input.get(input.position() + i) != PREFACE[i]) {
+                        throw new Http2Exception(PROTOCOL_ERROR, 0, "No connection preface");
+                    }
+                }
+                if (length < PREFACE.length) {
+                    return;
+                }
+                input.position(input.position() + PREFACE.length);
+                prefaceReceived = true;
+            }
+            while (!failed && input.remaining() >= FRAME_HEADER) {
+                int start = input.position();
+                int length = (input.getShort(start) & 0xffff) << 8 | (input.get(start + 2) & 0xff);
+                if (length > MAX_FRAME_SIZE) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Frame of " + length + " bytes");
+                }
+                if (input.remaining() < FRAME_HEADER + length) {
+                    break;
+                }
+                int type = input.get(start + 3) & 0xff;
+                int flags = input.get(start + 4) & 0xff;
+                int streamId = input.getInt(start + 5) & 0x7fffffff;
+                ByteBuffer payload = input.slice(start + FRAME_HEADER, length);
+                input.position(start + FRAME_HEADER + length);
+                try {
+                    frame(type, flags, streamId, payload);
+                } catch (Http2Exception e) {
+                    if (e.streamId == 0) {
+                        throw e;
+                    }
+                    reset(e.streamId, e.code);
+                }
+                if (control.size() > MAX_CONTROL_FRAMES) {
+                    // the client does not read what it asks for, its acknowledgements are dropped
+                    control.clear();
+                    throw new Http2Exception(ENHANCE_YOUR_CALM, 0, "More than " + MAX_CONTROL_FRAMES
+                            + " control frames waiting");
+                }
+            }
+        } catch (Http2Exception e) {
+            ReadRequest.accessLog.message("HTTP/2 connection error from " + remote.getHostAddress() + ": "
+                    + e.getMessage());
+            goAway(e.code);
+        } finally {
+            input.compact();
+        }
+        if (input.position() == 0) {
+            frameStarted = 0;
+        } else if (frameStarted == 0) {
+            frameStarted = System.currentTimeMillis();
+        }
+    }
+
+    private void frame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (headerBlock != null && (type != CONTINUATION || streamId != headerStream)) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Header block interrupted");
+        }
+        switch (type) {
+            case DATA -> data(flags, streamId, payload);
+            case HEADERS -> headers(flags, streamId, payload);
+            case PRIORITY -> {
+                requireStream(streamId);
+                if (payload.remaining() != 5) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, streamId, "PRIORITY of " + payload.remaining());
+                }
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    prioritize(stream, payload.getInt(), payload.get() & 0xff);
+                }
+            }
+            case RST_STREAM -> {
+                requireStream(streamId);
+                if (payload.remaining() != 4) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, 0, "RST_STREAM of " + payload.remaining());
+                }
+                if (streamId > lastStreamId) {
+                    throw new Http2Exception(PROTOCOL_ERROR, 0, "RST_STREAM on idle stream " + streamId);
+                }
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    remove(stream);
+                    resets++;
+                    if (resets > RESET_ALLOWANCE && resets > served / 2) {
+                        throw new Http2Exception(ENHANCE_YOUR_CALM, 0, resets + " streams reset of " + served);
+                    }
+                }
+            }
+            case SETTINGS -> {
+                requireConnection(streamId);
+                if ((flags & FLAG_ACK) != 0) {
+                    if (payload.hasRemaining()) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS ACK with a payload");
+                    }
+                    return;
+                }
+                settings(payload);
+                ByteBuffer ack = ByteBuffer.allocate(FRAME_HEADER);
+                frameHeader(ack, 0, SETTINGS, FLAG_ACK, 0);
+                control.add(ack.array());
+            }
+            case PUSH_PROMISE -> throw new Http2Exception(PROTOCOL_ERROR, 0, "PUSH_PROMISE from a client");
+            case PING -> {
+                requireConnection(streamId);
+                if (payload.remaining() != 8) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, 0, "PING of " + payload.remaining());
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    ByteBuffer pong = ByteBuffer.allocate(FRAME_HEADER + 8);
+                    frameHeader(pong, 8, PING, FLAG_ACK, 0);
+                    pong.put(payload);
+                    control.add(pong.array());
+                }
+            }
+            case GOAWAY -> {
+                requireConnection(streamId);
+                // the streams we have are answered, then the connection is closed
+                peerGoingAway = true;
+            }
+            case WINDOW_UPDATE -> windowUpdate(streamId, payload);
+            case CONTINUATION -> {
+                if (headerBlock == null) {
+                    throw new Http2Exception(PROTOCOL_ERROR, 0, "CONTINUATION without HEADERS");
+                }
+                if (headerBlock.remaining() < payload.remaining()) {
+                    throw new Http2Exception(ENHANCE_YOUR_CALM, 0, "Header block over " + MAX_HEADER_BLOCK);
+                }
+                headerBlock.put(payload);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    ByteBuffer block = headerBlock.flip();
+                    headerBlock = null;
+                    headerBlock(headerFlags, headerStream, block);
+                }
+            }
+            default -> {
+                // unknown frame types are ignored
+            }
+        }
+    }
+
+    private static void requireStream(int streamId) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Frame needs a stream");
+        }
+    }
+
+    private static void requireConnection(int streamId) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Frame is for the connection, not a stream");
+        }
+    }
+
+    /**
+     * @return the payload without its padding
+     */
+    private static ByteBuffer unpadded(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return payload;
+        }
+        if (!payload.hasRemaining()) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Padded frame without a padding length");
+        }
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding longer than the frame");
+        }
+        return payload.limit(payload.limit() - padding);
+    }
+
+    private void settings(ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS of " + payload.remaining());
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, 0, "ENABLE_PUSH " + value);
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value > MAX_WINDOW) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "INITIAL_WINDOW_SIZE " + value);
+                    }
+                    int delta = (int) value - initialWindow;
+                    for (Stream stream : streams.values()) {
+                        if ((long) stream.sendWindow + delta > MAX_WINDOW) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Window of stream " + stream.id);
+                        }
+                        stream.sendWindow += delta;
+                    }
+                    initialWindow = (int) value;
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(PROTOCOL_ERROR, 0, "MAX_FRAME_SIZE " + value);
+                    }
+                    maxFrameSize = (int) value;
+                }
+                default -> {
+                    // the others limit what a client receives from a server, or are unknown
+                }
+            }
+        }
+    }
+
+    private void data(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        requireStream(streamId);
+        // the whole frame counts, padding included
+        int length = payload.remaining();
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "DATA over the connection window");
+        }
+        if (receiveWindow < DEFAULT_WINDOW / 2) {
+            // the body is bounded per stream, so the client may send more
+            control.add(windowUpdateFrame(0, DEFAULT_WINDOW - receiveWindow));
+            receiveWindow = DEFAULT_WINDOW;
+        }
+        ByteBuffer content = unpadded(flags, payload);
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on idle stream " + streamId);
+            }
+            return; // still on its way when we answered or reset the stream
+        }
+        if (stream.remoteClosed) {
+            throw new Http2Exception(STREAM_CLOSED, streamId, "DATA after END_STREAM on " + streamId);
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "DATA over the window of " + streamId);
+        }
+        if (stream.request != null) {
+            collect(stream, content);
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            if (stream.request != null) {
+                bodyComplete(stream);
+            }
+        } else if (stream.receiveWindow < DEFAULT_WINDOW / 2) {
+            control.add(windowUpdateFrame(streamId, DEFAULT_WINDOW - stream.receiveWindow));
+            stream.receiveWindow = DEFAULT_WINDOW;
+        }
+    }
+
+    private void headers(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        requireStream(streamId);
+        if (streamId % 2 == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "Even stream " + streamId + " from a client");
+        }
+        ByteBuffer fragment = unpadded(flags, payload);
+        int dependency = 0;
+        int weight = -1;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (fragment.remaining() < 5) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, 0, "HEADERS too short for its priority");
+            }
+            dependency = fragment.getInt();
+            weight = fragment.get() & 0xff;
+        }
+        if (streamId > lastStreamId) {
+            lastStreamId = streamId;
+            Stream stream = new Stream(streamId, initialWindow);
+            stream.started = System.nanoTime();
+            if (weight >= 0) {
+                prioritize(stream, dependency, weight);
+            }
+            streams.put(streamId, stream);
+            streamCount.increment();
+        } else if (!streams.containsKey(streamId)) {
+            throw new Http2Exception(STREAM_CLOSED, 0, "HEADERS on closed stream " + streamId);
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            headerBlock(flags, streamId, fragment);
+        } else {
+            headerBlock = ByteBuffer.allocate(MAX_HEADER_BLOCK);
+            if (fragment.remaining() > headerBlock.remaining()) {
+                throw new Http2Exception(ENHANCE_YOUR_CALM, 0, "Header block over " + MAX_HEADER_BLOCK);
+            }
+            headerBlock.put(fragment);
+            headerStream = streamId;
+            headerFlags = flags;
+        }
+    }
+
+    /**
+     * A complete header block: a new request, or the trailers of one that sent a body.
+     */
+    private void headerBlock(int flags, int streamId, ByteBuffer block) throws Http2Exception {
+        List<String> fields = new ArrayList<>();
+        int listSize;
+        try {
+            listSize = decoder.decode(block, fields);
+        } catch (Hpack.CompressionException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, 0, e.getMessage());
+        }
+        Stream stream = streams.get(streamId);
+        if (stream.requestLine != null) {
+            if (stream.remoteClosed || (flags & FLAG_END_STREAM) == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Second header block on " + streamId);
+            }
+            stream.remoteClosed = true; // trailers, dropped
+            if (stream.request != null) {
+                bodyComplete(stream);
+            }
+            return;
+        }
+        stream.remoteClosed = (flags & FLAG_END_STREAM) != 0;
+        if (goingAway) {
+            remove(stream);
+            return;
+        }
+        if (streams.size() > MAX_STREAMS) {
+            remove(stream);
+            throw new Http2Exception(REFUSED_STREAM, streamId, "More than " + MAX_STREAMS + " streams");
+        }
+        request(stream, fields, listSize);
+    }
+
+    /**
+     * Checks the fields of a request, writes them as an HTTP/1.1 head for the HttpRequest parser
+     * and routes it.
+     */
+    private void request(Stream stream, List<String> fields, int listSize) throws Http2Exception {
+        String method = null;
+        String path = null;
+        String authority = null;
+        String scheme = null;
+        boolean regular = false;
+        StringBuilder headers = new StringBuilder();
+        StringBuilder cookies = null;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\0') >= 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Line break in the value of " + name);
+            }
+            if (name.startsWith(":")) {
+                if (regular) {
+                    throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Pseudo-header after the headers");
+                }
+                switch (name) {
+                    case ":method" -> method = once(method, value, stream);
+                    case ":path" -> path = once(path, value, stream);
+                    case ":authority" -> authority = once(authority, value, stream);
+                    case ":scheme" -> scheme = once(scheme, value, stream);
+                    default -> throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Unknown pseudo-header " + name);
+                }
+                continue;
+            }
+            regular = true;
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || connectionHeaders.contains(name)
+                    || (name.equals("te") && !value.equals("trailers"))) {
+                throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Header " + name + " is not allowed");
+            }
+            if (name.equals("cookie")) {
+                // a client may split the cookies over several fields
+                cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                continue;
+            }
+            if (name.equals("host") && authority != null) {
+                continue;
+            }
+            if (name.equals("priority")) {
+                stream.urgency = urgency(value, stream.urgency);
+            }
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || scheme == null || path.isEmpty()) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Request without :method, :scheme or :path");
+        }
+        String head = method + " " + path + " HTTP/1.1\r\n"
+                + (authority != null ? "host: " + authority + "\r\n" : "")
+                + headers
+                + (cookies != null ? "cookie: " + cookies + "\r\n" : "")
+                + "\r\n";
+        String requestLine = method + " " + path + " HTTP/2.0";
+        countRequest();
+        HttpRequest request = new HttpRequest();
+        byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            if (listSize > HttpRequest.MAX_HEAD_SIZE || !request.parse(bytes, bytes.length)) {
+                throw new HttpRequest.BadRequestException("Header list too large");
+            }
+        } catch (HttpRequest.BadRequestException e) {
+            stream.stage = Metrics.ERROR;
+            stream.requestLine = requestLine;
+            answer(stream, ReadRequest.errorResponse(400));
+            return;
+        }
+        ReadRequest.metrics.record(Metrics.PARSE, System.nanoTime() - stream.started);
+        if (!stream.remoteClosed) {
+            stream.requestLine = requestLine;
+            try {
+                stream.declaredLength = request.contentLength();
+            } catch (HttpRequest.BadRequestException e) {
+                throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Malformed content-length");
+            }
+            if (stream.declaredLength > RequestBody.MAX_BODY_SIZE) {
+                answer(stream, ReadRequest.errorResponse(413));
+                return;
+            }
+            boolean admitted = admitted();
+            if (!admitted || !ReadRequest.routes.takesBody(request)) {
+                // answered right away, the body is dropped as it arrives
+                respond(stream, request, requestLine, admitted);
+                return;
+            }
+            // routed once the body is complete
+            stream.request = request;
+            stream.requestBody = RequestBody.firstBuffer(stream.declaredLength);
+            return;
+        }
+        respond(stream, request, requestLine, admitted());
+    }
+
+    /**
+     * Adds DATA to the body of a request. A body over server.maxBodySize is answered with a 413
+     * and the rest of it is dropped.
+     */
+    private void collect(Stream stream, ByteBuffer content) throws Http2Exception {
+        int length = stream.requestBodyLength + content.remaining();
+        if (stream.declaredLength >= 0 && length > stream.declaredLength) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "More DATA than the content-length on " + stream.id);
+        }
+        if (length > RequestBody.MAX_BODY_SIZE) {
+            stream.request = null;
+            stream.requestBody = null;
+            answer(stream, ReadRequest.errorResponse(413));
+            return;
+        }
+        stream.requestBody = RequestBody.grow(stream.requestBody, length, RequestBody.MAX_BODY_SIZE);
+        content.get(stream.requestBody, stream.requestBodyLength, content.remaining());
+        stream.requestBodyLength = length;
+    }
+
+    private void bodyComplete(Stream stream) throws Http2Exception {
+        if (stream.declaredLength >= 0 && stream.requestBodyLength != stream.declaredLength) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Less DATA than the content-length on " + stream.id);
+        }
+        HttpRequest request = stream.request;
+        request.body(RequestBody.of(stream.requestBody, stream.requestBodyLength));
+        stream.request = null;
+        stream.requestBody = null;
+        respond(stream, request, stream.requestLine, true);
+    }
+
+    /**
+     * The request that reaches server.maxRequests is the last one: it is answered, and GOAWAY
+     * tells the client to open a new connection for the next.
+     */
+    private void countRequest() {
+        served++;
+        if (served >= ReadRequest.MAX_REQUESTS) {
+            goAway(NO_ERROR);
+        }
+    }
+
+    private static String once(String previous, String value, Stream stream) throws Http2Exception {
+        if (previous != null) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Pseudo-header sent twice");
+        }
+        return value;
+    }
+
+    /**
+     * @param value a Priority header, for example "u=1, i"
+     * @param urgency what it is without the header
+     * @return the urgency it asks for
+     */
+    private static int urgency(String value, int urgency) {
+        for (String parameter : value.split(",")) {
+            parameter = parameter.trim();
+            if (parameter.length() == 3 && parameter.startsWith("u=")
+                    && parameter.charAt(2) >= '0' && parameter.charAt(2) <= '7') {
+                return parameter.charAt(2) - '0';
+            }
+        }
+        return urgency;
+    }
+
+    private boolean admitted() {
+        // the first request is paid for by the token the connection took
+        return served == 1 || ReadRequest.admission.allowRequest(remote);
+    }
+
+    /**
+     * @param admitted false to answer with a 429
+     */
+    private void respond(Stream stream, HttpRequest request, String requestLine, boolean admitted) {
+        long parsed = System.nanoTime();
+        HttpResponse response;
+        if (admitted) {
+            try {
+                response = ReadRequest.route(request);
+            } catch (Exception e) {
+                ReadRequest.accessLog.message("Error while communicating with client: " + e);
+                response = ReadRequest.errorResponse(500);
+            }
+        } else {
+            response = ReadRequest.errorResponse(AdmissionControl.TOO_MANY_REQUESTS);
+        }
+        stream.requestLine = requestLine;
+        CompletableFuture<HttpResponse> later = response.later();
+        if (later != null) {
+            later.whenComplete((result, error) -> executor.execute(
+                    () -> completed(stream, Routes.outcome(result, error), parsed)));
+            return;
+        }
+        answer(stream, response);
+        ReadRequest.metrics.record(Metrics.LOOKUP, stream.routed - parsed);
+    }
+
+    /**
+     * Answers a stream once its async handler is done, unless the stream was reset in the meantime.
+     */
+    private void completed(Stream stream, HttpResponse response, long parsed) {
+        if (streams.get(stream.id) != stream) {
+            response.release();
+            return;
+        }
+        answer(stream, response);
+        ReadRequest.metrics.record(Metrics.LOOKUP, stream.routed - parsed);
+    }
+
+    private void answer(Stream stream, HttpResponse response) {
+        if (response.file() != null) {
+            try {
+                stream.file = FileChannel.open(response.file().toPath(), StandardOpenOption.READ);
+                stream.filePosition = response.fileStart();
+                stream.fileEnd = response.fileEnd();
+            } catch (IOException e) {
+                response = ReadRequest.errorResponse(500);
+            }
+        }
+        stream.response = response;
+        stream.body = response.body();
+        stream.routed = System.nanoTime();
+    }
+
+    /**
+     * Applies an RFC 7540 priority: a dependency with its exclusive bit, and the weight minus one.
+     */
+    private void prioritize(Stream stream, int dependencyField, int weightField) throws Http2Exception {
+        int dependency = dependencyField & 0x7fffffff;
+        boolean exclusive = dependencyField < 0;
+        if (dependency == stream.id) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Stream " + stream.id + " depends on itself");
+        }
+        // a parent that depends on this stream moves up to take its place first
+        Stream ancestor = streams.get(dependency);
+        for (int depth = 0; ancestor != null && depth < streams.size(); depth++) {
+            if (ancestor.dependency == stream.id) {
+                ancestor.dependency = stream.dependency;
+                break;
+            }
+            ancestor = streams.get(ancestor.dependency);
+        }
+        if (exclusive) {
+            for (Stream other : streams.values()) {
+                if (other.dependency == dependency && other != stream) {
+                    other.dependency = stream.id;
+                }
+            }
+        }
+        stream.dependency = dependency;
+        stream.weight = weightField + 1;
+    }
+
+    private void windowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "WINDOW_UPDATE of " + payload.remaining());
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+        }
+        if (streamId == 0) {
+            if ((long) connectionWindow + increment > MAX_WINDOW) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Connection window over 2^31-1");
+            }
+            connectionWindow += increment;
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, 0, "WINDOW_UPDATE on idle stream " + streamId);
+            }
+            return; // a stream we finished a moment ago
+        }
+        if ((long) stream.sendWindow + increment > MAX_WINDOW) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Window of stream " + streamId + " over 2^31-1");
+        }
+        stream.sendWindow += increment;
+    }
+
+    private static ByteBuffer frameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        return buffer.put((byte) (length >>> 16)).putShort((short) length).put((byte) type).put((byte) flags)
+                .putInt(streamId);
+    }
+
+    private static byte[] windowUpdateFrame(int streamId, int increment) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 4);
+        frameHeader(frame, 4, WINDOW_UPDATE, 0, streamId);
+        return frame.putInt(increment).array();
+    }
+
+    private void reset(int streamId, int code) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 4);
+        frameHeader(frame, 4, RST_STREAM, 0, streamId);
+        control.add(frame.putInt(code).array());
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            remove(stream);
+        }
+    }
+
+    /**
+     * Sends GOAWAY without an error, when the server stops: the streams that are open are answered,
+     * new ones are not.
+     * @return false when GOAWAY was sent already
+     */
+    public boolean drain() {
+        if (goingAway) {
+            return false;
+        }
+        goAway(NO_ERROR);
+        return true;
+    }
+
+    /**
+     * Sends GOAWAY. After an error nothing else is sent and the connection is closed once it is out;
+     * without one the open streams go on, and so does flow control for them.
+     */
+    private void goAway(int code) {
+        if (failed || goingAway && code == NO_ERROR) {
+            return;
+        }
+        goingAway = true;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 8);
+        frameHeader(frame, 8, GOAWAY, 0, 0);
+        control.add(frame.putInt(lastStreamId).putInt(code).array());
+        if (code != NO_ERROR) {
+            failed = true;
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                remove(stream);
+            }
+        }
+    }
+
+    /**
+     * The children of a stream that ends move up to its parent.
+     */
+    private void remove(Stream stream) {
+        stream.close();
+        streams.remove(stream.id);
+        for (Stream other : streams.values()) {
+            if (other.dependency == stream.id) {
+                other.dependency = stream.dependency;
+            }
+        }
+    }
+
+    /**
+     * Fills output() with the next frames, when it is empty.
+     * @return true when there is something to write
+     * @throws IOException when a file cannot be read
+     */
+    public boolean produce() throws IOException {
+        if (output.hasRemaining()) {
+            return true;
+        }
+        output.clear();
+        try {
+            while (!control.isEmpty() && output.remaining() >= control.peek().length) {
+                output.put(control.poll());
+            }
+            if (!control.isEmpty() || goingAway && streams.isEmpty()) {
+                return output.position() > 0;
+            }
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                if (stream.response != null && !stream.headersSent) {
+                    if (output.remaining() < HEADERS_ROOM) {
+                        break;
+                    }
+                    sendHeaders(stream);
+                }
+            }
+            sendData();
+        } finally {
+            output.flip();
+        }
+        return output.hasRemaining();
+    }
+
+    private void sendHeaders(Stream stream) {
+        HttpResponse response = stream.response;
+        List<String> responseFields = response.headerFields();
+        List<String> fields = new ArrayList<>(responseFields.size() + 2);
+        fields.add(":status");
+        fields.add(response.status().substring(0, 3));
+        fields.addAll(responseFields);
+        boolean[] indexed = new boolean[fields.size() / 2];
+        for (int i = 0; i < indexed.length; i++) {
+            indexed[i] = !unindexed.contains(fields.get(2 * i));
+        }
+        ByteBuffer block = encoder.encode(fields, indexed);
+        boolean endStream = stream.remaining() == 0;
+        int type = HEADERS;
+        do {
+            int length = Math.min(block.remaining(), maxFrameSize);
+            boolean last = length == block.remaining();
+            int flags = (last ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+            frameHeader(output, length, type, flags, stream.id);
+            output.put(block.slice(block.position(), length));
+            block.position(block.position() + length);
+            type = CONTINUATION;
+        } while (block.hasRemaining());
+        stream.headersSent = true;
+        if (endStream) {
+            complete(stream);
+        }
+    }
+
+    /**
+     * Sends DATA frames, one at a time to the stream whose turn it is, until the output buffer or
+     * the connection window is full or no stream can send.
+     */
+    private void sendData() throws IOException {
+        List<Stream> ready = new ArrayList<>();
+        while (connectionWindow > 0 && output.remaining() >= FRAME_HEADER + MIN_DATA) {
+            ready.clear();
+            int urgency = Integer.MAX_VALUE;
+            for (Stream stream : streams.values()) {
+                if (sendable(stream) && !parentSending(stream)) {
+                    if (stream.urgency < urgency) {
+                        ready.clear();
+                        urgency = stream.urgency;
+                    }
+                    if (stream.urgency == urgency) {
+                        ready.add(stream);
+                    }
+                }
+            }
+            if (ready.isEmpty()) {
+                return;
+            }
+            Stream next = null;
+            for (Stream stream : ready) {
+                if (stream.credit > 0) {
+                    next = stream;
+                    break;
+                }
+            }
+            if (next == null) {
+                for (Stream stream : ready) {
+                    stream.credit += (long) stream.weight * QUANTUM;
+                }
+                next = ready.get(0);
+            }
+            sendFrame(next);
+        }
+    }
+
+    private boolean sendable(Stream stream) {
+        return stream.headersSent && stream.sendWindow > 0 && stream.remaining() > 0;
+    }
+
+    private boolean parentSending(Stream stream) {
+        Stream parent = streams.get(stream.dependency);
+        for (int depth = 0; parent != null && depth < streams.size(); depth++) {
+            if (sendable(parent)) {
+                return true;
+            }
+            parent = streams.get(parent.dependency);
+        }
+        return false;
+    }
+
+    private void sendFrame(Stream stream) throws IOException {
+        long remaining = stream.remaining();
+        int length = (int) Math.min(Math.min(remaining, stream.credit),
+                Math.min(Math.min(maxFrameSize, stream.sendWindow),
+                        Math.min(connectionWindow, output.remaining() - FRAME_HEADER)));
+        boolean last = length == remaining;
+        frameHeader(output, length, DATA, last ? FLAG_END_STREAM : 0, stream.id);
+        int end = output.position() + length;
+        while (output.position() < end && stream.body != null && stream.part < stream.body.length) {
+            ByteBuffer part = stream.body[stream.part];
+            int take = Math.min(part.remaining(), end - output.position());
+            output.put(part.slice(part.position(), take));
+            part.position(part.position() + take);
+            if (!part.hasRemaining()) {
+                stream.part++;
+            }
+        }
+        while (output.position() < end) {
+            int read = stream.file.read(output.slice(output.position(), end - output.position()), stream.filePosition);
+            if (read < 0) {
+                throw new IOException("File got shorter while sending it");
+            }
+            stream.filePosition += read;
+            output.position(output.position() + read);
+        }
+        stream.sendWindow -= length;
+        connectionWindow -= length;
+        stream.credit -= length;
+        if (last) {
+            complete(stream);
+        }
+    }
+
+    private void complete(Stream stream) {
+        long sent = System.nanoTime();
+        long nanos = sent - stream.started;
+        ReadRequest.metrics.record(stream.stage, sent - stream.routed);
+        ReadRequest.metrics.request(stream.response, nanos);
+        ReadRequest.accessLog.request(remote, stream.requestLine, stream.response, nanos);
+        if (!stream.remoteClosed) {
+            // the answer is complete, the rest of the body is not needed
+            reset(stream.id, NO_ERROR);
+        } else {
+            remove(stream);
+        }
+    }
+
+    /**
+     * @return true when no response is waiting to be sent
+     */
+    public boolean idle() {
+        return streams.isEmpty() && control.isEmpty() && !output.hasRemaining();
+    }
+
+    /**
+     * @return true once the connection can be closed: after GOAWAY from either side, with
+     * everything sent
+     */
+    public boolean finished() {
+        return (goingAway || peerGoingAway) && idle();
+    }
+
+    /**
+     * @return the bytes held for the bodies of requests that are still coming in
+     */
+    long bodyBytes() {
+        long bytes = 0;
+        for (Stream stream : streams.values()) {
+            if (stream.requestBody != null) {
+                bytes += stream.requestBody.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return when the first bytes of a frame that is not complete yet arrived, 0 when there are none
+     */
+    public long frameStarted() {
+        return frameStarted;
+    }
+
+    /**
+     * Closes the files of the streams that are still open and gives the output buffer back to
+     * the pool. Nothing is produced after this.
+     */
+    public void close() {
+        for (Stream stream : streams.values()) {
+            stream.close();
+        }
+        streams.clear();
+        if (output.isDirect()) {
+            BufferPool.shared().release(output);
+            output = ByteBuffer.allocate(0);
+        }
+    }
+
+    public static long connections() {
+        return connections.sum();
+    }
+
+    public static long streams() {
+        return streamCount.sum();
+    }
+}
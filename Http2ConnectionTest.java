@@ -0,0 +1,419 @@
+package lab11;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static lab11.Checks.*;
+
+/**
+ * Tests for Http2Connection without a socket: frames go into input() as a client would send them,
+ * and the frames produce leaves in output() are taken apart again and checked.
+ * Run it from the directory the server is started from, so the files are found.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Http2ConnectionTest {
+
+    private final static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private final static String ROOT = "src/lab11/www/rootDirectory";
+    private final static String IMAGE = "/image/r_1762546_aYm1W.jpg";
+
+    private final static int DATA = 0;
+    private final static int HEADERS = 1;
+    private final static int RST_STREAM = 3;
+    private final static int SETTINGS = 4;
+    private final static int PING = 6;
+    private final static int GOAWAY = 7;
+    private final static int WINDOW_UPDATE = 8;
+    private final static int CONTINUATION = 9;
+
+    private final static int END_STREAM = 0x1;
+    private final static int ACK = 0x1;
+    private final static int END_HEADERS = 0x4;
+
+    private final static int NO_ERROR = 0x0;
+    private final static int PROTOCOL_ERROR = 0x1;
+    private final static int CANCEL = 0x8;
+    private final static int ENHANCE_YOUR_CALM = 0xb;
+
+    private static class Frame {
+        final int type;
+        final int flags;
+        final int stream;
+        final ByteBuffer payload;
+
+        Frame(int type, int flags, int stream, ByteBuffer payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+
+        int errorCode() {
+            return payload.getInt(type == GOAWAY ? 4 : 0);
+        }
+    }
+
+    /**
+     * The client's side of one connection.
+     */
+    private static class Client {
+        final Http2Connection connection = new Http2Connection(InetAddress.getLoopbackAddress(), Runnable::run);
+        final Hpack.Encoder encoder = new Hpack.Encoder();
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+        Client() {
+            connection.start(ByteBuffer.allocate(0));
+            send(PREFACE);
+            send(frame(SETTINGS, 0, 0, new byte[0]));
+        }
+
+        /**
+         * Hands the bytes to the connection as fast as it takes them.
+         */
+        void send(byte[] bytes) {
+            int sent = 0;
+            do {
+                ByteBuffer input = connection.input();
+                int length = Math.min(input.remaining(), bytes.length - sent);
+                input.put(bytes, sent, length);
+                sent += length;
+                connection.receive();
+            } while (sent < bytes.length);
+        }
+
+        void request(int stream, String path) {
+            send(frame(HEADERS, END_HEADERS | END_STREAM, stream, block(path)));
+        }
+
+        byte[] block(String path) {
+            return block("GET", path);
+        }
+
+        byte[] block(String method, String path) {
+            return block(List.of(":method", method, ":scheme", "http", ":path", path, ":authority", "localhost"));
+        }
+
+        byte[] block(List<String> fields) {
+            ByteBuffer block = encoder.encode(fields, new boolean[fields.size() / 2]);
+            byte[] bytes = new byte[block.remaining()];
+            block.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * @return every frame the connection has to send now
+         */
+        List<Frame> receive() throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (connection.produce()) {
+                ByteBuffer output = connection.output();
+                byte[] bytes = new byte[output.remaining()];
+                output.get(bytes);
+                out.write(bytes);
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+            List<Frame> frames = new ArrayList<>();
+            while (bytes.hasRemaining()) {
+                int length = (bytes.getShort() & 0xffff) << 8 | (bytes.get() & 0xff);
+                int type = bytes.get() & 0xff;
+                int flags = bytes.get() & 0xff;
+                int stream = bytes.getInt() & 0x7fffffff;
+                frames.add(new Frame(type, flags, stream, bytes.slice(bytes.position(), length)));
+                bytes.position(bytes.position() + length);
+            }
+            return frames;
+        }
+
+        List<String> headers(Frame frame) throws Hpack.CompressionException {
+            List<String> fields = new ArrayList<>();
+            ByteBuffer block = ByteBuffer.allocate(frame.payload.remaining()).put(frame.payload.duplicate()).flip();
+            decoder.decode(block, fields);
+            return fields;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("server.accessLog", System.getProperty("server.accessLog", "off"));
+        byte[] image = Files.readAllBytes(Path.of(ROOT + IMAGE));
+        byte[] text = Files.readAllBytes(Path.of(ROOT + "/text/test.txt"));
+
+        run("SETTINGS first, then the acknowledgement of the client's", () -> {
+            List<Frame> frames = new Client().receive();
+            equal(2, frames.size());
+            equal(SETTINGS, frames.get(0).type);
+            equal(0, frames.get(0).flags);
+            equal(SETTINGS, frames.get(1).type);
+            equal(ACK, frames.get(1).flags);
+        });
+        run("a request", () -> {
+            Client client = new Client();
+            client.receive();
+            client.request(1, "/text/test.txt");
+            List<Frame> frames = client.receive();
+            equal(HEADERS, frames.get(0).type);
+            equal(1, frames.get(0).stream);
+            List<String> fields = client.headers(frames.get(0));
+            equal(List.of(":status", "200"), fields.subList(0, 2));
+            check(fields.contains(String.valueOf(text.length)), fields.toString());
+            equal(new String(text, StandardCharsets.ISO_8859_1), body(frames, 1));
+            equal(END_STREAM, last(frames, DATA).flags & END_STREAM);
+        });
+        run("a header block in HEADERS and CONTINUATION frames", () -> {
+            Client client = new Client();
+            client.receive();
+            byte[] block = client.block("/text/test.txt");
+            int third = block.length / 3;
+            client.send(concat(
+                    frame(HEADERS, END_STREAM, 1, slice(block, 0, third)),
+                    frame(CONTINUATION, 0, 1, slice(block, third, 2 * third)),
+                    frame(CONTINUATION, END_HEADERS, 1, slice(block, 2 * third, block.length))));
+            List<Frame> frames = client.receive();
+            equal(List.of(":status", "200"), client.headers(frames.get(0)).subList(0, 2));
+            equal(new String(text, StandardCharsets.ISO_8859_1), body(frames, 1));
+        });
+        run("a frame between HEADERS and CONTINUATION", () -> {
+            Client client = new Client();
+            client.receive();
+            byte[] block = client.block("/text/test.txt");
+            client.send(concat(frame(HEADERS, END_STREAM, 1, slice(block, 0, 4)),
+                    frame(PING, 0, 0, new byte[8]),
+                    frame(CONTINUATION, END_HEADERS, 1, slice(block, 4, block.length))));
+            Frame goAway = last(client.receive(), GOAWAY);
+            equal(PROTOCOL_ERROR, goAway.errorCode());
+        });
+        run("CONTINUATION on another stream", () -> {
+            Client client = new Client();
+            client.receive();
+            byte[] block = client.block("/text/test.txt");
+            client.send(concat(frame(HEADERS, END_STREAM, 1, slice(block, 0, 4)),
+                    frame(CONTINUATION, END_HEADERS, 3, slice(block, 4, block.length))));
+            equal(PROTOCOL_ERROR, last(client.receive(), GOAWAY).errorCode());
+        });
+        run("CONTINUATION without HEADERS", () -> {
+            Client client = new Client();
+            client.receive();
+            client.send(frame(CONTINUATION, END_HEADERS, 1, client.block("/")));
+            equal(PROTOCOL_ERROR, last(client.receive(), GOAWAY).errorCode());
+        });
+        run("DATA within the stream and connection windows", () -> {
+            Client client = new Client();
+            client.receive();
+            client.request(1, IMAGE);
+            List<Frame> frames = client.receive();
+            // both windows start at 65535
+            equal(65535, dataLength(frames));
+            client.send(windowUpdate(1, 10_000));
+            equal(0, dataLength(client.receive()));
+            client.send(windowUpdate(0, 1_000_000));
+            List<Frame> more = client.receive();
+            equal(10_000, dataLength(more));
+            client.send(windowUpdate(1, 1_000_000));
+            List<Frame> rest = client.receive();
+            equal(image.length - 75_535, dataLength(rest));
+            equal(END_STREAM, last(rest, DATA).flags & END_STREAM);
+            frames.addAll(more);
+            frames.addAll(rest);
+            check(new String(image, StandardCharsets.ISO_8859_1).equals(body(frames, 1)), "same bytes as the file");
+        });
+        run("SETTINGS_INITIAL_WINDOW_SIZE", () -> {
+            Client client = new Client();
+            client.send(frame(SETTINGS, 0, 0, ByteBuffer.allocate(6).putShort((short) 4).putInt(1000).array()));
+            client.receive();
+            client.request(1, IMAGE);
+            client.request(3, IMAGE);
+            List<Frame> frames = client.receive();
+            equal(1000, dataLength(frames, 1));
+            equal(1000, dataLength(frames, 3));
+            // a larger window applies to the streams that are open too
+            client.send(frame(SETTINGS, 0, 0, ByteBuffer.allocate(6).putShort((short) 4).putInt(3000).array()));
+            frames = client.receive();
+            equal(2000, dataLength(frames, 1));
+            equal(2000, dataLength(frames, 3));
+        });
+        run("WINDOW_UPDATE past 2^31-1", () -> {
+            Client client = new Client();
+            client.receive();
+            client.send(windowUpdate(0, Integer.MAX_VALUE));
+            equal(0x3, last(client.receive(), GOAWAY).errorCode());
+        });
+        run("a body that no route takes", () -> {
+            Client client = new Client();
+            client.receive();
+            client.send(frame(HEADERS, END_HEADERS, 1, client.block("POST", "/text/test.txt")));
+            // answered before the body is sent, and the stream is reset so it is not sent at all
+            List<Frame> frames = client.receive();
+            equal(List.of(":status", "501"), client.headers(frames.get(0)).subList(0, 2));
+            Frame reset = last(frames, RST_STREAM);
+            equal(1, reset.stream);
+            equal(NO_ERROR, reset.errorCode());
+            client.send(frame(DATA, END_STREAM, 1, new byte[100]));
+            equal(null, last(client.receive(), GOAWAY));
+        });
+        run("a body that is declared but not sent", () -> {
+            ReadRequest.routes.exact("/upload", request -> HttpResponse.dynamic("200 OK",
+                    "text/plain", "", String.valueOf(request.body().length())), "POST");
+            Client client = new Client();
+            client.receive();
+            List<String> fields = List.of(":method", "POST", ":scheme", "http", ":path", "/upload",
+                    ":authority", "localhost", "content-length", String.valueOf(RequestBody.MAX_BODY_SIZE));
+            for (int stream = 1; stream < 100; stream += 2) {
+                client.send(frame(HEADERS, END_HEADERS, stream, client.block(fields)));
+            }
+            equal(null, last(client.receive(), GOAWAY));
+            // the buffers grow with what arrives, not with what is declared
+            check(client.connection.bodyBytes() <= 50 * RequestBody.FIRST_BUFFER_SIZE,
+                    client.connection.bodyBytes() + " bytes for 50 bodies");
+            // and a body that does arrive is collected past the first buffer
+            client.send(frame(HEADERS, END_HEADERS, 101, client.block(List.of(":method", "POST", ":scheme", "http",
+                    ":path", "/upload", ":authority", "localhost", "content-length", "40000"))));
+            for (int sent = 0; sent < 40000; sent += 16000) {
+                int end = Math.min(sent + 16000, 40000);
+                client.send(frame(DATA, end == 40000 ? END_STREAM : 0, 101, new byte[end - sent]));
+            }
+            equal("40000", body(client.receive(), 101));
+        });
+        run("rapid reset", () -> {
+            Client client = new Client();
+            client.receive();
+            int stream = 1;
+            for (; stream < 200; stream += 2) {
+                client.request(stream, "/text/test.txt");
+                client.send(rstStream(stream, CANCEL));
+                if (last(client.receive(), GOAWAY) != null) {
+                    break;
+                }
+            }
+            check(stream < 60, "GOAWAY after " + stream / 2 + " resets");
+        });
+        run("a reset now and then", () -> {
+            Client client = new Client();
+            client.receive();
+            for (int i = 0; i < 90; i++) {
+                int stream = 2 * i + 1;
+                client.request(stream, "/text/test.txt");
+                if (i % 3 == 0) {
+                    client.send(rstStream(stream, CANCEL));
+                }
+                equal(null, last(client.receive(), GOAWAY));
+            }
+        });
+        run("requests per connection", () -> {
+            Client client = new Client();
+            client.receive();
+            int last = 2 * ReadRequest.MAX_REQUESTS - 1;
+            for (int stream = 1; stream < last; stream += 2) {
+                client.request(stream, "/text/test.txt");
+                equal(null, last(client.receive(), GOAWAY));
+            }
+            client.request(last, "/text/test.txt");
+            List<Frame> frames = client.receive();
+            Frame goAway = last(frames, GOAWAY);
+            equal(NO_ERROR, goAway.errorCode());
+            equal(last, goAway.payload.getInt(0));
+            // the last one is answered, the next is not
+            equal(new String(text, StandardCharsets.ISO_8859_1), body(frames, last));
+            client.request(last + 2, "/text/test.txt");
+            equal(0, client.receive().size());
+        });
+        run("PINGs that are answered", () -> {
+            Client client = new Client();
+            client.receive();
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 100; i++) {
+                    client.send(frame(PING, 0, 0, new byte[8]));
+                }
+                List<Frame> frames = client.receive();
+                equal(100, frames.size());
+                equal(ACK, frames.get(0).flags);
+            }
+        });
+        run("PINGs that are not read", () -> {
+            Client client = new Client();
+            client.receive();
+            for (int i = 0; i < 2000; i++) {
+                client.send(frame(PING, 0, 0, new byte[8]));
+            }
+            List<Frame> frames = client.receive();
+            Frame goAway = last(frames, GOAWAY);
+            equal(ENHANCE_YOUR_CALM, goAway.errorCode());
+            check(frames.size() < 100, frames.size() + " frames queued");
+            check(client.connection.finished(), "finished");
+        });
+        run("SETTINGS that are not read", () -> {
+            Client client = new Client();
+            client.receive();
+            for (int i = 0; i < 2000; i++) {
+                client.send(frame(SETTINGS, 0, 0, new byte[0]));
+            }
+            equal(ENHANCE_YOUR_CALM, last(client.receive(), GOAWAY).errorCode());
+        });
+        done();
+    }
+
+    private static byte[] frame(int type, int flags, int stream, byte[] payload) {
+        return ByteBuffer.allocate(9 + payload.length).put((byte) (payload.length >>> 16))
+                .putShort((short) payload.length).put((byte) type).put((byte) flags).putInt(stream)
+                .put(payload).array();
+    }
+
+    private static byte[] windowUpdate(int stream, int increment) {
+        return frame(WINDOW_UPDATE, 0, stream, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static byte[] rstStream(int stream, int code) {
+        return frame(RST_STREAM, 0, stream, ByteBuffer.allocate(4).putInt(code).array());
+    }
+
+    private static byte[] slice(byte[] bytes, int from, int to) {
+        return java.util.Arrays.copyOfRange(bytes, from, to);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static Frame last(List<Frame> frames, int type) {
+        Frame last = null;
+        for (Frame frame : frames) {
+            if (frame.type == type) {
+                last = frame;
+            }
+        }
+        return last;
+    }
+
+    private static int dataLength(List<Frame> frames) {
+        return dataLength(frames, -1);
+    }
+
+    private static int dataLength(List<Frame> frames, int stream) {
+        int length = 0;
+        for (Frame frame : frames) {
+            if (frame.type == DATA && (stream < 0 || frame.stream == stream)) {
+                length += frame.payload.remaining();
+            }
+        }
+        return length;
+    }
+
+    private static String body(List<Frame> frames, int stream) {
+        StringBuilder body = new StringBuilder();
+        for (Frame frame : frames) {
+            if (frame.type == DATA && frame.stream == stream) {
+                body.append(text(frame.payload));
+            }
+        }
+        return body.toString();
+    }
+}
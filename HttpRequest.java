@@ -0,0 +1,674 @@
+package lab11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses a request head byte by byte and is at the same time the view on the parsed request.
+ * The parser is a state machine that can be fed the head in pieces; it only records where the
+ * method, target, version and headers are in the byte array, so parsing allocates nothing.
+ * Strings are only made when somebody asks for them, except the path, which is percent-decoded
+ * and normalized as soon as the head is complete. A path that climbs above the root with ".."
+ * is a bad request.
+ * One object is used for every request on a connection. What it returns describes the last
+ * parsed request and is only valid until the next one is parsed; copy makes one that stays.
+ * The body is not parsed here. The server that read the head attaches it as a RequestBody.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class HttpRequest {
+
+    public final static int MAX_HEAD_SIZE = 8192;
+    private final static int MAX_HEADERS = 64;
+    private final static int MAX_METHOD_LENGTH = 16;
+    private final static int MAX_VERSION_LENGTH = 16;
+
+    private final static int METHOD = 0;
+    private final static int TARGET = 1;
+    private final static int VERSION = 2;
+    private final static int VERSION_LF = 3;
+    private final static int HEADER_START = 4;
+    private final static int NAME = 5;
+    private final static int VALUE_START = 6;
+    private final static int VALUE = 7;
+    private final static int VALUE_LF = 8;
+    private final static int END_LF = 9;
+    private final static int DONE = 10;
+
+    private final static String[] knownMethods = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"};
+    private final static boolean[] tokenChars = new boolean[128];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) tokenChars[c] = true;
+        for (char c = 'a'; c <= 'z'; c++) tokenChars[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) tokenChars[c] = true;
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) tokenChars[c] = true;
+    }
+
+    /**
+     * The head is malformed or too large, the answer is a 400.
+     */
+    public static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The client started a head but did not finish it in time.
+     */
+    public static class HeadTimeoutException extends SocketTimeoutException {
+        private static final long serialVersionUID = 1L;
+
+        public HeadTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    // where the bytes are and how far the parser got
+    private byte[] bytes;
+    private int state;
+    private int position;
+    private int headStart;
+    private int headEnd;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int headerCount;
+    private final int[] nameStart = new int[MAX_HEADERS];
+    private final int[] nameEnd = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd = new int[MAX_HEADERS];
+    private int lastValueByte;
+
+    // made from the bytes once the head is complete
+    private String path;
+    private String method;
+    private RequestBody body = RequestBody.EMPTY;
+
+    // buffer for reading from a stream
+    private byte[] streamBuffer;
+    private long parseNanos;
+    private int streamFilled;
+    // bytes after the head that the body took out of streamBuffer
+    private int bodyTaken;
+
+    public HttpRequest() {
+        reset(0);
+    }
+
+    /**
+     * Starts a new head at the given index.
+     * @param start
+     */
+    public void reset(int start) {
+        state = METHOD;
+        position = start;
+        headStart = start;
+        headEnd = -1;
+        headerCount = 0;
+        path = null;
+        method = null;
+        body = RequestBody.EMPTY;
+    }
+
+    /**
+     * Continues parsing with the bytes that arrived since the last call.
+     * @param bytes holds the head from the index given to reset
+     * @param end end of the received bytes
+     * @return true when the head is complete, headEnd() is then the index just after it
+     * @throws BadRequestException when the head is malformed or too large
+     */
+    public boolean parse(byte[] bytes, int end) throws BadRequestException {
+        this.bytes = bytes;
+        if (end - headStart > MAX_HEAD_SIZE) {
+            end = headStart + MAX_HEAD_SIZE + 1;
+        }
+        int i = position;
+        while (i < end && state != DONE) {
+            // tight loops over the long runs of ordinary bytes in targets, names and values
+            if (state == VALUE) {
+                while (i < end && (bytes[i] & 0xff) > ' ' && bytes[i] != 0x7f) {
+                    lastValueByte = i++;
+                }
+            } else if (state == NAME) {
+                while (i < end && isToken(bytes[i] & 0xff)) {
+                    i++;
+                }
+            } else if (state == TARGET) {
+                while (i < end && (bytes[i] & 0xff) > ' ' && bytes[i] != 0x7f) {
+                    i++;
+                }
+            }
+            if (i == end) {
+                break;
+            }
+            int b = bytes[i] & 0xff;
+            switch (state) {
+                case METHOD -> {
+                    if (i == headStart && (b == '\r' || b == '\n')) {
+                        headStart++; // empty lines in front of the request line are ignored
+                    } else if (b == ' ' && i > headStart) {
+                        methodEnd = i;
+                        targetStart = i + 1;
+                        state = TARGET;
+                    } else if (!isToken(b) || i - headStart >= MAX_METHOD_LENGTH) {
+                        throw new BadRequestException("Malformed method");
+                    }
+                }
+                case TARGET -> {
+                    if (b == ' ' && i > targetStart) {
+                        targetEnd = i;
+                        versionStart = i + 1;
+                        state = VERSION;
+                    } else if (b <= ' ' || b == 0x7f) {
+                        throw new BadRequestException("Malformed request target");
+                    }
+                }
+                case VERSION -> {
+                    if (b == '\r' || b == '\n') {
+                        versionEnd = i;
+                        if (versionEnd == versionStart) {
+                            throw new BadRequestException("Missing version");
+                        }
+                        state = b == '\r' ? VERSION_LF : HEADER_START;
+                    } else if (b <= ' ' || b >= 0x7f || i - versionStart >= MAX_VERSION_LENGTH) {
+                        throw new BadRequestException("Malformed version");
+                    }
+                }
+                case VERSION_LF, VALUE_LF, END_LF -> {
+                    if (b != '\n') {
+                        throw new BadRequestException("CR without LF");
+                    }
+                    if (state == VALUE_LF) {
+                        headerCount++;
+                    }
+                    state = state == END_LF ? DONE : HEADER_START;
+                }
+                case HEADER_START -> {
+                    if (b == '\r') {
+                        state = END_LF;
+                    } else if (b == '\n') {
+                        state = DONE;
+                    } else if (isToken(b)) {
+                        if (headerCount == MAX_HEADERS) {
+                            throw new BadRequestException("Too many headers");
+                        }
+                        nameStart[headerCount] = i;
+                        state = NAME;
+                    } else {
+                        throw new BadRequestException("Malformed header");
+                    }
+                }
+                case NAME -> {
+                    if (b == ':') {
+                        nameEnd[headerCount] = i;
+                        state = VALUE_START;
+                    } else if (!isToken(b)) {
+                        throw new BadRequestException("Malformed header name");
+                    }
+                }
+                case VALUE_START, VALUE -> {
+                    if (b == '\r' || b == '\n') {
+                        if (state == VALUE_START) {
+                            valueStart[headerCount] = i;
+                            lastValueByte = i - 1;
+                        }
+                        valueEnd[headerCount] = lastValueByte + 1;
+                        if (b == '\r') {
+                            state = VALUE_LF;
+                        } else {
+                            headerCount++;
+                            state = HEADER_START;
+                        }
+                    } else if (b == ' ' || b == '\t') {
+                        // whitespace around the value is not part of it
+                    } else if (b < ' ' || b == 0x7f) {
+                        throw new BadRequestException("Control character in header value");
+                    } else {
+                        if (state == VALUE_START) {
+                            valueStart[headerCount] = i;
+                            state = VALUE;
+                        }
+                        lastValueByte = i;
+                    }
+                }
+                default -> throw new IllegalStateException();
+            }
+            i++;
+        }
+        position = i;
+        if (state != DONE) {
+            if (i - headStart > MAX_HEAD_SIZE) {
+                throw new BadRequestException("Request head too large");
+            }
+            return false;
+        }
+        headEnd = i;
+        path = decodePath();
+        return true;
+    }
+
+    /**
+     * Reads the next head from a blocking stream. Bytes after the head, such as pipelined
+     * requests, are kept for the next call.
+     * @param in
+     * @return true when a head was read, false when the client closed the connection between requests
+     * @throws IOException
+     */
+    public boolean read(InputStream in) throws IOException {
+        return read(in, null, 0);
+    }
+
+    /**
+     * Reads the next head from a socket. Waiting for a head to start is limited by the socket's
+     * own timeout, as set by the caller, but once the first bytes are here the whole head has
+     * to arrive within headTimeout. A client that sends a byte now and then cannot keep a
+     * thread waiting forever that way.
+     * @param connection
+     * @param headTimeout milliseconds, 0 for no limit
+     * @return true when a head was read, false when the client closed the connection between requests
+     * @throws IOException a HeadTimeoutException when the head took too long
+     */
+    public boolean read(Socket connection, int headTimeout) throws IOException {
+        return read(connection.getInputStream(), connection, headTimeout);
+    }
+
+    private boolean read(InputStream in, Socket connection, int headTimeout) throws IOException {
+        if (streamBuffer == null) {
+            streamBuffer = new byte[MAX_HEAD_SIZE];
+        } else if (headEnd > 0) {
+            int used = headEnd + bodyTaken;
+            streamFilled -= used;
+            System.arraycopy(streamBuffer, used, streamBuffer, 0, streamFilled);
+        }
+        bodyTaken = 0;
+        reset(0);
+        // only the time spent parsing counts, not the time spent waiting for the client
+        long parsing = 0;
+        long start = System.nanoTime();
+        boolean limited = connection != null && headTimeout > 0;
+        int idleTimeout = limited ? connection.getSoTimeout() : 0;
+        long deadline = 0;
+        try {
+            while (!parse(streamBuffer, streamFilled)) {
+                parsing += System.nanoTime() - start;
+                if (streamFilled == streamBuffer.length) {
+                    throw new BadRequestException("Request head too large");
+                }
+                if (limited && streamFilled > 0) {
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0) {
+                        deadline = now + headTimeout;
+                    }
+                    if (now >= deadline) {
+                        throw new HeadTimeoutException("Request head not complete after " + headTimeout + " ms");
+                    }
+                    connection.setSoTimeout((int) (idleTimeout > 0 ? Math.min(idleTimeout, deadline - now) : deadline - now));
+                }
+                int n;
+                try {
+                    n = in.read(streamBuffer, streamFilled, streamBuffer.length - streamFilled);
+                } catch (SocketTimeoutException e) {
+                    if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+                        throw new HeadTimeoutException("Request head not complete after " + headTimeout + " ms");
+                    }
+                    throw e;
+                }
+                if (n < 0) {
+                    if (state == METHOD && position == headStart) {
+                        return false;
+                    }
+                    throw new BadRequestException("Connection closed in the middle of the request head");
+                }
+                streamFilled += n;
+                start = System.nanoTime();
+            }
+        } finally {
+            if (deadline != 0) {
+                connection.setSoTimeout(idleTimeout);
+            }
+        }
+        parseNanos = parsing + System.nanoTime() - start;
+        return true;
+    }
+
+    /**
+     * Hands out the bytes that read took from the stream after the head, which belong to the body.
+     * @param destination
+     * @param offset
+     * @param length at most this many
+     * @return the bytes copied, 0 when none are left
+     */
+    int takeBuffered(byte[] destination, int offset, int length) {
+        int taken = Math.min(length, streamFilled - headEnd - bodyTaken);
+        if (taken <= 0) {
+            return 0;
+        }
+        System.arraycopy(streamBuffer, headEnd + bodyTaken, destination, offset, taken);
+        bodyTaken += taken;
+        return taken;
+    }
+
+    /**
+     * @return a request that holds its own copy of the head, for keeping it after the next one is parsed
+     */
+    public HttpRequest copy() {
+        HttpRequest copy = new HttpRequest();
+        byte[] head = Arrays.copyOfRange(bytes, headStart, headEnd);
+        try {
+            copy.parse(head, head.length);
+        } catch (BadRequestException e) {
+            throw new IllegalStateException("A parsed head did not parse again", e);
+        }
+        copy.body = body;
+        copy.parseNanos = parseNanos;
+        return copy;
+    }
+
+    /**
+     * @return the time the last call to read spent parsing, in nanoseconds
+     */
+    public long parseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return the index just after the empty line that ended the head
+     */
+    public int headEnd() {
+        return headEnd;
+    }
+
+    /**
+     * @return true when nothing but empty lines was received since the head started
+     */
+    public boolean isEmpty() {
+        return state == METHOD && position == headStart;
+    }
+
+    private static boolean isToken(int b) {
+        return b < 128 && tokenChars[b];
+    }
+
+    /**
+     * Percent-decodes the path of the target and removes "." and ".." segments and double slashes.
+     * The query string is not part of the path.
+     */
+    private String decodePath() throws BadRequestException {
+        int start = targetStart;
+        int end = targetEnd;
+        if (bytes[start] != '/') {
+            // absolute form, http://host/path
+            int scheme = indexOf("://", start, end);
+            if (scheme < 0) {
+                throw new BadRequestException("Unsupported request target");
+            }
+            start = scheme + 3;
+            while (start < end && bytes[start] != '/') {
+                start++;
+            }
+            if (start == end) {
+                return "/";
+            }
+        }
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            int b = bytes[i];
+            if (b == '?' || b == '#') {
+                break;
+            }
+            if (b == '%') {
+                if (i + 2 >= end) {
+                    throw new BadRequestException("Malformed percent escape");
+                }
+                int high = Character.digit(bytes[i + 1], 16);
+                int low = Character.digit(bytes[i + 2], 16);
+                if (high < 0 || low < 0) {
+                    throw new BadRequestException("Malformed percent escape");
+                }
+                b = high * 16 + low;
+                i += 2;
+            }
+            if (b == 0 || b == '\\') {
+                throw new BadRequestException("Forbidden character in path");
+            }
+            decoded[length++] = (byte) b;
+        }
+        return normalize(decoded, length);
+    }
+
+    private static String normalize(byte[] path, int length) throws BadRequestException {
+        // segments are copied over the same array, out is never ahead of in
+        int out = 0;
+        int in = 0;
+        while (in < length) {
+            while (in < length && path[in] == '/') {
+                in++;
+            }
+            int segmentStart = in;
+            while (in < length && path[in] != '/') {
+                in++;
+            }
+            int segmentLength = in - segmentStart;
+            if (segmentLength == 0 || (segmentLength == 1 && path[segmentStart] == '.')) {
+                continue;
+            }
+            if (segmentLength == 2 && path[segmentStart] == '.' && path[segmentStart + 1] == '.') {
+                if (out == 0) {
+                    throw new BadRequestException("Path leaves the root directory");
+                }
+                do {
+                    out--;
+                } while (path[out] != '/');
+                continue;
+            }
+            path[out++] = '/';
+            System.arraycopy(path, segmentStart, path, out, segmentLength);
+            out += segmentLength;
+        }
+        if (out == 0 || (length > 0 && path[length - 1] == '/')) {
+            path[out++] = '/';
+        }
+        return new String(path, 0, out, StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(String text, int start, int end) {
+        outer:
+        for (int i = start; i <= end - text.length(); i++) {
+            for (int j = 0; j < text.length(); j++) {
+                if (bytes[i + j] != text.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private boolean bytesEqual(int start, int end, String text, boolean ignoreCase) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int b = bytes[start + i];
+            int c = text.charAt(i);
+            if (b != c && !(ignoreCase && Character.toLowerCase(b) == Character.toLowerCase(c))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the method, the common ones without allocating
+     */
+    public String method() {
+        if (method == null) {
+            for (String known : knownMethods) {
+                if (bytesEqual(headStart, methodEnd, known, false)) {
+                    method = known;
+                    return method;
+                }
+            }
+            method = new String(bytes, headStart, methodEnd - headStart, StandardCharsets.US_ASCII);
+        }
+        return method;
+    }
+
+    /**
+     * @return for example "HTTP/1.1"
+     */
+    public String version() {
+        if (bytesEqual(versionStart, versionEnd, "HTTP/1.1", false)) {
+            return "HTTP/1.1";
+        } else if (bytesEqual(versionStart, versionEnd, "HTTP/1.0", false)) {
+            return "HTTP/1.0";
+        }
+        return new String(bytes, versionStart, versionEnd - versionStart, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the target as it was sent, with query string and escapes
+     */
+    public String target() {
+        return new String(bytes, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the decoded and normalized path, always starting with "/"
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * @return for example "GET /text/index.html HTTP/1.1"
+     */
+    public String requestLine() {
+        return new String(bytes, headStart, versionEnd - headStart, StandardCharsets.ISO_8859_1);
+    }
+
+    private int headerIndex(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (bytesEqual(nameStart[i], nameEnd[i], name, true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name case does not matter
+     * @return the value, or null when the header was not sent
+     */
+    public String header(String name) {
+        int i = headerIndex(name);
+        return i < 0 ? null : new String(bytes, valueStart[i], valueEnd[i] - valueStart[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Checks a comma separated header such as Connection for one token, without allocating.
+     * @param name
+     * @param token case does not matter
+     * @return
+     */
+    public boolean headerHasToken(String name, String token) {
+        int i = headerIndex(name);
+        if (i < 0) {
+            return false;
+        }
+        int start = valueStart[i];
+        int end = valueEnd[i];
+        while (start < end) {
+            int comma = start;
+            while (comma < end && bytes[comma] != ',') {
+                comma++;
+            }
+            int tokenStart = start;
+            int tokenEnd = comma;
+            while (tokenStart < tokenEnd && (bytes[tokenStart] == ' ' || bytes[tokenStart] == '\t')) {
+                tokenStart++;
+            }
+            while (tokenEnd > tokenStart && (bytes[tokenEnd - 1] == ' ' || bytes[tokenEnd - 1] == '\t')) {
+                tokenEnd--;
+            }
+            if (bytesEqual(tokenStart, tokenEnd, token, true)) {
+                return true;
+            }
+            start = comma + 1;
+        }
+        return false;
+    }
+
+    /**
+     * A Content-Length that is sent more than once must have the same value every time; a client
+     * and a proxy in front of the server could otherwise each take a different one and disagree
+     * on where the next request starts.
+     * @return the Content-Length, -1 when there is none
+     * @throws BadRequestException when it is not a number, or sent twice with different values
+     */
+    public long contentLength() throws BadRequestException {
+        long length = -1;
+        for (int i = 0; i < headerCount; i++) {
+            if (bytesEqual(nameStart[i], nameEnd[i], "content-length", true)) {
+                long value = contentLength(i);
+                if (length >= 0 && value != length) {
+                    throw new BadRequestException("Conflicting Content-Length");
+                }
+                length = value;
+            }
+        }
+        return length;
+    }
+
+    private long contentLength(int i) throws BadRequestException {
+        if (valueEnd[i] == valueStart[i] || valueEnd[i] - valueStart[i] > 18) {
+            throw new BadRequestException("Malformed Content-Length");
+        }
+        long length = 0;
+        for (int j = valueStart[i]; j < valueEnd[i]; j++) {
+            int digit = bytes[j] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new BadRequestException("Malformed Content-Length");
+            }
+            length = length * 10 + digit;
+        }
+        return length;
+    }
+
+    /**
+     * @return the body, empty for a request without one
+     */
+    public RequestBody body() {
+        return body;
+    }
+
+    /**
+     * @param body attached by the server that read the head
+     */
+    void body(RequestBody body) {
+        this.body = body;
+    }
+
+    /**
+     * HTTP/1.1 keeps the connection open unless the client says close,
+     * HTTP/1.0 only does when the client asks for keep-alive.
+     * @return
+     */
+    public boolean keepAlive() {
+        if (bytesEqual(versionStart, versionEnd, "HTTP/1.1", false)) {
+            return !headerHasToken("connection", "close");
+        }
+        return headerHasToken("connection", "keep-alive");
+    }
+}
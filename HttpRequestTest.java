@@ -0,0 +1,199 @@
+package lab11;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static lab11.Checks.*;
+
+/**
+ * Tests for the HttpRequest parser: the request head, path normalization and reading heads and
+ * bodies from a stream that hands them out in pieces.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class HttpRequestTest {
+
+    public static void main(String[] args) {
+        run("request line and headers", () -> {
+            HttpRequest request = parse("GET /text/index.html?x=1 HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection:  keep-alive , Upgrade \r\n\r\n");
+            equal("GET", request.method());
+            equal("/text/index.html?x=1", request.target());
+            equal("/text/index.html", request.path());
+            equal("HTTP/1.1", request.version());
+            equal("localhost", request.header("HOST"));
+            check(request.headerHasToken("connection", "upgrade"), "Upgrade token");
+            equal(null, request.header("content-length"));
+        });
+        run("bare LF line ends and empty lines in front", () -> {
+            HttpRequest request = parse("\r\n\nGET / HTTP/1.0\nHost: a\n\n");
+            equal("/", request.path());
+            equal("a", request.header("host"));
+        });
+        run("fed one byte at a time", () -> {
+            byte[] head = bytes("GET /a/b HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n");
+            HttpRequest request = new HttpRequest();
+            for (int end = 0; end < head.length; end++) {
+                check(!request.parse(head, end), "complete after " + end + " bytes");
+            }
+            check(request.parse(head, head.length), "complete");
+            equal(head.length, request.headEnd());
+            equal("/a/b", request.path());
+            equal("*/*", request.header("accept"));
+        });
+        run("absolute form", () -> equal("/x/y", parse("GET http://example.com/x/y HTTP/1.1\r\n\r\n").path()));
+        run("dot segments and double slashes", () -> {
+            equal("/a/c", path("/a/b/../c"));
+            equal("/a/b/", path("/./a//b/"));
+            equal("/", path("/a/.."));
+            equal("/b", path("/a/%2e%2e/b"));
+            equal("/a b/\u00fc", path("/a%20b/%C3%BC"));
+        });
+        run("climbing above the root", () -> {
+            badPath("/..");
+            badPath("/../etc/passwd");
+            badPath("/a/../../etc/passwd");
+            badPath("/%2e%2e/etc/passwd");
+            badPath("/%2E%2E/etc/passwd");
+            badPath("/a/%2e%2e/%2e%2e/etc/passwd");
+            badPath("/.%2e/etc/passwd");
+        });
+        run("NUL and backslash", () -> {
+            badPath("/a%00.html");
+            badPath("/a%5c..%5c..%5cetc");
+            badPath("/a\\..\\b");
+        });
+        run("bad percent escapes", () -> {
+            badPath("/a%");
+            badPath("/a%2");
+            badPath("/a%zz");
+            badPath("/a%g0");
+        });
+        run("malformed heads", () -> {
+            bad("GET  / HTTP/1.1\r\n\r\n");
+            bad("GET / \r\n\r\n");
+            bad("G(T / HTTP/1.1\r\n\r\n");
+            bad("GET / HTTP/1.1\rX\n\r\n");
+            bad("GET / HTTP/1.1\r\nName : value\r\n\r\n");
+            bad("GET / HTTP/1.1\r\nName: a\u0001b\r\n\r\n");
+            bad("GET / HTTP/1.1\r\n folded\r\n\r\n");
+            bad("GET example.com HTTP/1.1\r\n\r\n");
+        });
+        run("too many headers", () -> {
+            StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+            for (int i = 0; i < 65; i++) {
+                head.append("X-").append(i).append(": 1\r\n");
+            }
+            bad(head.append("\r\n").toString());
+        });
+        run("oversized head", () -> {
+            String head = "GET / HTTP/1.1\r\nX-Big: " + "a".repeat(HttpRequest.MAX_HEAD_SIZE) + "\r\n\r\n";
+            bad(head);
+            // also when it never ends, the parser gives up once it is past the limit
+            byte[] unfinished = bytes(head.substring(0, HttpRequest.MAX_HEAD_SIZE + 10));
+            HttpRequest request = new HttpRequest();
+            fails(() -> request.parse(unfinished, unfinished.length), HttpRequest.BadRequestException.class);
+            fails(() -> new HttpRequest().read(new ByteArrayInputStream(bytes(head))),
+                    HttpRequest.BadRequestException.class);
+        });
+        run("a head just under the limit", () -> {
+            String start = "GET / HTTP/1.1\r\nX-Big: ";
+            String head = start + "a".repeat(HttpRequest.MAX_HEAD_SIZE - start.length() - 4) + "\r\n\r\n";
+            equal(HttpRequest.MAX_HEAD_SIZE, head.length());
+            check(new HttpRequest().read(new ByteArrayInputStream(bytes(head))), "read");
+        });
+        run("pipelined requests split across reads", () -> {
+            byte[] pipelined = bytes("GET /a HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "POST /b HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                    + "GET /c HTTP/1.1\r\nHost: x\r\n\r\n");
+            for (int split = 1; split <= pipelined.length; split++) {
+                InputStream in = new Pieces(pipelined, split);
+                HttpRequest request = new HttpRequest();
+                check(request.read(in), "first head, pieces of " + split);
+                equal("/a", request.path());
+                check(request.read(in), "second head, pieces of " + split);
+                equal("/b", request.path());
+                request.body(RequestBody.stream(request, in, request.contentLength()));
+                equal("hello", new String(request.body().readAll(), StandardCharsets.US_ASCII));
+                check(request.read(in), "third head, pieces of " + split);
+                equal("/c", request.path());
+                check(!request.read(in), "end of the stream, pieces of " + split);
+            }
+        });
+        run("closed in the middle of a head", () -> fails(() ->
+                new HttpRequest().read(new ByteArrayInputStream(bytes("GET / HTTP/1.1\r\nHo"))),
+                HttpRequest.BadRequestException.class));
+        run("Content-Length", () -> {
+            equal(5L, parse("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\n").contentLength());
+            equal(-1L, parse("POST / HTTP/1.1\r\n\r\n").contentLength());
+            badLength("POST / HTTP/1.1\r\nContent-Length: -5\r\n\r\n");
+            badLength("POST / HTTP/1.1\r\nContent-Length: 5x\r\n\r\n");
+            badLength("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n");
+            badLength("POST / HTTP/1.1\r\nContent-Length: 1234567890123456789\r\n\r\n");
+        });
+        run("duplicate Content-Length", () -> {
+            equal(5L, parse("POST / HTTP/1.1\r\nContent-Length: 5\r\ncontent-length: 5\r\n\r\n").contentLength());
+            badLength("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n");
+            badLength("POST / HTTP/1.1\r\nContent-Length: 0\r\nX: y\r\nContent-Length: 100\r\n\r\n");
+            badLength("POST / HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\n");
+        });
+        done();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static HttpRequest parse(String head) throws HttpRequest.BadRequestException {
+        HttpRequest request = new HttpRequest();
+        byte[] bytes = bytes(head);
+        check(request.parse(bytes, bytes.length), "complete head");
+        return request;
+    }
+
+    private static String path(String target) throws HttpRequest.BadRequestException {
+        return parse("GET " + target + " HTTP/1.1\r\n\r\n").path();
+    }
+
+    private static void bad(String head) {
+        fails(() -> parse(head), HttpRequest.BadRequestException.class);
+    }
+
+    private static void badPath(String target) {
+        fails(() -> path(target), HttpRequest.BadRequestException.class);
+    }
+
+    private static void badLength(String head) {
+        fails(() -> parse(head).contentLength(), HttpRequest.BadRequestException.class);
+    }
+
+    /**
+     * Hands out the bytes at most size at a time, like a socket that gets them in small segments.
+     */
+    private static class Pieces extends InputStream {
+        private final byte[] bytes;
+        private final int size;
+        private int position;
+
+        Pieces(byte[] bytes, int size) {
+            this.bytes = bytes;
+            this.size = size;
+        }
+
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        public int read(byte[] destination, int offset, int length) throws IOException {
+            if (position == bytes.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(length, size), bytes.length - position);
+            System.arraycopy(bytes, position, destination, offset, n);
+            position += n;
+            return n;
+        }
+    }
+}
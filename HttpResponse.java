@@ -0,0 +1,683 @@
+package lab11;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One response as decided by the routing code, before it is written anywhere.
+ * The body is either bytes in memory or a file on disk, so the blocking server and the
+ * NIO server can each write it in the way that suits them.
+ * The Connection header is always the last header. Everything in front of it is built once,
+ * so a response can be kept in a cache and written again and again without being rebuilt.
+ * Responses made from a file carry an ETag and Last-Modified, and build their 304 Not Modified
+ * once, the first time a client already has the file.
+ * Dynamic responses (see Routes) are the exception: they are written once, into a buffer from the
+ * BufferPool, and whoever writes them calls release afterwards. For every other response release
+ * does nothing. An async handler's answer travels as a deferred response, which is never written
+ * itself; the servers wait for later() and write what it completes with.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class HttpResponse {
+    private final static ByteBuffer keepAliveEnd = ascii("Connection: keep-alive\r\n\r\n");
+    private final static ByteBuffer closeEnd = ascii("Connection: close\r\n\r\n");
+    private final static String VARY = "Vary: Accept-Encoding\r\n";
+    private final static String ACCEPT_RANGES = "Accept-Ranges: bytes\r\n";
+
+    private final static DateTimeFormatter httpDateFormat =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final String status;
+    private final String contentType;
+    private final long lastModified;
+    private final String etag;
+    private final String cacheControl;
+    private final ByteBuffer fields;
+    private final ByteBuffer[] body;
+    private final File file;
+    // the complete response for both Connection headers, only for prebuilt responses
+    private final ByteBuffer keepAliveWhole;
+    private final ByteBuffer closeWhole;
+    // built when they are first needed; a race only builds them twice
+    private HttpResponse notModified;
+    private List<String> headerFields;
+    // only for dynamic responses, given back to the pool by release
+    private ByteBuffer pooled;
+    // only for deferred responses
+    private CompletableFuture<HttpResponse> later;
+    // only for a range of a file, the whole file otherwise
+    private long fileStart;
+    private long fileLength = -1;
+
+    private HttpResponse(String status, String contentType, long lastModified, ByteBuffer fields, ByteBuffer[] body, File file) {
+        this(status, contentType, lastModified, null, null, fields, body, file);
+    }
+
+    private HttpResponse(String status, String contentType, long lastModified, String etag, String cacheControl,
+                         ByteBuffer fields, ByteBuffer[] body, File file) {
+        this.status = status;
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.cacheControl = cacheControl;
+        this.fields = fields;
+        this.body = body;
+        this.file = file;
+        this.keepAliveWhole = null;
+        this.closeWhole = null;
+    }
+
+    private HttpResponse(HttpResponse response) {
+        this.status = response.status;
+        this.contentType = response.contentType;
+        this.lastModified = response.lastModified;
+        this.etag = response.etag;
+        this.cacheControl = response.cacheControl;
+        this.fields = response.fields;
+        this.body = response.body;
+        this.file = null;
+        this.keepAliveWhole = whole(response.buffers(true));
+        this.closeWhole = whole(response.buffers(false));
+    }
+
+    /**
+     * A generated page, such as an error page or a directory listing.
+     * @param status for example "404 Not Found"
+     * @param contentType
+     * @param content
+     * @return
+     */
+    public static HttpResponse page(String status, String contentType, String content) {
+        byte[] body = (content + "\r\n").getBytes(StandardCharsets.UTF_8);
+        return new HttpResponse(status, contentType, -1, head(status, contentType, body.length, "", null, -1, null),
+                new ByteBuffer[]{ByteBuffer.wrap(body)}, null);
+    }
+
+    /**
+     * A page that is serialized once, head and body, for both values of the Connection header.
+     * Writing it copies nothing and allocates nothing but a view on the bytes.
+     * @param status
+     * @param contentType
+     * @param content
+     * @return
+     */
+    public static HttpResponse prebuilt(String status, String contentType, String content) {
+        return prebuilt(status, contentType, "", content);
+    }
+
+    /**
+     * A prebuilt page with headers of its own.
+     * @param status
+     * @param contentType
+     * @param extraFields complete header lines, each ending in CRLF
+     * @param content
+     * @return
+     */
+    public static HttpResponse prebuilt(String status, String contentType, String extraFields, String content) {
+        byte[] body = (content + "\r\n").getBytes(StandardCharsets.UTF_8);
+        return new HttpResponse(new HttpResponse(status, contentType, -1,
+                head(status, contentType, body.length, extraFields, null, -1, null),
+                new ByteBuffer[]{ByteBuffer.wrap(body)}, null));
+    }
+
+    /**
+     * A response made by a handler. Head and body are written into one pooled direct buffer, so it
+     * must be given back with release once it is written. One too large for the pool goes into a
+     * heap buffer instead: a direct buffer allocated for every response costs more than the copy.
+     * @param status for example "200 OK"
+     * @param contentType
+     * @param extraFields complete header lines, each ending in CRLF
+     * @param content
+     * @return
+     */
+    public static HttpResponse dynamic(String status, String contentType, String extraFields, String content) {
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        int size = headSize(status, contentType, extraFields, null, null) + body.length;
+        boolean pooled = size <= BufferPool.maxPooledSize();
+        ByteBuffer buffer = pooled ? BufferPool.shared().acquire(size) : ByteBuffer.allocate(size);
+        writeHead(buffer, status, contentType, body.length, extraFields, null, -1, null);
+        int headLength = buffer.position();
+        buffer.put(body).flip();
+        HttpResponse response = new HttpResponse(status, contentType, -1,
+                buffer.duplicate().limit(headLength).slice().asReadOnlyBuffer(),
+                new ByteBuffer[]{buffer.duplicate().position(headLength).slice().asReadOnlyBuffer()}, null);
+        if (pooled) {
+            response.pooled = buffer;
+        }
+        return response;
+    }
+
+    /**
+     * A JSON document made by a handler, see dynamic.
+     * @param status
+     * @param json
+     * @return
+     */
+    public static HttpResponse json(String status, String json) {
+        return dynamic(status, "application/json", "Cache-Control: no-store\r\n", json);
+    }
+
+    /**
+     * The answer of an async handler that was not there yet when routing finished.
+     * @param later completes with the response to write
+     * @return a response that only carries later, it must not be written
+     */
+    static HttpResponse deferred(CompletableFuture<HttpResponse> later) {
+        HttpResponse response = new HttpResponse("000 Deferred", null, -1, ByteBuffer.allocate(0), null, null);
+        response.later = later;
+        return response;
+    }
+
+    /**
+     * @return the answer that is still on its way, null for every response but a deferred one
+     */
+    public CompletableFuture<HttpResponse> later() {
+        return later;
+    }
+
+    /**
+     * The answer to HEAD: the same status and headers, Content-Length included, without the body.
+     * A dynamic response hands its buffer over to the new response, so only that one is released.
+     * @return
+     */
+    public HttpResponse withoutBody() {
+        HttpResponse response = new HttpResponse(status, contentType, lastModified, etag, cacheControl,
+                fields, new ByteBuffer[0], null);
+        response.pooled = pooled;
+        pooled = null;
+        return response;
+    }
+
+    /**
+     * Gives the buffer of a dynamic response back to the pool, after it is written. The response
+     * must not be written again.
+     */
+    public void release() {
+        ByteBuffer buffer = pooled;
+        if (buffer != null) {
+            pooled = null;
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    private static ByteBuffer whole(ByteBuffer[] buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer whole = ByteBuffer.allocateDirect(length);
+        for (ByteBuffer buffer : buffers) {
+            whole.put(buffer);
+        }
+        return whole.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * A file that is sent as it is on disk.
+     * @param file
+     * @param mimeType
+     * @param cacheControl the Cache-Control header, or null for none
+     * @return
+     */
+    public static HttpResponse file(File file, String mimeType, String cacheControl) {
+        return file(file, mimeType, cacheControl, file.length(), file.lastModified());
+    }
+
+    /**
+     * A file that is sent as it is on disk, with its length and modification time known already.
+     * @param file
+     * @param mimeType
+     * @param cacheControl the Cache-Control header, or null for none
+     * @param length
+     * @param lastModified
+     * @return
+     */
+    public static HttpResponse file(File file, String mimeType, String cacheControl, long length, long lastModified) {
+        String etag = etag(lastModified, length, null);
+        HttpResponse response = new HttpResponse("200 OK", mimeType, lastModified, etag, cacheControl,
+                head("200 OK", mimeType, length, rangeFields(mimeType), etag, lastModified, cacheControl), null, file);
+        // the Content-Length is sent, so the length is kept even when the file changes
+        response.fileLength = length;
+        return response;
+    }
+
+    /**
+     * One range of a file that is sent from disk, used for partial content of files that are too
+     * big to keep in memory. The range is sent like a whole file, with transferTo or positional reads.
+     * @param status
+     * @param contentType
+     * @param extraFields complete header lines, each ending in CRLF
+     * @param file
+     * @param start the first byte
+     * @param length the number of bytes
+     * @return
+     */
+    static HttpResponse filePart(String status, String contentType, String extraFields, File file, long start,
+                                 long length) {
+        HttpResponse response = new HttpResponse(status, contentType, -1,
+                head(status, contentType, length, extraFields, null, -1, null), null, file);
+        response.fileStart = start;
+        response.fileLength = length;
+        return response;
+    }
+
+    /**
+     * A file whose content is already in memory. Headers and content are copied into one
+     * direct buffer outside the heap, so writing it needs no copy and no filesystem access.
+     * @param content
+     * @param mimeType
+     * @param lastModified
+     * @param cacheControl the Cache-Control header, or null for none
+     * @return
+     */
+    public static HttpResponse preloaded(ByteBuffer content, String mimeType, long lastModified, String cacheControl) {
+        return inMemory(content, mimeType, lastModified, etag(lastModified, content.remaining(), null), cacheControl,
+                rangeFields(mimeType));
+    }
+
+    /**
+     * A compressed variant of a file, held in memory like a preloaded file.
+     * Ranges are not offered on it, they would count bytes of the compressed content.
+     * @param content the compressed content
+     * @param mimeType the type of the file before it was compressed
+     * @param lastModified of the file before it was compressed
+     * @param encoding "gzip" or "br"
+     * @param cacheControl the Cache-Control header, or null for none
+     * @return
+     */
+    public static HttpResponse encoded(ByteBuffer content, String mimeType, long lastModified, String encoding,
+                                       String cacheControl) {
+        return inMemory(content, mimeType, lastModified, etag(lastModified, content.remaining(), encoding), cacheControl,
+                encodingFields(encoding));
+    }
+
+    /**
+     * A compressed sidecar that is sent from disk.
+     * @param sidecar for example book.txt.gz
+     * @param mimeType the type of the file before it was compressed
+     * @param lastModified of the file before it was compressed
+     * @param encoding "gzip" or "br"
+     * @param cacheControl the Cache-Control header, or null for none
+     * @return
+     */
+    public static HttpResponse encoded(File sidecar, String mimeType, long lastModified, String encoding,
+                                       String cacheControl) {
+        long length = sidecar.length();
+        String etag = etag(lastModified, length, encoding);
+        return new HttpResponse("200 OK", mimeType, lastModified, etag, cacheControl,
+                head("200 OK", mimeType, length, encodingFields(encoding), etag, lastModified, cacheControl),
+                null, sidecar);
+    }
+
+    private static HttpResponse inMemory(ByteBuffer content, String mimeType, long lastModified, String etag,
+                                         String cacheControl, String extraFields) {
+        ByteBuffer whole = ByteBuffer.allocateDirect(headSize("200 OK", mimeType, extraFields, etag, cacheControl)
+                + content.remaining());
+        writeHead(whole, "200 OK", mimeType, content.remaining(), extraFields, etag, lastModified, cacheControl);
+        int headLength = whole.position();
+        whole.put(content).flip();
+        ByteBuffer fields = whole.duplicate().limit(headLength).slice().asReadOnlyBuffer();
+        ByteBuffer body = whole.duplicate().position(headLength).slice().asReadOnlyBuffer();
+        return new HttpResponse("200 OK", mimeType, lastModified, etag, cacheControl, fields, new ByteBuffer[]{body}, null);
+    }
+
+    /**
+     * A file that is mapped into memory. The mapping is shared by every connection that sends it.
+     * @param content
+     * @param mimeType
+     * @param lastModified
+     * @param cacheControl the Cache-Control header, or null for none
+     * @return
+     */
+    public static HttpResponse mapped(MappedByteBuffer content, String mimeType, long lastModified, String cacheControl) {
+        String etag = etag(lastModified, content.capacity(), null);
+        return new HttpResponse("200 OK", mimeType, lastModified, etag, cacheControl,
+                head("200 OK", mimeType, content.capacity(), rangeFields(mimeType), etag, lastModified, cacheControl),
+                new ByteBuffer[]{content.asReadOnlyBuffer()}, null);
+    }
+
+    /**
+     * A response with its own headers and a body made of several buffers, used for partial content.
+     * @param status
+     * @param contentType
+     * @param extraFields complete header lines, each ending in CRLF
+     * @param body
+     * @return
+     */
+    static HttpResponse parts(String status, String contentType, String extraFields, ByteBuffer... body) {
+        long length = 0;
+        for (ByteBuffer part : body) {
+            length += part.remaining();
+        }
+        return new HttpResponse(status, contentType, -1, head(status, contentType, length, extraFields, null, -1, null),
+                body, null);
+    }
+
+    /**
+     * The validator of one version of a file: its modification time and length, and the encoding
+     * for a compressed variant, since that is a different sequence of bytes.
+     * @param lastModified
+     * @param length
+     * @param encoding "gzip", "br" or null
+     * @return a strong entity tag, quotes included
+     */
+    static String etag(long lastModified, long length, String encoding) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length)
+                + (encoding != null ? "-" + encoding : "") + "\"";
+    }
+
+    private static String encodingFields(String encoding) {
+        switch (encoding) {
+            case "gzip":
+                return "Content-Encoding: gzip\r\n" + VARY;
+            case "br":
+                return "Content-Encoding: br\r\n" + VARY;
+            default:
+                return "Content-Encoding: " + encoding + "\r\n" + VARY;
+        }
+    }
+
+    // caches must not hand a compressed variant to a client that did not ask for it, or the other way round
+    private static String vary(String mimeType) {
+        return ContentEncoding.compressible(mimeType) ? VARY : "";
+    }
+
+    private static String rangeFields(String mimeType) {
+        return ContentEncoding.compressible(mimeType) ? ACCEPT_RANGES + VARY : ACCEPT_RANGES;
+    }
+
+    /**
+     * A head that is kept with its response, written through ResponseHead into a heap buffer of
+     * its own. It lives as long as the response, which may sit in a cache and be written by many
+     * threads at once, so it is not taken from the BufferPool.
+     * @param status
+     * @param contentType null for a head without Content-Type and Content-Length
+     * @param contentLength
+     * @param extraFields complete header lines, each ending in CRLF
+     * @param etag null for a head without validators
+     * @param lastModified
+     * @param cacheControl the Cache-Control header, or null for none
+     * @return the head up to the Connection header
+     */
+    private static ByteBuffer head(String status, String contentType, long contentLength, String extraFields,
+                                   String etag, long lastModified, String cacheControl) {
+        ByteBuffer head = ByteBuffer.allocate(headSize(status, contentType, extraFields, etag, cacheControl));
+        writeHead(head, status, contentType, contentLength, extraFields, etag, lastModified, cacheControl);
+        return head.flip().asReadOnlyBuffer();
+    }
+
+    private static void writeHead(ByteBuffer out, String status, String contentType, long contentLength,
+                                  String extraFields, String etag, long lastModified, String cacheControl) {
+        ResponseHead.status(out, status);
+        if (contentType != null) {
+            ResponseHead.field(out, "Content-Type", contentType);
+            ResponseHead.field(out, "Content-Length", contentLength);
+        }
+        ResponseHead.lines(out, extraFields);
+        if (etag != null) {
+            ResponseHead.field(out, "ETag", etag);
+            ResponseHead.field(out, "Last-Modified", httpDate(lastModified));
+        }
+        if (cacheControl != null) {
+            ResponseHead.field(out, "Cache-Control", cacheControl);
+        }
+    }
+
+    // the most writeHead puts: "HTTP/1.1 ", the names with ": " and the line ends, up to 19 digits
+    // and a date of 29 characters
+    private static int headSize(String status, String contentType, String extraFields, String etag,
+                                String cacheControl) {
+        int size = 9 + status.length() + 2 + extraFields.length();
+        if (contentType != null) {
+            size += 14 + contentType.length() + 2 + 16 + 19 + 2;
+        }
+        if (etag != null) {
+            size += 6 + etag.length() + 2 + 15 + 29 + 2;
+        }
+        if (cacheControl != null) {
+            size += 15 + cacheControl.length() + 2;
+        }
+        return size;
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param millis
+     * @return the time as an HTTP date, for example "Mon, 09 Aug 2021 10:15:30 GMT"
+     */
+    public static String httpDate(long millis) {
+        return httpDateFormat.format(Instant.ofEpochMilli(millis));
+    }
+
+    public String status() {
+        return status;
+    }
+
+    /**
+     * Bad requests and server errors leave the connection in an unknown state,
+     * so it is closed after them even when the client asked for keep-alive.
+     * A client that is over its rate limit is sent away as well, and so is one whose body was too
+     * large to read.
+     * @return
+     */
+    public boolean mustClose() {
+        return status.startsWith("400") || status.startsWith("413") || status.startsWith("429")
+                || status.startsWith("5");
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the modification time of the file this response was made from, or -1
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the entity tag of a file response, or null
+     */
+    public String etag() {
+        return etag;
+    }
+
+    /**
+     * The answer for a client whose copy is still current: the validators and caching headers of
+     * this response without the body. It is serialized once and kept with this response.
+     * @return
+     */
+    public HttpResponse notModified() {
+        HttpResponse response = notModified;
+        if (response == null) {
+            response = new HttpResponse(new HttpResponse("304 Not Modified", contentType, lastModified, etag,
+                    cacheControl, head("304 Not Modified", null, 0, vary(contentType), etag, lastModified, cacheControl),
+                    new ByteBuffer[0], null));
+            notModified = response;
+        }
+        return response;
+    }
+
+    /**
+     * @return the whole content of a file response that is held in memory, or null otherwise.
+     * Only such responses can answer Range requests.
+     */
+    public ByteBuffer content() {
+        return lastModified >= 0 && body != null && body.length == 1 ? body[0].duplicate() : null;
+    }
+
+    /**
+     * The headers for HTTP/2, which has no status line and no Connection header and wants the
+     * names in lower case. Taken from the serialized head once and kept with this response.
+     * @return name and value of every header, one after the other
+     */
+    public List<String> headerFields() {
+        List<String> list = headerFields;
+        if (list == null) {
+            list = new ArrayList<>();
+            String head = StandardCharsets.US_ASCII.decode(fields.duplicate()).toString();
+            // the first line is the status line
+            for (String line : head.substring(head.indexOf("\r\n") + 2).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    list.add(line.substring(0, colon).toLowerCase(Locale.ROOT));
+                    list.add(line.substring(colon + 1).trim());
+                }
+            }
+            list = Collections.unmodifiableList(list);
+            headerFields = list;
+        }
+        return list;
+    }
+
+    /**
+     * @return fresh views on the body in memory, none for a file response
+     */
+    public ByteBuffer[] body() {
+        if (body == null) {
+            return new ByteBuffer[0];
+        }
+        ByteBuffer[] views = new ByteBuffer[body.length];
+        for (int i = 0; i < body.length; i++) {
+            views[i] = body[i].duplicate();
+        }
+        return views;
+    }
+
+    /**
+     * @return the file to send, or null when the body is in memory
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * @return where the body starts in the file, 0 unless this is a range of it
+     */
+    public long fileStart() {
+        return fileStart;
+    }
+
+    /**
+     * @return where the body ends in the file, as its Content-Length says
+     */
+    public long fileEnd() {
+        return fileStart + fileLength;
+    }
+
+    /**
+     * @return the bytes this response keeps in memory
+     */
+    public long memorySize() {
+        long size = fields.capacity();
+        if (body != null) {
+            for (ByteBuffer part : body) {
+                size += part.capacity();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param keepAlive whether the connection stays open after this response
+     * @return the status line and headers, including the empty line that ends them
+     */
+    public byte[] head(boolean keepAlive) {
+        ByteBuffer end = keepAlive ? keepAliveEnd : closeEnd;
+        byte[] head = new byte[fields.remaining() + end.remaining()];
+        fields.duplicate().get(head, 0, fields.remaining());
+        end.duplicate().get(head, fields.remaining(), end.remaining());
+        return head;
+    }
+
+    /**
+     * Every call returns fresh views on the same bytes, so one response can be written to
+     * many connections at the same time.
+     * @param keepAlive whether the connection stays open after this response
+     * @return the head and the body in memory, ready for a single gathering write
+     */
+    public ByteBuffer[] buffers(boolean keepAlive) {
+        if (keepAliveWhole != null) {
+            return new ByteBuffer[]{(keepAlive ? keepAliveWhole : closeWhole).duplicate()};
+        }
+        int parts = body == null ? 0 : body.length;
+        ByteBuffer[] buffers = new ByteBuffer[2 + parts];
+        buffers[0] = fields.duplicate();
+        buffers[1] = (keepAlive ? keepAliveEnd : closeEnd).duplicate();
+        for (int i = 0; i < parts; i++) {
+            buffers[2 + i] = body[i].duplicate();
+        }
+        return buffers;
+    }
+
+    /**
+     * @param buffers
+     * @return true while any of the buffers still has bytes to write
+     */
+    public static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the response on a blocking socket. The head of a file response goes out in the same
+     * write as the start of the file (see FileTransfer).
+     * @param connection
+     * @param keepAlive whether the connection stays open after this response
+     * @throws IOException
+     */
+    public void writeTo(Socket connection, boolean keepAlive) throws IOException {
+        if (file != null) {
+            FileTransfer.send(buffers(keepAlive), file, fileStart, fileEnd(), connection);
+            return;
+        }
+        SocketChannel channel = connection.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            ByteBuffer[] buffers = buffers(keepAlive);
+            while (hasRemaining(buffers)) {
+                channel.write(buffers);
+            }
+        } else {
+            writeTo(connection.getOutputStream(), keepAlive);
+        }
+    }
+
+    /**
+     * Writes the head and the body in memory to a stream. A file body is not written.
+     * @param socketOut
+     * @param keepAlive whether the connection stays open after this response
+     * @throws IOException
+     */
+    public void writeTo(OutputStream socketOut, boolean keepAlive) throws IOException {
+        OutputStream out = new BufferedOutputStream(socketOut);
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (ByteBuffer buffer : buffers(keepAlive)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,117 @@
+package lab11;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets that grow with the value, in the way of an HDR histogram:
+ * every power of two is split into 16 buckets, so a recorded value is known to within about 6%
+ * whether it is 50 microseconds or 5 seconds. Recording is one lock-free increment and never
+ * allocates, so it can be done on every request. Values are in nanoseconds, anything above
+ * about half an hour is counted in the last bucket.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int MAX_MAGNITUDE = 40;
+    private final static int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index
+     * @return the largest value that is counted in the bucket
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the total of all recorded values, in nanoseconds
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest recorded value, in nanoseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1, for example 0.99
+     * @return the value that the given share of the recordings does not exceed, in nanoseconds
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * @param nanos
+     * @return how many recordings were at most this value, counting a bucket only when it lies
+     * below the value as a whole
+     */
+    public long countAtMost(long nanos) {
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= nanos; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,289 @@
+package lab11;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Starting, reloading and stopping a server without losing what it has in flight or in memory.
+ * - Settings can come from a properties file, server.config, next to the command line; a -D on
+ *   the command line wins. The file is checked every second and a change is applied in place:
+ *   the sites and everything that shapes their caches (see VirtualHosts), and the templates.
+ *   Ports, threads and the other settings are read once and need a restart.
+ * - Stopping drains: the ports are closed, /health answers 503, responses go out with
+ *   Connection: close and HTTP/2 connections get GOAWAY. Whatever is still open after
+ *   server.drainTimeout milliseconds is closed.
+ * - A restart does not have to drop connections. With server.reusePort the ports are bound with
+ *   SO_REUSEPORT, so a new process can listen next to the old one: start the new one, wait for
+ *   its "Listening" lines, then stop the old one, which drains while the new one takes over.
+ *   Connections that were still waiting in the old process's accept queue when it closes its
+ *   ports are reset by the kernel; there are few of them, since the new process takes its share
+ *   of new connections the moment it listens.
+ * - A new process does not start cold. With server.warmupManifest the paths that are in the file
+ *   caches are written to that file every server.manifestInterval milliseconds and when draining
+ *   starts, and at startup, before the ports are bound, they are requested server.warmupRequests
+ *   times in total. That loads the caches and compressed variants, and gives the JIT the parser
+ *   and routing code to compile before the first client is waiting on it.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Lifecycle {
+
+    private final static long CHECK_INTERVAL = 1000;
+    // paths per site in the manifest
+    private final static int MANIFEST_FILES = 1000;
+
+    private final File config;
+    // set on the command line, a file does not change them
+    private final Set<String> commandLine;
+    // set by the file, cleared when they are taken out of it again
+    private final Set<String> fromFile = new HashSet<>();
+    private long configModified;
+    private final File manifest;
+    private final long manifestInterval;
+    private final int warmupRequests;
+    private final long drainTimeout;
+    private volatile boolean draining;
+
+    private Lifecycle(File config) {
+        this.config = config;
+        this.commandLine = System.getProperties().stringPropertyNames();
+        if (config != null && !config.isFile()) {
+            System.out.println("No config file at " + config + ", it is read once it is there.");
+        }
+        loadConfig();
+        String manifestFile = System.getProperty("server.warmupManifest");
+        this.manifest = manifestFile != null ? new File(manifestFile) : null;
+        this.manifestInterval = Long.getLong("server.manifestInterval", 60_000);
+        this.warmupRequests = Integer.getInteger("server.warmupRequests", 20_000);
+        this.drainTimeout = Long.getLong("server.drainTimeout", 30_000);
+    }
+
+    /**
+     * Reads server.config right away, so it must be made before the settings are read.
+     * @return
+     */
+    public static Lifecycle fromSystemProperties() {
+        String config = System.getProperty("server.config");
+        return new Lifecycle(config != null ? new File(config) : null);
+    }
+
+    /**
+     * Binds a listening port, with SO_REUSEPORT when server.reusePort is on and the platform has it.
+     * @param port
+     * @return
+     * @throws IOException when the port cannot be bound
+     */
+    public static ServerSocketChannel bind(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (Boolean.getBoolean("server.reusePort")) {
+                if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else {
+                    System.out.println("SO_REUSEPORT is not available, port " + port + " is bound alone.");
+                }
+            }
+            return channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies server.config to the system properties when it changed since the last time.
+     * @return true when it changed
+     */
+    private synchronized boolean loadConfig() {
+        if (config == null) {
+            return false;
+        }
+        long modified = config.lastModified();
+        if (modified == configModified) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(config.toPath(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            System.out.println("Cannot read " + config + ": " + e);
+            return false;
+        }
+        configModified = modified;
+        for (String key : fromFile) {
+            if (!properties.containsKey(key)) {
+                System.clearProperty(key);
+            }
+        }
+        fromFile.clear();
+        for (String key : properties.stringPropertyNames()) {
+            if (!commandLine.contains(key)) {
+                System.setProperty(key, properties.getProperty(key).trim());
+                fromFile.add(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts a daemon thread that applies changes to server.config and writes the manifest.
+     * @param reload builds what depends on the settings again
+     * @param hosts the sites as they are now, for the manifest
+     */
+    public void start(Runnable reload, Supplier<VirtualHosts> hosts) {
+        if (config == null && manifest == null) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            long nextSave = System.currentTimeMillis() + manifestInterval;
+            while (!draining) {
+                try {
+                    Thread.sleep(CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (loadConfig()) {
+                        long start = System.nanoTime();
+                        reload.run();
+                        System.out.println("Reloaded " + config + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                    }
+                    if (manifest != null && System.currentTimeMillis() >= nextSave) {
+                        saveManifest(hosts.get());
+                        nextSave = System.currentTimeMillis() + manifestInterval;
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Reloading failed, the server goes on with what it had: " + e);
+                }
+            }
+        }, "lifecycle");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts draining: from now on connections are not kept alive. Writes the manifest one last time.
+     * @param hosts
+     */
+    public void drain(VirtualHosts hosts) {
+        draining = true;
+        if (manifest != null) {
+            saveManifest(hosts);
+        }
+    }
+
+    /**
+     * @return true once the server is stopping
+     */
+    public boolean draining() {
+        return draining;
+    }
+
+    /**
+     * @return how long open connections get to finish, in milliseconds
+     */
+    public long drainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Writes the recently used paths of every site, one "site TAB path" per line. The file is
+     * replaced in one move, so a process that starts meanwhile never reads half of it.
+     * @param hosts
+     */
+    private synchronized void saveManifest(VirtualHosts hosts) {
+        File temporary = new File(manifest.getPath() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+                for (VirtualHost host : hosts.sites()) {
+                    for (String path : host.recentPaths(MANIFEST_FILES)) {
+                        out.write(host.name + "\t" + path + "\n");
+                    }
+                }
+            }
+            Files.move(temporary.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot write the manifest " + manifest + ": " + e);
+        }
+    }
+
+    /**
+     * Requests the paths in the manifest, over and over until server.warmupRequests requests are
+     * made. The requests go through the parser and routing like real ones, nothing is written.
+     * @param route
+     * @return the number of paths in the manifest
+     */
+    public int warmUp(Function<HttpRequest, HttpResponse> route) {
+        if (manifest == null || !manifest.isFile()) {
+            return 0;
+        }
+        List<byte[]> requests = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    requests.add(("GET " + encode(line.substring(tab + 1)) + " HTTP/1.1\r\nHost: "
+                            + line.substring(0, tab) + "\r\nAccept-Encoding: gzip, deflate, br\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot read the manifest " + manifest + ": " + e);
+            return 0;
+        }
+        if (requests.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        int total = Math.max(requests.size(), warmupRequests);
+        HttpRequest request = new HttpRequest();
+        for (int i = 0; i < total; i++) {
+            byte[] bytes = requests.get(i % requests.size());
+            request.reset(0);
+            try {
+                if (request.parse(bytes, bytes.length)) {
+                    route.apply(request).release();
+                }
+            } catch (HttpRequest.BadRequestException e) {
+                // a path that is not valid any more
+            }
+        }
+        System.out.println("Warmed up with " + requests.size() + " files from " + manifest + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return requests.size();
+    }
+
+    /**
+     * Percent-encodes what cannot be in a request line, the decoded path comes out the same.
+     */
+    private static String encode(String path) {
+        StringBuilder encoded = new StringBuilder(path.length());
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if (c <= ' ' || c >= 0x7f || c == '%' || c == '?' || c == '#') {
+                encoded.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                encoded.append((char) c);
+            }
+        }
+        return encoded.toString();
+    }
+}
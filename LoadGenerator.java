@@ -0,0 +1,328 @@
+package lab11;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Puts load on a server over loopback and reports requests per second, latency percentiles and
+ * how much the server allocated per request. The server can be started in this JVM, so the same
+ * run can be repeated against ReadRequest, ReadRequest2 and NioServer and the numbers compared.
+ * Every client thread keeps one connection open when keep-alive is on, and opens a new one for
+ * every request otherwise, or when the server closes it.
+ * Settings:
+ * load.server (blocking, simple, nio or none to use a server that is already running),
+ * load.host, load.port (by default the port of the chosen server), load.concurrency,
+ * load.seconds, load.warmup (seconds not measured), load.keepAlive,
+ * load.mix (paths with weights, for example "/text/index.html=3,/image/favicon.ico=1")
+ * and load.notFound (share of requests for files that do not exist).
+ * Run it from the directory the server is started from, so the files are found.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class LoadGenerator {
+
+    private final static String DEFAULT_MIX = "/text/test.txt=4,/text/index.html=4,/image/favicon.ico=2,"
+            + "/image/r_1762546_aYm1W.jpg=1";
+
+    private final String host;
+    private final int port;
+    private final boolean keepAlive;
+    private final String[] paths;
+    private final int[] cumulativeWeights;
+    private final double notFound;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final Set<Long> clientThreads = ConcurrentHashMap.newKeySet();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    public LoadGenerator(String host, int port, boolean keepAlive, String mix, double notFound) {
+        this.host = host;
+        this.port = port;
+        this.keepAlive = keepAlive;
+        this.notFound = notFound;
+        String[] entries = mix.split(",");
+        paths = new String[entries.length];
+        cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            int equals = entries[i].lastIndexOf('=');
+            paths[i] = (equals < 0 ? entries[i] : entries[i].substring(0, equals)).trim();
+            total += equals < 0 ? 1 : Integer.parseInt(entries[i].substring(equals + 1).trim());
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // one log line per request would measure the console, not the server
+        System.setProperty("server.accessLog", System.getProperty("server.accessLog", "off"));
+        int concurrency = Integer.getInteger("load.concurrency", 32);
+        // every client comes from the loopback address, which should not count as one greedy client
+        if (System.getProperty("server.maxConnectionsPerAddress") == null) {
+            System.setProperty("server.maxConnectionsPerAddress", String.valueOf(Math.max(64, concurrency * 2)));
+        }
+        String server = System.getProperty("load.server", "blocking");
+        int serverPort = switch (server) {
+            case "simple" -> 8080;
+            case "nio" -> Integer.getInteger("server.nioPort", 1195);
+            default -> 1194;
+        };
+        int port = Integer.getInteger("load.port", serverPort);
+        String host = System.getProperty("load.host", "127.0.0.1");
+        int seconds = Integer.getInteger("load.seconds", 10);
+        int warmup = Integer.getInteger("load.warmup", 3);
+        boolean keepAlive = Boolean.parseBoolean(System.getProperty("load.keepAlive", "true"));
+        double notFound = Double.parseDouble(System.getProperty("load.notFound", "0.1"));
+        String mix = System.getProperty("load.mix", DEFAULT_MIX);
+
+        if (!startServer(server, host, port)) {
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(host, port, keepAlive, mix, notFound);
+        System.out.printf("%s server on port %d, %d clients, keep-alive %s, %d%% not found, %d s after %d s warm-up%n",
+                server, port, concurrency, keepAlive, Math.round(notFound * 100), seconds, warmup);
+        generator.run(concurrency, warmup, seconds);
+    }
+
+    /**
+     * Starts the server in this JVM and waits until it accepts connections.
+     * @return false when the server did not come up
+     */
+    private static boolean startServer(String server, String host, int port) throws InterruptedException {
+        Runnable main = switch (server) {
+            case "blocking" -> () -> ReadRequest.main(new String[0]);
+            case "simple" -> () -> ReadRequest2.main(new String[0]);
+            case "nio" -> () -> NioServer.main(new String[0]);
+            default -> null;
+        };
+        if (main == null && !server.equals("none")) {
+            System.out.println("Unknown server " + server + ", use blocking, simple, nio or none.");
+            return false;
+        }
+        if (main != null) {
+            Thread thread = new Thread(main, "server-main");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(host, port), 1000);
+                return true;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        System.out.println("Nothing is listening on " + host + ":" + port);
+        return false;
+    }
+
+    /**
+     * Runs the clients, first without measuring to let the server warm up, then measured.
+     * @param concurrency number of client threads
+     * @param warmupSeconds
+     * @param seconds
+     */
+    public void run(int concurrency, int warmupSeconds, int seconds) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread client = new Thread(this::client, "load-" + i);
+            client.setDaemon(true);
+            clients.add(client);
+            client.start();
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<Long, Long> allocatedBefore = serverAllocation(threads);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        Map<Long, Long> allocatedAfter = serverAllocation(threads);
+        running = false;
+        for (Thread client : clients) {
+            client.join(2000);
+        }
+
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : allocatedAfter.entrySet()) {
+            allocated += thread.getValue() - allocatedBefore.getOrDefault(thread.getKey(), 0L);
+        }
+        report(elapsed, allocated);
+    }
+
+    /**
+     * @return bytes allocated so far by every live thread that is not a client
+     */
+    private Map<Long, Long> serverAllocation(com.sun.management.ThreadMXBean threads) {
+        Map<Long, Long> allocated = new HashMap<>();
+        for (long id : threads.getAllThreadIds()) {
+            if (!clientThreads.contains(id)) {
+                long bytes = threads.getThreadAllocatedBytes(id);
+                if (bytes >= 0) {
+                    allocated.put(id, bytes);
+                }
+            }
+        }
+        return allocated;
+    }
+
+    private void report(long elapsed, long allocated) {
+        double seconds = elapsed / 1e9;
+        long count = requests.sum();
+        System.out.printf("requests     %d in %.1f s, %.1f requests/s, %.1f MB/s, %d errors%n",
+                count, seconds, count / seconds, bytes.sum() / seconds / (1024 * 1024), errors.sum());
+        System.out.printf("latency      p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+                latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+                latency.percentile(0.999) / 1e6, latency.max() / 1e6);
+        if (allocated > 0) {
+            System.out.printf("allocation   %.1f MB/s, %d bytes/request (server threads in this JVM)%n",
+                    allocated / seconds / (1024 * 1024), count > 0 ? allocated / count : 0);
+        }
+        StringBuilder codes = new StringBuilder("status      ");
+        statuses.forEach((status, number) -> codes.append(' ').append(status).append(": ").append(number.sum()));
+        System.out.println(codes);
+    }
+
+    private void client() {
+        clientThreads.add(Thread.currentThread().getId());
+        byte[] buffer = new byte[64 * 1024];
+        Socket socket = null;
+        InputStream in = null;
+        while (running) {
+            try {
+                if (socket == null) {
+                    socket = new Socket(host, port);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(10_000);
+                    in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                }
+                byte[] request = ("GET " + nextPath() + " HTTP/1.1\r\n" +
+                        "Host: " + host + ":" + port + "\r\n" +
+                        "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                        "\r\n").getBytes(StandardCharsets.US_ASCII);
+                long start = System.nanoTime();
+                OutputStream out = socket.getOutputStream();
+                out.write(request);
+                out.flush();
+                boolean open = readResponse(in, buffer);
+                long nanos = System.nanoTime() - start;
+                if (measuring) {
+                    latency.record(nanos);
+                    requests.increment();
+                }
+                if (!open || !keepAlive) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                if (measuring) {
+                    errors.increment();
+                }
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException ex) {
+                    // already broken
+                }
+                socket = null;
+            }
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // done anyway
+        }
+    }
+
+    private String nextPath() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < notFound) {
+            return "/text/missing-" + random.nextInt(1000) + ".txt";
+        }
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < paths.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return paths[i];
+            }
+        }
+        return paths[paths.length - 1];
+    }
+
+    /**
+     * Reads one response: the head up to the empty line, then Content-Length bytes of body.
+     * @return false when the server is going to close the connection
+     */
+    private boolean readResponse(InputStream in, byte[] buffer) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        int previous = -1;
+        int lineStart = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed in the middle of a response");
+            }
+            head.append((char) b);
+            if (b == '\n' && previous == '\r') {
+                if (head.length() - lineStart == 2) {
+                    break;
+                }
+                lineStart = head.length();
+            }
+            previous = b;
+        }
+        String text = head.toString();
+        int status = Integer.parseInt(text.substring(9, 12));
+        long length = 0;
+        boolean open = true;
+        for (String line : text.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                open = false;
+            }
+        }
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException("Connection closed in the middle of a body");
+            }
+            remaining -= n;
+        }
+        if (measuring) {
+            bytes.add(length);
+            statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+        }
+        return open;
+    }
+}
@@ -0,0 +1,208 @@
+package lab11;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * What the server has been doing, kept in counters and latency histograms that are cheap enough
+ * to update on every request, and written out in the Prometheus text format for /metrics.
+ * - one histogram per stage: waiting for a worker after accept, parsing the head, finding the
+ *   response (file lookup, cache, templates), sending it, and answering an error after an exception
+ * - per status code and content type a histogram of the whole request, which also counts them
+ * - gauges that are read when the metrics are written, such as open connections and queued
+ *   connections
+ * Nothing here takes a lock on the request path: counters are LongAdders, histograms are atomic
+ * arrays and a series is only created the first time its status code and type are seen.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Metrics {
+
+    public final static int ACCEPT = 0;
+    public final static int PARSE = 1;
+    public final static int LOOKUP = 2;
+    public final static int SEND = 3;
+    public final static int ERROR = 4;
+
+    private final static String[] stageNames = {"accept", "parse", "lookup", "send", "error"};
+    private final static double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+    // upper bounds of the buckets in seconds, written as Prometheus clients write them
+    private final static String[] bucketBounds = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+
+    private static class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[stageNames.length];
+    // status line ("200 OK") to content type to the requests with that outcome
+    private final Map<String, Map<String, LatencyHistogram>> requests = new ConcurrentHashMap<>();
+    private final LongAdder connections = new LongAdder();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    public Metrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param stage ACCEPT, PARSE, LOOKUP, SEND or ERROR
+     * @return the histogram of the stage, to record into directly
+     */
+    public LatencyHistogram stage(int stage) {
+        return stages[stage];
+    }
+
+    /**
+     * @param stage ACCEPT, PARSE, LOOKUP, SEND or ERROR
+     * @param nanos
+     */
+    public void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+
+    /**
+     * Counts one answered request.
+     * @param response what was sent
+     * @param nanos from the start of parsing until the response was written
+     */
+    public void request(HttpResponse response, long nanos) {
+        Map<String, LatencyHistogram> byType = requests.get(response.status());
+        if (byType == null) {
+            byType = requests.computeIfAbsent(response.status(), status -> new ConcurrentHashMap<>());
+        }
+        String type = response.contentType() != null ? response.contentType() : "";
+        LatencyHistogram histogram = byType.get(type);
+        if (histogram == null) {
+            histogram = byType.computeIfAbsent(type, key -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Counts one accepted connection.
+     */
+    public void connection() {
+        connections.increment();
+    }
+
+    /**
+     * A value that is read each time the metrics are written.
+     * @param name for example "server_active_connections"
+     * @param help
+     * @param value
+     */
+    public void addGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    /**
+     * A total that only goes up and is kept somewhere else, read each time the metrics are written.
+     * @param name should end in _total
+     * @param help
+     * @param value
+     */
+    public void addCounter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        header(out, "server_connections_total", "Connections accepted.", "counter");
+        out.append("server_connections_total ").append(connections.sum()).append('\n');
+
+        header(out, "server_stage_seconds", "Time spent in each stage of handling a request.", "summary");
+        for (int i = 0; i < stages.length; i++) {
+            String labels = "stage=\"" + stageNames[i] + "\"";
+            LatencyHistogram histogram = stages[i];
+            for (double quantile : quantiles) {
+                sample(out, "server_stage_seconds", labels + ",quantile=\"" + quantile + "\"",
+                        seconds(histogram.percentile(quantile)));
+            }
+            sample(out, "server_stage_seconds_sum", labels, seconds(histogram.sum()));
+            out.append("server_stage_seconds_count{").append(labels).append("} ").append(histogram.count()).append('\n');
+        }
+
+        header(out, "server_request_duration_seconds", "Requests by status code and content type, "
+                + "from parsing the head until the response was written.", "histogram");
+        for (Map.Entry<String, Map<String, LatencyHistogram>> byStatus : requests.entrySet()) {
+            String code = byStatus.getKey().length() >= 3 ? byStatus.getKey().substring(0, 3) : byStatus.getKey();
+            for (Map.Entry<String, LatencyHistogram> byType : byStatus.getValue().entrySet()) {
+                String labels = "code=\"" + code + "\",type=\"" + escape(byType.getKey()) + "\"";
+                LatencyHistogram histogram = byType.getValue();
+                for (String le : bucketBounds) {
+                    out.append("server_request_duration_seconds_bucket{").append(labels).append(",le=\"").append(le)
+                            .append("\"} ").append(histogram.countAtMost((long) (Double.parseDouble(le) * 1e9)))
+                            .append('\n');
+                }
+                long count = histogram.count();
+                out.append("server_request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                        .append(count).append('\n');
+                sample(out, "server_request_duration_seconds_sum", labels, seconds(histogram.sum()));
+                out.append("server_request_duration_seconds_count{").append(labels).append("} ").append(count).append('\n');
+            }
+        }
+
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.help, gauge.type);
+            out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the totals and every gauge and counter as one JSON object, for the status page
+     */
+    public String json() {
+        long requestCount = 0;
+        for (Map<String, LatencyHistogram> byType : requests.values()) {
+            for (LatencyHistogram histogram : byType.values()) {
+                requestCount += histogram.count();
+            }
+        }
+        StringBuilder out = new StringBuilder(2048);
+        out.append("{\"server_connections_total\":").append(connections.sum());
+        out.append(",\"server_requests_total\":").append(requestCount);
+        for (Gauge gauge : gauges) {
+            out.append(",\"").append(gauge.name).append("\":").append(gauge.value.getAsLong());
+        }
+        return out.append('}').toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ")
+                .append(String.format(Locale.ROOT, "%.9f", value)).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,49 @@
+package lab11;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The MIME type of a file, decided by the extension of its name. A class of its own with nothing
+ * but a table, so the path index can use it from its scan threads without loading a server class.
+ *
+ * @Author Thorben Dhaenens
+ */
+public final class MimeTypes {
+
+    // something made up; it will probably make the browser offer to save the file
+    final static String UNKNOWN = "x-application/x-unknown";
+
+    private final static Map<String, String> types = Map.ofEntries(
+            Map.entry("txt", "text/plain"),
+            Map.entry("html", "text/html"),
+            Map.entry("htm", "text/html"),
+            Map.entry("css", "text/css"),
+            Map.entry("js", "text/javascript"),
+            Map.entry("java", "text/x-java"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("png", "image/png"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("class", "application/java-vm"),
+            Map.entry("jar", "application/java-archive"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("xhtml", "application/xhtml+xml"));
+
+    private MimeTypes() {
+    }
+
+    /**
+     * @param fileName
+     * @return the type for the extension of the name, UNKNOWN without a known extension
+     */
+    public static String of(String fileName) {
+        int pos = fileName.lastIndexOf('.');
+        if (pos < 0) {
+            return UNKNOWN;
+        }
+        return types.getOrDefault(fileName.substring(pos + 1).toLowerCase(Locale.ROOT), UNKNOWN);
+    }
+}
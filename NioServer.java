@@ -0,0 +1,953 @@
+package lab11;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A second server engine on non-blocking channels. One thread accepts connections and hands
+ * them round-robin to one event loop per core; every event loop owns a Selector and never blocks
+ * on a socket. Requests are parsed as bytes arrive, the response head and page body go out in one
+ * gathering write, and so do the head and the start of a file, read into a pooled buffer (see
+ * BufferPool); the rest of the file is sent with transferTo. Connections stay open between requests
+ * (keep-alive) and pipelined requests are answered in order.
+ * Routing is the same as the blocking server (ReadRequest.route), so both can be benchmarked
+ * side by side. File and template reads still happen on the event loop thread, and so do the
+ * handlers of dynamic routes. A request body is collected in full before its handler runs, it is
+ * bounded by server.maxBodySize. An async handler leaves a placeholder in the queue of the
+ * connection: the responses behind it wait, and its answer is written from a task that the event
+ * loop runs once the handler is done.
+ * Admission control is the same as well: connections over the limits are refused in the accept
+ * loop, and a head that is not complete within server.headTimeout closes the connection.
+ * With a keystore configured (see TlsContext) the ports in server.tlsPorts speak HTTPS next to the
+ * plaintext ports. Every TLS connection has its own SSLEngine in a TlsSession on the same event
+ * loops; the handshake has as long as a request head to finish.
+ * A connection can also speak HTTP/2 (see Http2Connection): on a TLS port when the client picks h2
+ * with ALPN, and on a plaintext port when it starts with the HTTP/2 preface (prior knowledge) or
+ * asks for Upgrade: h2c in its first request.
+ * Stopping drains (see Lifecycle): the ports close, idle connections are closed right away,
+ * HTTP/1.1 responses that are still to come go out with Connection: close and HTTP/2 connections
+ * get GOAWAY, until every connection is done or server.drainTimeout has passed.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class NioServer {
+
+    // first, so server.config is read before the ports are
+    private final static Lifecycle lifecycle = ReadRequest.lifecycle;
+    private final static int NIO_PORT = Integer.getInteger("server.nioPort", 1195);
+    private final static int[] NIO_PORTS = ReadRequest.ports("server.nioPorts", NIO_PORT);
+    private final static int MAX_PIPELINED = 16;
+
+    private final ServerSocketChannel[] serverChannels;
+    // the TLS ports come after the plaintext ports
+    private final int plaintextCount;
+    private final TlsContext tlsContext;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running = true;
+    // when draining has to be done, 0 while the server is not stopping
+    private volatile long drainDeadline;
+
+    public NioServer(int port, int loopCount) throws IOException {
+        this(new int[]{port}, new int[0], null, loopCount);
+    }
+
+    /**
+     * @param ports every plaintext port to listen on, each gets an accepting thread
+     * @param tlsPorts every port that speaks TLS
+     * @param tlsContext needed when there are TLS ports
+     * @param loopCount
+     * @throws IOException when a port cannot be bound
+     */
+    public NioServer(int[] ports, int[] tlsPorts, TlsContext tlsContext, int loopCount) throws IOException {
+        serverChannels = new ServerSocketChannel[ports.length + tlsPorts.length];
+        plaintextCount = ports.length;
+        this.tlsContext = tlsContext;
+        try {
+            for (int i = 0; i < serverChannels.length; i++) {
+                int port = i < ports.length ? ports[i] : tlsPorts[i - ports.length];
+                serverChannels[i] = Lifecycle.bind(port);
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+        eventLoops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    public static void main(String[] args) {
+        TlsContext tlsContext = null;
+        try {
+            tlsContext = TlsContext.fromSystemProperties();
+        } catch (IOException e) {
+            System.out.println("No TLS: " + e.getMessage());
+        }
+        int[] tlsPorts = tlsContext != null ? ReadRequest.ports("server.tlsPorts", 1443) : new int[0];
+        ReadRequest.warmUp();
+        NioServer server;
+        try {
+            server = new NioServer(NIO_PORTS, tlsPorts, tlsContext, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            System.out.println("Failed to create listening socket.");
+            return;
+        }
+        if (tlsContext != null) {
+            ReadRequest.metrics.addCounter("server_tls_handshakes_total", "Finished TLS handshakes.",
+                    tlsContext::handshakes);
+            ReadRequest.metrics.addCounter("server_tls_resumed_total", "TLS handshakes that resumed a session.",
+                    tlsContext::resumedHandshakes);
+        }
+        ReadRequest.metrics.addCounter("server_http2_connections_total", "Connections that switched to HTTP/2.",
+                Http2Connection::connections);
+        ReadRequest.metrics.addCounter("server_http2_streams_total", "HTTP/2 streams opened by clients.",
+                Http2Connection::streams);
+        ReadRequest.startLifecycle();
+        ReadRequest.metrics.addGauge("server_nio_open_connections", "Connections open on the event loops.",
+                server.openConnections::get);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down, waiting for open connections.");
+            ReadRequest.startDraining();
+            if (!server.drain(lifecycle.drainTimeout())) {
+                System.out.println("Some connections did not finish in time.");
+            }
+            ReadRequest.accessLog.close(1000);
+        }));
+        for (int port : NIO_PORTS) {
+            System.out.println("Listening on port " + port + " (nio)");
+        }
+        for (int port : tlsPorts) {
+            System.out.println("Listening on port " + port + " (nio, tls)");
+        }
+        server.run();
+    }
+
+    /**
+     * Starts the event loops and accepts connections until close is called, on the calling thread
+     * for the first port and on a thread of its own for every other port.
+     */
+    public void run() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.thread.start();
+        }
+        for (int i = 1; i < serverChannels.length; i++) {
+            ServerSocketChannel serverChannel = serverChannels[i];
+            boolean secure = i >= plaintextCount;
+            new Thread(() -> accept(serverChannel, secure), "nio-acceptor-" + i).start();
+        }
+        accept(serverChannels[0], plaintextCount == 0);
+    }
+
+    private void accept(ServerSocketChannel serverChannel, boolean secure) {
+        try {
+            while (running && drainDeadline == 0) {
+                SocketChannel channel = serverChannel.accept();
+                ReadRequest.metrics.connection();
+                InetAddress remote = channel.socket().getInetAddress();
+                int refusal = ReadRequest.admission.admit(remote);
+                if (refusal != AdmissionControl.ADMITTED) {
+                    if (secure) {
+                        channel.close(); // a plaintext 503 means nothing to a TLS client
+                    } else {
+                        refuse(refusal, channel);
+                    }
+                    continue;
+                }
+                Connection connection;
+                try {
+                    channel.configureBlocking(false);
+                    connection = new Connection(channel, secure ? tlsContext.newSession(channel) : null);
+                } catch (IOException | RuntimeException e) {
+                    // only this connection is lost, for example one that was reset right away
+                    ReadRequest.accessLog.message("Error while accepting a connection: " + e);
+                    ReadRequest.admission.release(remote);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // closed already
+                    }
+                    continue;
+                }
+                eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)].register(connection);
+            }
+        } catch (IOException e) {
+            if (running && drainDeadline == 0) {
+                System.out.println("Server socket shut down unexpectedly!");
+                System.out.println("Error: " + e);
+            }
+        }
+    }
+
+    private void closeChannels() {
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            try {
+                if (serverChannel != null) {
+                    serverChannel.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error while closing the listening socket: " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes a prebuilt 503 or 429 while the channel is still blocking and closes it. The response
+     * fits in the socket buffer, so this does not hold up accepting.
+     * @param errorCode
+     * @param channel
+     */
+    private static void refuse(int errorCode, SocketChannel channel) {
+        HttpResponse response = ReadRequest.errorResponse(errorCode);
+        InetAddress remote = channel.socket().getInetAddress();
+        try (channel) {
+            channel.write(response.buffers(false));
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // the client is gone already
+        }
+        ReadRequest.metrics.request(response, 0);
+        ReadRequest.accessLog.request(remote, null, response, 0);
+    }
+
+    /**
+     * Stops accepting and lets the event loops finish what their connections are doing.
+     * @param timeoutMillis how long they get, after that every connection is closed
+     * @return true when every connection finished in time
+     */
+    public boolean drain(long timeoutMillis) {
+        drainDeadline = System.currentTimeMillis() + timeoutMillis;
+        closeChannels();
+        boolean finished = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            try {
+                eventLoop.thread.join(Math.max(1, drainDeadline - System.currentTimeMillis() + 1000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished &= !eventLoop.cutShort;
+        }
+        close();
+        return finished;
+    }
+
+    /**
+     * Stops accepting and closes every event loop.
+     */
+    public void close() {
+        running = false;
+        closeChannels();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+    }
+
+    /**
+     * A response that is queued on a connection, with how far it has been written. The response
+     * is still null while an async handler works on it.
+     */
+    private static class PendingResponse {
+        HttpResponse response;
+        ByteBuffer[] out;
+        boolean closeAfter;
+        FileChannel file;
+        long filePosition;
+        long fileEnd;
+        // pooled, first the start of the file that goes out with the head, under TLS every chunk
+        ByteBuffer chunk;
+        ByteBuffer[] chunks;
+        // for the metrics and the access log once it is written
+        String requestLine;
+        long started = System.nanoTime();
+        long routed = started;
+        int stage = Metrics.SEND;
+
+        /**
+         * @return true once everything is written, false when the socket buffer is full
+         */
+        boolean writeTo(Connection connection) throws IOException {
+            if (connection.tls != null) {
+                return writeEncrypted(connection);
+            }
+            SocketChannel channel = connection.channel;
+            channel.write(out);
+            if (HttpResponse.hasRemaining(out)) {
+                return false;
+            }
+            while (file != null && filePosition < fileEnd) {
+                long sent = file.transferTo(filePosition, fileEnd - filePosition, channel);
+                if (sent == 0) {
+                    if (file.size() <= filePosition) {
+                        throw new IOException("File got shorter while sending it");
+                    }
+                    return false;
+                }
+                filePosition += sent;
+            }
+            return true;
+        }
+
+        /**
+         * Under TLS the rest of the file is read into the chunk buffer and encrypted from there.
+         */
+        private boolean writeEncrypted(Connection connection) throws IOException {
+            if (!connection.tls.write(out)) {
+                return false;
+            }
+            while (file != null && (filePosition < fileEnd || chunk.hasRemaining())) {
+                if (!chunk.hasRemaining()) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(chunk.capacity(), fileEnd - filePosition));
+                    int read = file.read(chunk, filePosition);
+                    if (read < 0) {
+                        throw new IOException("File got shorter while sending it");
+                    }
+                    filePosition += read;
+                    chunk.flip();
+                }
+                if (!connection.tls.write(chunks)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // read only, nothing lost
+            }
+            BufferPool.shared().release(chunk);
+            chunk = null;
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * State of one connection. Pipelined requests are parsed as soon as their head is complete and
+     * their responses are queued, so they go out in the order the requests came in.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final InetAddress remote;
+        final ByteBuffer in = ByteBuffer.allocate(HttpRequest.MAX_HEAD_SIZE);
+        final HttpRequest request = new HttpRequest();
+        final ArrayDeque<PendingResponse> responses = new ArrayDeque<>();
+        int served;
+        boolean inputClosed;
+        long lastActive = System.currentTimeMillis();
+        // when the first bytes of a head that is not complete yet arrived, 0 when there are none;
+        // a body is not part of it and has the idle timeout, as on the blocking server
+        long headStarted;
+        final long opened = System.currentTimeMillis();
+        // null for plaintext
+        final TlsSession tls;
+        // a request whose body is still coming in, the body is collected before the request is routed
+        HttpRequest bodyRequest;
+        byte[] body;
+        int bodyFilled;
+        // the Content-Length of that body, body grows to it as the bytes arrive
+        int bodyLength;
+        long bodyStarted;
+        // bytes of a body that was answered without being read and are still to be skipped
+        long discard;
+        // set once the connection speaks HTTP/2, the fields above for HTTP/1.1 are unused from then on
+        Http2Connection h2;
+
+        Connection(SocketChannel channel, TlsSession tls) {
+            this.channel = channel;
+            this.remote = channel.socket().getInetAddress();
+            this.tls = tls;
+        }
+
+        void close() {
+            for (PendingResponse response : responses) {
+                response.close();
+            }
+            responses.clear();
+            if (h2 != null) {
+                h2.close();
+            }
+            if (channel.isOpen()) {
+                openConnections.decrementAndGet();
+                ReadRequest.admission.release(remote);
+                if (tls != null) {
+                    tls.close();
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // set when draining ended with connections still open
+        volatile boolean cutShort;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "event-loop-" + index);
+        }
+
+        void register(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task on this event loop, from any thread, and then writes what it left for the connection.
+         * @param connection
+         * @param task
+         */
+        void execute(Connection connection, Runnable task) {
+            tasks.add(() -> {
+                task.run();
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key == null || !key.isValid()) {
+                    return;
+                }
+                try {
+                    write(key, connection);
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            });
+            selector.wakeup();
+        }
+
+        public void run() {
+            BufferPool.shared().enableThreadCache();
+            try {
+                while (running) {
+                    selector.select(drainDeadline == 0 ? 1000 : 100);
+                    registerPending();
+                    runTasks();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.lastActive = System.currentTimeMillis();
+                            if (key.isReadable()) {
+                                read(key, connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key, connection);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                    closeIdle();
+                    if (drainDeadline != 0 && drained()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                ReadRequest.accessLog.message("Event loop stopped: " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+
+        private void registerPending() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                try {
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    openConnections.incrementAndGet();
+                } catch (ClosedChannelException e) {
+                    // client left before we got to it
+                    ReadRequest.admission.release(connection.remote);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * @return true when draining is over: every connection is done or the deadline has passed
+         */
+        private boolean drained() {
+            if (selector.keys().isEmpty() && pending.isEmpty()) {
+                return true;
+            }
+            if (System.currentTimeMillis() > drainDeadline) {
+                cutShort = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Keep-alive connections that have nothing to write and sent nothing for too long are closed,
+         * and so are connections that keep sending a head without ever finishing it. While draining
+         * every connection is closed as soon as it is idle, and HTTP/2 connections get GOAWAY first.
+         */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            long deadline = now - ReadRequest.IDLE_TIMEOUT;
+            long headDeadline = now - ReadRequest.HEAD_TIMEOUT;
+            boolean draining = drainDeadline != 0;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                boolean handshaking = connection.tls != null && !connection.tls.established();
+                Http2Connection h2 = connection.h2;
+                if (draining && h2 != null && h2.drain()) {
+                    try {
+                        // the connection closes once GOAWAY is out and its streams are answered
+                        writeHttp2(key, connection);
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                    continue;
+                }
+                boolean busy = h2 != null ? !h2.idle() : !connection.responses.isEmpty();
+                long headStarted = h2 != null ? h2.frameStarted() : connection.headStarted;
+                if (!busy && (draining && headStarted == 0 && !handshaking || connection.lastActive < deadline
+                        || (headStarted != 0 && headStarted < headDeadline)
+                        || (handshaking && connection.opened < headDeadline))) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            TlsSession tls = connection.tls;
+            if (connection.h2 != null) {
+                if ((tls == null ? connection.channel.read(connection.h2.input()) : tls.read(connection.h2.input())) < 0) {
+                    connection.inputClosed = true;
+                }
+                receiveHttp2(connection);
+                writeHttp2(key, connection);
+                return;
+            }
+            if ((tls == null ? connection.channel.read(connection.in) : tls.read(connection.in)) < 0) {
+                connection.inputClosed = true;
+            }
+            if (connection.served == 0 && connection.responses.isEmpty()) {
+                int preface = tls == null ? Http2Connection.preface(connection.in)
+                        : tls.established() && "h2".equals(tls.applicationProtocol()) ? 1 : -1;
+                if (preface == 0 && !connection.inputClosed) {
+                    return; // it could still become the HTTP/2 preface
+                } else if (preface == 1) {
+                    connection.h2 = new Http2Connection(connection.remote, task -> execute(connection, task));
+                    connection.h2.start(connection.in);
+                }
+            }
+            if (connection.h2 == null) {
+                parseRequests(connection);
+            }
+            if (connection.h2 != null) {
+                receiveHttp2(connection);
+                writeHttp2(key, connection);
+            } else if (!connection.responses.isEmpty() || (tls != null && tls.pendingOutput())) {
+                write(key, connection);
+            } else if (connection.inputClosed) {
+                connection.close();
+            }
+        }
+
+        /**
+         * Turns every complete request in the input buffer into a queued response. Parsing pauses
+         * while too many responses are waiting, so a client cannot pile up unlimited work, and while
+         * an async handler works on the last one.
+         */
+        private void parseRequests(Connection connection) {
+            ByteBuffer in = connection.in;
+            HttpRequest request = connection.request;
+            if (connection.tls != null) {
+                connection.tls.drain(in);
+            }
+            int start = 0;
+            while (connection.responses.size() < MAX_PIPELINED && !closing(connection) && !waiting(connection)) {
+                if (connection.discard > 0) {
+                    int take = (int) Math.min(in.position() - start, connection.discard);
+                    connection.discard -= take;
+                    start += take;
+                    request.reset(start);
+                    if (connection.discard > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (connection.body != null) {
+                    // the body of the last head comes before the next request
+                    int take = Math.min(in.position() - start, connection.bodyLength - connection.bodyFilled);
+                    connection.body = RequestBody.grow(connection.body, connection.bodyFilled + take,
+                            connection.bodyLength);
+                    System.arraycopy(in.array(), start, connection.body, connection.bodyFilled, take);
+                    connection.bodyFilled += take;
+                    start += take;
+                    request.reset(start);
+                    if (connection.bodyFilled < connection.bodyLength) {
+                        break;
+                    }
+                    HttpRequest withBody = connection.bodyRequest;
+                    withBody.body(RequestBody.of(connection.body, connection.bodyLength));
+                    connection.body = null;
+                    connection.bodyRequest = null;
+                    answer(connection, withBody, true, true, connection.bodyStarted, System.nanoTime());
+                    continue;
+                }
+                long started = System.nanoTime();
+                PendingResponse pending;
+                try {
+                    if (!request.parse(in.array(), in.position())) {
+                        break;
+                    }
+                    if (connection.tls == null && connection.responses.isEmpty()
+                            && Http2Connection.upgradeRequested(request)) {
+                        Http2Connection h2 = new Http2Connection(connection.remote, task -> execute(connection, task));
+                        if (h2.upgrade(request, started, in, request.headEnd())) {
+                            connection.h2 = h2;
+                            connection.served++;
+                            connection.headStarted = 0;
+                            request.reset(0);
+                            return;
+                        }
+                    }
+                    long parsed = System.nanoTime();
+                    ReadRequest.metrics.record(Metrics.PARSE, parsed - started);
+                    connection.served++;
+                    connection.headStarted = 0;
+                    int refusal = RequestBody.refusal(request);
+                    long length = request.contentLength();
+                    if (refusal != 0) {
+                        // the body is not read, so the connection cannot be used for another request
+                        pending = queue(connection, ReadRequest.errorResponse(refusal), false);
+                        pending.requestLine = request.requestLine();
+                        pending.started = started;
+                    } else if (length > 0) {
+                        boolean admitted = admitted(connection);
+                        start = request.headEnd();
+                        if (!admitted || !ReadRequest.routes.takesBody(request)) {
+                            // answered right away; the body is skipped as it comes in, unless the
+                            // client waits for 100 Continue and may never send it, then the connection closes
+                            boolean waiting = request.headerHasToken("expect", "100-continue")
+                                    && in.position() - start < length;
+                            answer(connection, request, admitted, !waiting, started, parsed);
+                            connection.discard = waiting ? 0 : length;
+                            request.reset(start);
+                            continue;
+                        }
+                        connection.bodyRequest = request.copy();
+                        connection.body = RequestBody.firstBuffer(length);
+                        connection.bodyLength = (int) length;
+                        connection.bodyFilled = 0;
+                        connection.bodyStarted = started;
+                        if (request.headerHasToken("expect", "100-continue") && connection.responses.isEmpty()
+                                && in.position() - start < length) {
+                            sendContinue(connection);
+                        }
+                        request.reset(start);
+                        continue;
+                    } else {
+                        answer(connection, request, admitted(connection), true, started, parsed);
+                    }
+                } catch (HttpRequest.BadRequestException e) {
+                    pending = queue(connection, ReadRequest.errorResponse(400), false);
+                    pending.stage = Metrics.ERROR;
+                    pending.started = started;
+                }
+                start = Math.max(request.headEnd(), start);
+                request.reset(start);
+            }
+            if (start > 0) {
+                // move the unparsed bytes to the front of the buffer, the partial head is parsed again
+                in.flip().position(start);
+                in.compact();
+                request.reset(0);
+            }
+            if (in.position() == 0 || connection.body != null || connection.discard > 0) {
+                connection.headStarted = 0;
+            } else if (connection.headStarted == 0 && ReadRequest.HEAD_TIMEOUT > 0) {
+                connection.headStarted = System.currentTimeMillis();
+            }
+            if (!in.hasRemaining() && connection.responses.isEmpty()) {
+                queue(connection, ReadRequest.errorResponse(400), false).stage = Metrics.ERROR;
+            } else if (start > 0 && connection.tls != null && connection.tls.buffered()) {
+                // decrypted requests that did not fit yet, there is room for them now
+                parseRequests(connection);
+            }
+        }
+
+        private boolean closing(Connection connection) {
+            PendingResponse last = connection.responses.peekLast();
+            return last != null && last.closeAfter;
+        }
+
+        private boolean waiting(Connection connection) {
+            PendingResponse last = connection.responses.peekLast();
+            return last != null && last.response == null;
+        }
+
+        /**
+         * Tells a client that waits with its body to send it. The interim response is tiny and the
+         * connection has nothing else to write, so it goes out right away; if not, the client sends
+         * its body anyway after a while.
+         */
+        private void sendContinue(Connection connection) {
+            ByteBuffer[] buffers = {ByteBuffer.wrap(RequestBody.CONTINUE)};
+            try {
+                if (connection.tls != null) {
+                    connection.tls.write(buffers);
+                } else {
+                    connection.channel.write(buffers);
+                }
+            } catch (IOException e) {
+                // the next read or write finds out as well
+            }
+        }
+
+        private boolean admitted(Connection connection) {
+            // the first request is paid for by the token the connection took
+            return connection.served == 1 || ReadRequest.admission.allowRequest(connection.remote);
+        }
+
+        /**
+         * Routes a complete request and queues its response, or a placeholder for an async handler.
+         * @param connection
+         * @param request with its body
+         * @param admitted false to answer it with a 429
+         * @param reusable false when the connection cannot take another request after this one
+         * @param started when its head started to be parsed
+         * @param parsed when it was complete
+         */
+        private void answer(Connection connection, HttpRequest request, boolean admitted, boolean reusable,
+                            long started, long parsed) {
+            HttpResponse response = admitted ? respond(request) : ReadRequest.errorResponse(AdmissionControl.TOO_MANY_REQUESTS);
+            boolean keepAlive = reusable && request.keepAlive() && connection.served < ReadRequest.MAX_REQUESTS
+                    && drainDeadline == 0;
+            CompletableFuture<HttpResponse> later = response.later();
+            PendingResponse pending;
+            if (later == null) {
+                pending = queue(connection, response, keepAlive && !response.mustClose());
+                pending.routed = System.nanoTime();
+                ReadRequest.metrics.record(Metrics.LOOKUP, pending.routed - parsed);
+            } else {
+                pending = new PendingResponse();
+                connection.responses.add(pending);
+                later.whenComplete((result, error) -> execute(connection,
+                        () -> completed(connection, pending, Routes.outcome(result, error), keepAlive, parsed)));
+            }
+            pending.requestLine = request.requestLine();
+            pending.started = started;
+        }
+
+        /**
+         * Fills in the placeholder of an async handler, on the event loop.
+         */
+        private void completed(Connection connection, PendingResponse pending, HttpResponse response,
+                               boolean keepAlive, long parsed) {
+            if (!connection.channel.isOpen()) {
+                response.release();
+                return;
+            }
+            prepare(pending, response, keepAlive && !response.mustClose());
+            pending.routed = System.nanoTime();
+            ReadRequest.metrics.record(Metrics.LOOKUP, pending.routed - parsed);
+        }
+
+        private PendingResponse queue(Connection connection, HttpResponse response, boolean keepAlive) {
+            PendingResponse pending = new PendingResponse();
+            prepare(pending, response, keepAlive);
+            connection.responses.add(pending);
+            return pending;
+        }
+
+        /**
+         * The start of a file is read right away, so it goes out in the same write as the head.
+         */
+        private void prepare(PendingResponse pending, HttpResponse response, boolean keepAlive) {
+            FileChannel file = null;
+            ByteBuffer chunk = null;
+            long start = 0;
+            long end = 0;
+            if (response.file() != null) {
+                try {
+                    file = FileChannel.open(response.file().toPath(), StandardOpenOption.READ);
+                    start = response.fileStart();
+                    end = response.fileEnd();
+                    chunk = BufferPool.shared().acquire((int) Math.min(end - start, FileTransfer.FIRST_CHUNK));
+                    while (chunk.hasRemaining() && file.read(chunk, start + chunk.position()) > 0) {
+                        // reads the start of the file, normally in one go
+                    }
+                    chunk.flip();
+                } catch (IOException e) {
+                    BufferPool.shared().release(chunk);
+                    chunk = null;
+                    try {
+                        if (file != null) {
+                            file.close();
+                        }
+                    } catch (IOException ignored) {
+                        // read only, nothing lost
+                    }
+                    file = null;
+                    response = ReadRequest.errorResponse(500);
+                    keepAlive = false;
+                }
+            }
+            ByteBuffer[] out = response.buffers(keepAlive);
+            if (chunk != null) {
+                out = Arrays.copyOf(out, out.length + 1);
+                out[out.length - 1] = chunk;
+            }
+            pending.response = response;
+            pending.out = out;
+            pending.closeAfter = !keepAlive;
+            if (file != null) {
+                pending.file = file;
+                pending.filePosition = start + chunk.limit();
+                pending.fileEnd = end;
+                pending.chunk = chunk;
+                pending.chunks = new ByteBuffer[]{chunk};
+            }
+        }
+
+        private HttpResponse respond(HttpRequest request) {
+            try {
+                return ReadRequest.route(request);
+            } catch (Exception e) {
+                ReadRequest.accessLog.message("Error while communicating with client: " + e);
+                return ReadRequest.errorResponse(500);
+            }
+        }
+
+        private void write(SelectionKey key, Connection connection) throws IOException {
+            if (connection.tls != null) {
+                if (!connection.tls.flushPending()) {
+                    key.interestOps(SelectionKey.OP_WRITE); // handshake or encrypted bytes still waiting
+                    return;
+                }
+                if (connection.h2 == null && connection.responses.isEmpty() && connection.tls.buffered()) {
+                    parseRequests(connection);
+                }
+            }
+            if (connection.h2 != null) {
+                receiveHttp2(connection);
+                writeHttp2(key, connection);
+                return;
+            }
+            while (!connection.responses.isEmpty()) {
+                PendingResponse response = connection.responses.peek();
+                if (response.response == null) {
+                    // an async handler is still busy, reading goes on as long as there is room
+                    key.interestOps(connection.inputClosed || !connection.in.hasRemaining() ? 0 : SelectionKey.OP_READ);
+                    return;
+                }
+                if (!response.writeTo(connection)) {
+                    key.interestOps(SelectionKey.OP_WRITE); // socket buffer is full
+                    return;
+                }
+                response.close();
+                connection.responses.poll();
+                written(connection, response);
+                if (response.closeAfter) {
+                    connection.close();
+                    return;
+                }
+                if (connection.responses.isEmpty()) {
+                    // answer requests that were held back while the queue was full
+                    parseRequests(connection);
+                    if (connection.h2 != null) {
+                        receiveHttp2(connection);
+                        writeHttp2(key, connection);
+                        return;
+                    }
+                }
+            }
+            if (connection.inputClosed) {
+                connection.close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Handles the frames in the HTTP/2 input buffer, and under TLS the decrypted bytes that did
+         * not fit into it yet.
+         */
+        private void receiveHttp2(Connection connection) {
+            Http2Connection h2 = connection.h2;
+            h2.receive();
+            while (connection.tls != null && connection.tls.buffered() && connection.tls.drain(h2.input()) > 0) {
+                h2.receive();
+            }
+        }
+
+        private void writeHttp2(SelectionKey key, Connection connection) throws IOException {
+            Http2Connection h2 = connection.h2;
+            ByteBuffer output = h2.output();
+            while (h2.produce()) {
+                if (connection.tls != null) {
+                    if (!connection.tls.write(new ByteBuffer[]{output})) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else {
+                    connection.channel.write(output);
+                    if (output.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE); // socket buffer is full
+                        return;
+                    }
+                }
+            }
+            if (h2.finished() || connection.inputClosed) {
+                connection.close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void written(Connection connection, PendingResponse response) {
+            long sent = System.nanoTime();
+            long nanos = sent - response.started;
+            ReadRequest.metrics.record(response.stage, sent - response.routed);
+            ReadRequest.metrics.request(response.response, nanos);
+            ReadRequest.accessLog.request(connection.remote, response.requestLine, response.response, nanos);
+        }
+    }
+}
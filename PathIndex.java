@@ -0,0 +1,278 @@
+package lab11;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * An index of every file and directory under the root, built once at startup, so a request can
+ * be classified (directory, readable file, missing, not readable) without a single stat call.
+ * The index is a trie with one node per path segment; every node holds the size, modification
+ * time, readability and MIME type of its file and an immutable map of its children, so a lookup
+ * costs one hash lookup per segment of the path.
+ * Large trees are walked in parallel, one fork/join task per directory.
+ * Nodes are never changed. When the DirectoryWatcher reports a change, the changed part is read
+ * again and a new root is built that shares every untouched subtree with the old one, and then
+ * swapped in at once; a request sees either the old or the new tree, never half of each.
+ * Between a change on disk and the event from the watcher the index can be a moment behind, so
+ * a file that was just created may still be answered with a 404.
+ * Enabled with server.pathIndex=true.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class PathIndex implements DirectoryWatcher.Listener {
+
+    // symbolic links can make a directory contain itself
+    private final static int MAX_DEPTH = 64;
+
+    /**
+     * What is known about one path. Immutable.
+     */
+    public static final class Entry {
+        private final static Map<String, Entry> NO_CHILDREN = Map.of();
+
+        final boolean directory;
+        final boolean readable;
+        final long length;
+        final long lastModified;
+        final String mimeType;
+        final Map<String, Entry> children;
+        // this entry and everything below it
+        final int count;
+
+        private Entry(String name, BasicFileAttributes attributes, boolean readable, Map<String, Entry> children) {
+            this.directory = attributes.isDirectory();
+            this.readable = readable;
+            this.length = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.mimeType = MimeTypes.of(name);
+            this.children = children;
+            this.count = 1 + children.values().stream().mapToInt(child -> child.count).sum();
+        }
+
+        private Entry(Entry entry, Map<String, Entry> children) {
+            this.directory = entry.directory;
+            this.readable = entry.readable;
+            this.length = entry.length;
+            this.lastModified = entry.lastModified;
+            this.mimeType = entry.mimeType;
+            this.children = children;
+            this.count = 1 + children.values().stream().mapToInt(child -> child.count).sum();
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return true for a regular file that can be read
+         */
+        public boolean isReadableFile() {
+            return !directory && readable;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public String mimeType() {
+            return mimeType;
+        }
+    }
+
+    private final Path root;
+    private volatile Entry rootEntry;
+
+    /**
+     * @param root the directory the request paths start from
+     */
+    public PathIndex(String root) {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Walks the whole tree and swaps in the new index. Changes reported while walking wait
+     * until it is done and are applied after it.
+     * @return the number of paths in the index
+     */
+    public synchronized int build() {
+        rootEntry = ForkJoinPool.commonPool().invoke(new Scan(root, "", 0));
+        return rootEntry != null ? rootEntry.count : 0;
+    }
+
+    /**
+     * @return false until build has run
+     */
+    public boolean built() {
+        return rootEntry != null;
+    }
+
+    /**
+     * @param requestPath a normalized path that starts with '/'
+     * @return what the index knows about the path, or null when it does not exist
+     */
+    public Entry get(String requestPath) {
+        Entry entry = rootEntry;
+        int start = 1;
+        int length = requestPath.length();
+        while (entry != null && start < length) {
+            int end = requestPath.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            entry = entry.children.get(requestPath.substring(start, end));
+            start = end + 1;
+        }
+        return entry;
+    }
+
+    /**
+     * @return the number of paths in the index
+     */
+    public int size() {
+        Entry entry = rootEntry;
+        return entry != null ? entry.count : 0;
+    }
+
+    /**
+     * Reads the changed path again and swaps in a root with the new entry. A null path means
+     * events were lost, then the whole tree is walked again.
+     * @param path
+     */
+    public synchronized void changed(Path path) {
+        if (rootEntry == null) {
+            return; // not built yet, the walk will see the change
+        }
+        if (path == null || path.equals(root)) {
+            build();
+            return;
+        }
+        if (!path.startsWith(root)) {
+            return;
+        }
+        Path relative = root.relativize(path);
+        List<String> segments = new ArrayList<>(relative.getNameCount());
+        for (Path segment : relative) {
+            segments.add(segment.toString());
+        }
+        // a change below a directory the index does not have yet is a change of that directory
+        Entry parent = rootEntry;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            parent = parent.children.get(segments.get(i));
+            if (parent == null || !parent.directory) {
+                segments = segments.subList(0, i + 1);
+                break;
+            }
+        }
+        Path changed = root.resolve(String.join("/", segments));
+        Entry old = get("/" + String.join("/", segments));
+        Entry replacement = rescan(changed, segments.get(segments.size() - 1), old, segments.size());
+        rootEntry = replace(rootEntry, segments, 0, replacement);
+    }
+
+    /**
+     * @return the new entry for a changed path, or null when it is gone
+     */
+    private Entry rescan(Path path, String name, Entry old, int depth) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (attributes.isDirectory() && old != null && old.directory) {
+            // only the directory itself changed, its entries report their own changes
+            return new Entry(name, attributes, Files.isReadable(path), old.children);
+        }
+        return ForkJoinPool.commonPool().invoke(new Scan(path, name, depth));
+    }
+
+    /**
+     * Copies the nodes on the way down to the changed path, every other node is shared.
+     */
+    private static Entry replace(Entry entry, List<String> segments, int index, Entry replacement) {
+        Map<String, Entry> children = new HashMap<>(entry.children);
+        String name = segments.get(index);
+        if (index == segments.size() - 1) {
+            if (replacement == null) {
+                children.remove(name);
+            } else {
+                children.put(name, replacement);
+            }
+        } else {
+            children.put(name, replace(entry.children.get(name), segments, index + 1, replacement));
+        }
+        return new Entry(entry, Map.copyOf(children));
+    }
+
+    /**
+     * Reads one path and, for a directory, everything below it. Subdirectories are scanned as
+     * tasks of their own, the files of a directory in the task of the directory.
+     */
+    private static class Scan extends RecursiveTask<Entry> {
+        private static final long serialVersionUID = 1L;
+
+        final Path path;
+        final String name;
+        final int depth;
+
+        Scan(Path path, String name, int depth) {
+            this.path = path;
+            this.name = name;
+            this.depth = depth;
+        }
+
+        protected Entry compute() {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null; // deleted while walking, or a broken link
+            }
+            boolean readable = Files.isReadable(path);
+            if (!attributes.isDirectory() || !readable || depth >= MAX_DEPTH) {
+                return new Entry(name, attributes, readable, Entry.NO_CHILDREN);
+            }
+            Map<String, Entry> children = new HashMap<>();
+            List<Scan> directories = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    Scan scan = new Scan(child, child.getFileName().toString(), depth + 1);
+                    if (Files.isDirectory(child)) {
+                        directories.add(scan);
+                    } else {
+                        Entry entry = scan.compute();
+                        if (entry != null) {
+                            children.put(scan.name, entry);
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                System.out.println("Cannot index " + path + ": " + e);
+            }
+            for (Scan scan : invokeAll(directories)) {
+                Entry entry = scan.join();
+                if (entry != null) {
+                    children.put(scan.name, entry);
+                }
+            }
+            return new Entry(name, attributes, readable, Map.copyOf(children));
+        }
+    }
+}
@@ -3,7 +3,10 @@ package lab11;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 /**
  * A basic webserver that reads and send files to the browser
  * and shows error pages in case something went wrong.
@@ -12,55 +15,206 @@ import java.util.*;
  * @Author lab 12 from Eck, https://math.hws.edu/eck/cs225/f16/lab11/index.html
  */
 public class ReadRequest {
-    private static class ConnectionThread extends Thread {
-        Socket connection;
+    // first, so the settings in server.config are there for every field below
+    final static Lifecycle lifecycle = Lifecycle.fromSystemProperties();
+    private final static int LISTENING_PORT = 1194;
+    final static int IDLE_TIMEOUT = Integer.getInteger("server.idleTimeout", 5_000);
+    final static int MAX_REQUESTS = Integer.getInteger("server.maxRequests", 100);
+    final static int HEAD_TIMEOUT = Integer.getInteger("server.headTimeout", 10_000);
+    private final static String METRICS_PATH = System.getProperty("server.metricsPath", "/metrics");
+    private final static String HEALTH_PATH = System.getProperty("server.healthPath", "/health");
+    private final static String STATUS_PATH = System.getProperty("server.statusPath", "/status");
+    private final static long started = System.currentTimeMillis();
+    private final static String rootDirectory = "src/lab11/www/rootDirectory";
+    // replaced as a whole when server.config changes
+    private static volatile VirtualHosts hosts = VirtualHosts.fromSystemProperties(rootDirectory,
+            CachePolicy.fromSystemProperties());
+    final static Metrics metrics = new Metrics();
+    final static AccessLog accessLog = AccessLog.fromSystemProperties();
+    final static AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    final static Routes routes = new Routes();
 
-        ConnectionThread(Socket connection) {
-            this.connection = connection;
-        }
-        /**
-         * runs one thread per connection.
-         * Multiple connection will have multiple threads
-         */
-        public void run() {
-            try {
-                handleConnection(connection);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    static {
+        metrics.addGauge("server_file_cache_bytes", "Bytes of files held in memory.",
+                () -> hosts.sum(host -> host.fileCache.size()));
+        metrics.addGauge("server_file_cache_mapped_bytes", "Bytes of files mapped into memory.",
+                () -> hosts.sum(host -> host.fileCache.mappedSize()));
+        metrics.addGauge("server_compressed_cache_bytes", "Bytes of compressed variants held in memory.",
+                () -> hosts.sum(host -> host.contentEncoding.size()));
+        metrics.addGauge("server_access_log_queued", "Log entries waiting to be written.", accessLog::queued);
+        metrics.addCounter("server_access_log_dropped_total", "Log entries dropped because the queue was full.",
+                accessLog::dropped);
+        metrics.addGauge("server_admitted_connections", "Connections let in by admission control and still open.",
+                admission::openConnections);
+        metrics.addGauge("server_rate_limited_addresses", "Remote addresses with a token bucket.",
+                admission::trackedAddresses);
+        metrics.addCounter("server_refused_busy_total", "Connections refused with a 503 because the server was full.",
+                admission::refusedBusy);
+        metrics.addCounter("server_refused_rate_total", "Connections and requests refused with a 429.",
+                admission::refusedRate);
+        BufferPool buffers = BufferPool.shared();
+        metrics.addCounter("server_buffer_pool_thread_hits_total", "Pooled buffers taken from the cache of a thread.",
+                buffers::threadHits);
+        metrics.addCounter("server_buffer_pool_shared_hits_total", "Pooled buffers taken from the shared queues.",
+                buffers::sharedHits);
+        metrics.addCounter("server_buffer_pool_misses_total", "Pooled buffers that had to be allocated.",
+                buffers::misses);
+        metrics.addCounter("server_buffer_pool_dropped_total", "Buffers given back while the pool was full.",
+                buffers::dropped);
+        metrics.addGauge("server_buffer_pool_outstanding", "Pooled buffers in use.", buffers::outstanding);
+        metrics.addGauge("server_buffer_pool_bytes", "Bytes of buffers waiting in the shared queues.",
+                buffers::pooledBytes);
+        metrics.addCounter("server_buffer_pool_leaks_total", "Tracked buffers collected without being released.",
+                buffers::leaks);
+        if (Boolean.getBoolean("server.pathIndex")) {
+            metrics.addGauge("server_path_index_entries", "Paths in the index of the root directories.",
+                    () -> hosts.sum(host -> host.pathIndex.size()));
         }
+        hosts.watch();
+        routes.exact(METRICS_PATH, request ->
+                HttpResponse.page("200 OK", "text/plain; version=0.0.4; charset=utf-8", metrics.prometheus()));
+        // a load balancer stops sending new clients while the server drains
+        routes.exact(HEALTH_PATH, request -> lifecycle.draining()
+                ? HttpResponse.json("503 Service Unavailable", "{\"status\":\"draining\"}")
+                : HttpResponse.json("200 OK", "{\"status\":\"up\"}"));
+        routes.exact(STATUS_PATH, request -> HttpResponse.json("200 OK", "{\"status\":\"up\",\"uptime_seconds\":"
+                + (System.currentTimeMillis() - started) / 1000 + ",\"metrics\":" + metrics.json() + "}"));
+        routes.loadPlugins();
     }
 
-    private final static int LISTENING_PORT = 1194;
-    private final static String rootDirectory = "src/lab11/www/rootDirectory";
-    private final static File error404File = new File("src/lab11/www/rootDirectory/text/error404.html");
-    private final static File error500File = new File("src/lab11/www/rootDirectory/text/error500.html");
-    private final static File customFile = new File("src/lab11/www/rootDirectory/text/custom.html");
+    /**
+     * Walks the root directories for the path index when server.pathIndex is on, and requests the
+     * files in the warm-up manifest (see Lifecycle). This runs from main before the ports are bound,
+     * so code that only uses parts of this class, such as the tests, does not walk the tree.
+     */
+    static void warmUp() {
+        hosts.index();
+        lifecycle.warmUp(ReadRequest::route);
+    }
+
+    /**
+     * Starts watching server.config and writing the warm-up manifest, once the ports are bound.
+     */
+    static void startLifecycle() {
+        lifecycle.start(ReadRequest::reload, () -> hosts);
+    }
+
+    /**
+     * Builds the sites again from the changed settings. Sites that did not change are kept with
+     * their caches, and their templates are read again.
+     */
+    private static void reload() {
+        VirtualHosts previous = hosts;
+        VirtualHosts next = VirtualHosts.fromSystemProperties(rootDirectory, CachePolicy.fromSystemProperties(), previous);
+        next.watch();
+        next.index();
+        next.reloadTemplates();
+        hosts = next;
+        previous.close(next);
+    }
+
+    /**
+     * Stops keeping connections alive and makes /health answer 503, see Lifecycle.
+     */
+    static void startDraining() {
+        lifecycle.drain(hosts);
+    }
+
+    /**
+     * @param property for example server.ports
+     * @param defaultPort used when the property is not set
+     * @return the ports in the property, separated by ','
+     */
+    static int[] ports(String property, int defaultPort) {
+        String[] ports = System.getProperty(property, String.valueOf(defaultPort)).split(",");
+        int[] numbers = new int[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            numbers[i] = Integer.parseInt(ports[i].trim());
+        }
+        return numbers;
+    }
 
     public static void main(String[] args) {
-        ServerSocket serverSocket;
-        try {
-            serverSocket = new ServerSocket(LISTENING_PORT);
-        } catch (Exception e) {
-            System.out.println("Failed to create listening socket.");
-            return;
+        int[] ports = ports("server.ports", LISTENING_PORT);
+        warmUp();
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        for (int port : ports) {
+            try {
+                // bound through a channel so accepted sockets can use FileChannel.transferTo
+                serverSockets.add(Lifecycle.bind(port).socket());
+            } catch (Exception e) {
+                System.out.println("Failed to create listening socket on port " + port + ".");
+                closeAll(serverSockets);
+                return;
+            }
         }
-        System.out.println("Listening on port " + LISTENING_PORT);
+        startLifecycle();
+        ConnectionExecutor executor = ConnectionExecutor.fromSystemProperties(ReadRequest::handleConnection,
+                connection -> errorResponse(503).writeTo(connection, false), accessLog::message);
+        executor.measureWaiting(metrics.stage(Metrics.ACCEPT));
+        executor.onClose(connection -> admission.release(connection.getInetAddress()));
+        metrics.addGauge("server_active_connections", "Connections being handled.", executor::activeConnections);
+        metrics.addGauge("server_queued_connections", "Connections waiting for a worker.", executor::queuedConnections);
+        metrics.addCounter("server_rejected_connections_total", "Connections turned away because the pool was full.",
+                executor::rejectedConnections);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down, waiting for open connections.");
+            startDraining();
+            closeAll(serverSockets);
+            if (!executor.shutdown(lifecycle.drainTimeout())) {
+                System.out.println("Some connections did not finish in time.");
+            }
+            accessLog.close(1000);
+        }));
+        // every port but the first gets an accepting thread of its own, the first uses this one
+        for (int i = 1; i < serverSockets.size(); i++) {
+            ServerSocket serverSocket = serverSockets.get(i);
+            Thread acceptor = new Thread(() -> accept(serverSocket, executor), "acceptor-" + ports[i]);
+            acceptor.start();
+        }
+        for (int port : ports) {
+            System.out.println("Listening on port " + port);
+        }
+        accept(serverSockets.get(0), executor);
+    }
+
+    /**
+     * Accepts connections on one listening socket until it is closed.
+     * @param serverSocket
+     * @param executor
+     */
+    private static void accept(ServerSocket serverSocket, ConnectionExecutor executor) {
         try {
             while (true) {
                 Socket connection = serverSocket.accept();
-                System.out.println("\nConnection from "
-                        + connection.getRemoteSocketAddress());
-                ConnectionThread thread = new ConnectionThread(connection);
-                thread.start();
+                metrics.connection();
+                int refusal = admission.admit(connection.getInetAddress());
+                if (refusal != AdmissionControl.ADMITTED) {
+                    refuse(refusal, connection);
+                    continue;
+                }
+                executor.execute(connection);
             }
         } catch (Exception e) {
-            System.out.println("Server socket shut down unexpectedly!");
+            if (serverSocket.isClosed()) {
+                return;
+            }
+            System.out.println("Server socket on port " + serverSocket.getLocalPort() + " shut down unexpectedly!");
             System.out.println("Error: " + e);
             System.out.println("Exiting.");
         }
     }
 
+    private static void closeAll(List<ServerSocket> serverSockets) {
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing the listening socket: " + e);
+            }
+        }
+    }
+
     /**
      * This method will handle the in and outstream of the connection
      * once the initial connection is established.
@@ -68,69 +222,218 @@ public class ReadRequest {
      * @throws IOException
      */
     private static void handleConnection(Socket connection) throws IOException {
-        String pathToFile;
-        PrintWriter outWriter;
-        Scanner inScanner;
-        String clientInfo;
+        HttpRequest request = new HttpRequest();
         try {
-            inScanner = new Scanner(connection.getInputStream());
-            outWriter = new PrintWriter(connection.getOutputStream());
-            clientInfo = inScanner.nextLine();
-
-            if (clientInfo.startsWith("GET")) {
-                if (!clientInfo.contains("HTTP/1.1") && !clientInfo.contains("HTTP/1.0")) {
-                    sendErrorResponse(400, connection.getOutputStream());
+            connection.setSoTimeout(IDLE_TIMEOUT);
+            // pipelined requests wait in the request buffer and are answered in order
+            for (int served = 1; request.read(connection, HEAD_TIMEOUT); served++) {
+                long routing = System.nanoTime();
+                int refusal = RequestBody.refusal(request);
+                HttpResponse response;
+                // a client that waits for 100 Continue and does not get it may never send its body
+                boolean waiting = false;
+                if (refusal != 0) {
+                    // the body is not read, so the connection cannot be used for another request
+                    response = errorResponse(refusal);
                 } else {
-                    pathToFile = clientInfo.replace("GET ", "").replace(" HTTP/1.1", "");
-                    String[] splitLine = clientInfo.replace(" HTTP/1.1", "").replace("GET /", "").split("/");
-                    String filename = splitLine[splitLine.length - 1];
-                    File file = new File(rootDirectory + pathToFile);
-                    String mimeType = getMimeType(filename);
-                    if (file.isDirectory()) {
-                        customPage(connection.getOutputStream(), true, rootDirectory + pathToFile);
-                    } else if (file.exists() && file.canRead()) {
-                        outWriter.print("HTTP/1.1 200 OK" + "\r\n");
-                        outWriter.print("Connection: close\r\n");
-                        outWriter.print("Content-Type: " + mimeType + "\r\n");
-                        outWriter.print("Content-Length: " + file.length() + "\r\n");
-                        outWriter.print("\r\n");
-                        outWriter.flush();
-                        sendFile(file, connection.getOutputStream());
-                    } else if (mimeType.equals("x-application/x-unknown")) {
-                        customPage(connection.getOutputStream(), false, rootDirectory + pathToFile);
+                    request.body(RequestBody.stream(request, connection.getInputStream(), request.contentLength()));
+                    // the first request is paid for by the token the connection took
+                    boolean admitted = served == 1 || admission.allowRequest(connection.getInetAddress());
+                    waiting = request.body().length() > 0 && request.headerHasToken("expect", "100-continue");
+                    if (waiting && admitted && routes.takesBody(request)) {
+                        connection.getOutputStream().write(RequestBody.CONTINUE);
+                        waiting = false;
                     }
-                else{
-                    if (!file.exists()) {
-                        sendErrorResponse(404, connection.getOutputStream());
-                    } else if (file.exists() && !file.canRead()) {
-                        sendErrorResponse(403, connection.getOutputStream());
+                    response = admitted ? route(request) : errorResponse(AdmissionControl.TOO_MANY_REQUESTS);
+                    if (response.later() != null) {
+                        response = await(response.later());
                     }
                 }
+                long sending = System.nanoTime();
+                boolean keepAlive = refusal == 0 && !waiting && request.keepAlive() && !response.mustClose()
+                        && served < MAX_REQUESTS && !lifecycle.draining();
+                if (keepAlive) {
+                    request.body().skipRest();
+                }
+                try {
+                    response.writeTo(connection, keepAlive);
+                } finally {
+                    response.release();
+                }
+                long sent = System.nanoTime();
+                metrics.record(Metrics.PARSE, request.parseNanos());
+                metrics.record(Metrics.LOOKUP, sending - routing);
+                metrics.record(Metrics.SEND, sent - sending);
+                long nanos = request.parseNanos() + sent - routing;
+                metrics.request(response, nanos);
+                accessLog.request(connection.getInetAddress(), request.requestLine(), response, nanos);
+                if (!keepAlive) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection, or a head that came in too slowly, just close it
+        } catch (HttpRequest.BadRequestException e) {
+            sendErrorResponse(400, connection);
+        } catch (FileTransfer.TruncatedException e) {
+            // part of the response is out already, the client sees the connection close early
+            accessLog.message(e.getMessage());
+        } catch (Exception e) {
+            accessLog.message("Error while communicating with client: " + e);
+            sendErrorResponse(500, connection);
+        } finally {
+            connection.close();
+        }
+    }
 
+    /**
+     * Waits on the worker thread for the answer of an async handler.
+     * @param later
+     * @return the answer, or the error page for a handler that failed or took too long
+     */
+    private static HttpResponse await(CompletableFuture<HttpResponse> later) {
+        try {
+            return Routes.outcome(later.get(), null);
+        } catch (ExecutionException e) {
+            return Routes.outcome(null, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return errorResponse(500);
+        }
+    }
 
+    /**
+     * Decides which response belongs to a request. This does not touch the connection,
+     * so the blocking server and the NIO server share the same routing.
+     * The Host header picks the site whose root, caches and pages are used.
+     * A path with a route (see Routes) goes to its handler, every other path is a file for GET and HEAD.
+     * @param request
+     * @return the response, a deferred one while an async handler is busy
+     */
+    static HttpResponse route(HttpRequest request) {
+        VirtualHost host = hosts.get(request.header("host"));
+        String version = request.version();
+        if (!version.equals("HTTP/1.1") && !version.equals("HTTP/1.0")) {
+            return errorResponse(host, 400);
+        }
+        Routes.Route dynamic = routes.match(request.path());
+        if (dynamic != null) {
+            try {
+                return Routes.handle(dynamic, request);
+            } catch (IOException e) {
+                accessLog.message("Error in the handler of " + request.path() + ": " + e);
+                return errorResponse(host, 500);
             }
-        } else{
-            sendErrorResponse(501, connection.getOutputStream());
         }
+        String method = request.method();
+        if (method.equals("HEAD")) {
+            return staticFile(host, request).withoutBody();
+        } else if (!method.equals("GET")) {
+            return errorResponse(host, 501);
+        }
+        return staticFile(host, request);
+    }
 
-    } catch(
-    Exception e)
+    /**
+     * @param host
+     * @param request a GET or HEAD for a path without a route
+     * @return the file, a listing, a custom page or an error
+     */
+    private static HttpResponse staticFile(VirtualHost host, HttpRequest request) {
+        String pathToFile = request.path();
+        String range = request.header("range");
+        String filename = pathToFile.substring(pathToFile.lastIndexOf('/') + 1);
+        File file = new File(host.rootDirectory + pathToFile);
+        String mimeType = getMimeType(filename);
+        PathIndex pathIndex = host.pathIndex();
+        if (pathIndex != null) {
+            return indexed(host, request, pathToFile, file, mimeType, pathIndex.get(pathToFile));
+        }
+        // a range counts bytes of what is sent, so range requests get the file as it is
+        if (range == null && ContentEncoding.compressible(mimeType)) {
+            int encodings = ContentEncoding.accepted(request.header("accept-encoding"));
+            HttpResponse encoded = encodings == 0 ? null
+                    : host.contentEncoding.get(pathToFile, file, mimeType, encodings, null);
+            if (encoded != null) {
+                return conditional(encoded, request);
+            }
+        }
+        HttpResponse cached = host.fileCache.get(pathToFile);
+        if (cached != null) {
+            return ranges(conditional(cached, request), request);
+        }
+        if (file.isDirectory()) {
+            return customPage(host, true, pathToFile);
+        } else if (file.exists() && file.canRead()) {
+            return ranges(conditional(host.fileCache.load(pathToFile, file, mimeType, null), request), request);
+        } else if (mimeType.equals("x-application/x-unknown")) {
+            return customPage(host, false, pathToFile);
+        } else if (!file.exists()) {
+            return errorResponse(host, 404);
+        } else {
+            return errorResponse(host, 403);
+        }
+    }
 
-    {
-        System.out.println("Error while communicating with client: " + e);
-        try {
-            sendErrorResponse(500, connection.getOutputStream());
-            System.out.println("internal server error" + e);
-        } catch (Exception ex) {
-            System.out.println("'internal' internal server error" + e);
+    /**
+     * The same decisions as route, but taken from the path index instead of the filesystem.
+     * A missing or unreadable path is answered without a single system call, and the type, length
+     * and modification time of a file come from the index as well.
+     * @param host
+     * @param request
+     * @param pathToFile
+     * @param file
+     * @param mimeType the type by the name, for a path the index does not know
+     * @param entry what the index knows about the path, null when it does not exist
+     * @return
+     */
+    private static HttpResponse indexed(VirtualHost host, HttpRequest request, String pathToFile, File file,
+                                        String mimeType, PathIndex.Entry entry) {
+        if (entry == null) {
+            return mimeType.equals("x-application/x-unknown")
+                    ? customPage(host, false, pathToFile) : errorResponse(host, 404);
+        }
+        mimeType = entry.mimeType();
+        if (entry.isDirectory()) {
+            return customPage(host, true, pathToFile);
         }
-    } finally
+        if (!entry.isReadableFile()) {
+            return mimeType.equals("x-application/x-unknown")
+                    ? customPage(host, false, pathToFile) : errorResponse(host, 403);
+        }
+        if (request.header("range") == null && ContentEncoding.compressible(mimeType)) {
+            int encodings = ContentEncoding.accepted(request.header("accept-encoding"));
+            HttpResponse encoded = encodings == 0 ? null
+                    : host.contentEncoding.get(pathToFile, file, mimeType, encodings, entry);
+            if (encoded != null) {
+                return conditional(encoded, request);
+            }
+        }
+        HttpResponse cached = host.fileCache.get(pathToFile);
+        if (cached == null) {
+            cached = host.fileCache.load(pathToFile, file, mimeType, entry);
+        }
+        return ranges(conditional(cached, request), request);
+    }
 
-    {
-        connection.close();
+    /**
+     * @param full
+     * @param request
+     * @return a 304 when the client already has this version of the file, full otherwise
+     */
+    private static HttpResponse conditional(HttpResponse full, HttpRequest request) {
+        return ConditionalRequests.apply(full, request.header("if-none-match"), request.header("if-modified-since"));
+    }
+
+    /**
+     * @param response
+     * @param request
+     * @return the part of the response that was asked for in a Range header
+     */
+    private static HttpResponse ranges(HttpResponse response, HttpRequest request) {
+        return ByteRanges.apply(response, request.header("range"), request.header("if-range"));
     }
 
-}
     /**
      * This method will determine the file type information for the browser
      * by looking at the extension of the file.
@@ -138,148 +441,97 @@ public class ReadRequest {
      * @return
      */
     public static String getMimeType(String fileName) {
-        int pos = fileName.lastIndexOf('.');
-        if (pos < 0)  // no file extension in name
-            return "x-application/x-unknown";
-        String ext = fileName.substring(pos + 1).toLowerCase();
-        return switch (ext) {
-            case "txt" -> "text/plain";
-            case "html", "htm" -> "text/html";
-            case "css" -> "text/css";
-            case "js" -> "text/javascript";
-            case "java" -> "text/x-java";
-            case "jpeg", "jpg" -> "image/jpeg";
-            case "png" -> "image/png";
-            case "gif" -> "image/gif";
-            case "ico" -> "image/x-icon";
-            case "class" -> "application/java-vm";
-            case "jar" -> "application/java-archive";
-            case "zip" -> "application/zip";
-            case "xml" -> "application/xml";
-            case "xhtml" -> "application/xhtml+xml";
-            default -> "x-application/x-unknown";
-        };
-        // Note:  x-application/x-unknown  is something made up;
-        // it will probably make the browser offer to save the file.
+        return MimeTypes.of(fileName);
     }
 
     /**
      * Creates a page with custom information. This method is planned to have more features but now
-     * it sends a list of files
-     * @param socketOut
+     * it sends a list of files. The pages are rendered from the compiled custom.html template and
+     * kept per directory until something in the directory changes.
      * @param isDirectory
-     * @param pathname
+     * @param path the path in the request
+     * @return a 200 with the listing for a directory, a 404 with the listing of the parent otherwise
      */
-    private static void customPage(OutputStream socketOut, boolean isDirectory, String pathname) {
-        try {
-            PrintWriter outPW = new PrintWriter(socketOut);
-            Scanner sc = new Scanner(customFile);
-            StringBuilder content = new StringBuilder();
-
-            while (sc.hasNextLine()) {
-                String line = sc.nextLine();
-                if (line.contains("{{") && line.contains("}}")) {
-                    StringBuilder subContent = new StringBuilder();
-                    if (!isDirectory) {
-                        String[] pathBuilder = pathname.split("/");
-                        pathBuilder = Arrays.copyOfRange(pathBuilder, 0, pathBuilder.length-1);
-                        pathname = String.join("/", pathBuilder);
-                        System.out.println(pathname);
-                    }
-                    File folder = new File(pathname);
-                    File[] listOfFiles = folder.listFiles();
-                    subContent.append("<h2>").append(folder.getName()).append("</h2>\n");
-                    for (File listOfFile : Objects.requireNonNull(listOfFiles)) {
-                        if (listOfFile.isFile()) {
-                            subContent.append("<p><a href='").append("/").append(folder.getName()).append("/").append(listOfFile.getName()).append("'>File ").append(listOfFile.getName()).append("</a></p>\n");
-                        } else if (listOfFile.isDirectory()) {
-                            subContent.append("<p>Directory ").append(listOfFile.getName()).append("</p>\n");
-
-                        }
-                    }
-
+    static HttpResponse customPage(boolean isDirectory, String path) {
+        return customPage(hosts.defaultHost(), isDirectory, path);
+    }
 
-                    line = line.replace("{{ list }}", subContent);
-                }
-                content.append(line);
+    /**
+     * @param host the site whose template and pages are used
+     * @param isDirectory
+     * @param path the path in the request, the page never shows where the site is on disk
+     * @return a 200 with the listing for a directory, a 404 with the listing of the parent otherwise
+     */
+    static HttpResponse customPage(VirtualHost host, boolean isDirectory, String path) {
+        try {
+            if (!isDirectory) {
+                path = path.substring(0, Math.max(path.lastIndexOf('/'), 1));
             }
-            outPW.print("HTTP/1.1 404 Not Found\r\n");
-            outPW.print("Connection: close\r\n");
-            outPW.print("Content-Type: text/html\r\n");
-            outPW.print("\r\n");
-            outPW.print(content + "\r\n");
-            outPW.flush();
-            outPW.close();
+            HttpResponse page = host.directoryListings.page(new File(host.rootDirectory + path), path,
+                    isDirectory ? "200 OK" : "404 Not Found");
+            return page != null ? page : errorResponse(host, 500);
         } catch (Exception e) {
-            try {
-                sendErrorResponse(500, socketOut);
-                System.out.println("internal server error");
-            } catch (Exception err) {
-                System.out.println("'internal' internal server error");
-
-            }
+            accessLog.message("internal server error: " + e);
+            return errorResponse(host, 500);
         }
     }
+
     /**
-     * This method sends an error response to the browser in case there's no match
-     * @param errorCode 400,403,404,501 are defined, the others will return an internal server error
-     * @param socketOut
+     * Turns a connection away in the accept loop with a prebuilt 503 or 429. The response is
+     * small enough for the socket buffer, so writing it does not hold up accepting.
+     * @param errorCode
+     * @param connection
      */
-    private static void sendErrorResponse(int errorCode, OutputStream socketOut) {
-        String statusInfo = " ";
-
-        switch (errorCode) {
-            case 400 -> statusInfo += "400 Bad Request";
-            case 403 -> statusInfo += "403 Forbidden";
-            case 404 -> statusInfo += "404 Not Found";
-            case 501 -> statusInfo += "501 Not Implemented";
-            default -> statusInfo += "500 Internal Server Error";
+    private static void refuse(int errorCode, Socket connection) {
+        HttpResponse response = errorResponse(errorCode);
+        try (connection) {
+            response.writeTo(connection, false);
+            connection.shutdownOutput();
+        } catch (IOException e) {
+            // the client is gone already
         }
+        metrics.request(response, 0);
+        accessLog.request(connection.getInetAddress(), null, response, 0);
+    }
 
+    /**
+     * This method sends an error response to the browser when the request could not be handled
+     * @param errorCode 400,403,404,501 are defined, the others will return an internal server error
+     * @param connection
+     */
+    private static void sendErrorResponse(int errorCode, Socket connection) {
+        long start = System.nanoTime();
+        HttpResponse response = errorResponse(errorCode);
         try {
-            PrintWriter outPW = new PrintWriter(socketOut);
-            Scanner sc;
-            if (errorCode == 400 || errorCode == 403 || errorCode == 404) {
-                sc = new Scanner(error404File);
-            } else {
-                sc = new Scanner(error500File);
-            }
-            StringBuilder content = new StringBuilder();
-
-            while (sc.hasNextLine()) {
-                String line = sc.nextLine();
-                if (line.contains("{{") && line.contains("}}")) {
-                    line = line.replace("{{ errorCodeTagChangesWhenRealOccur }}", statusInfo);
-                }
-                content.append(line);
-            }
-            outPW.print("HTTP/1.1" + statusInfo + "\r\n");
-            outPW.print("Connection: close\r\n");
-            outPW.print("Content-Type: text/html\r\n");
-            outPW.print("\r\n");
-            outPW.print(content + "\r\n");
-            outPW.flush();
-            outPW.close();
+            response.writeTo(connection, false);
+            connection.close();
         } catch (Exception e) {
-            System.out.println("'internal' internal server error");
+            accessLog.message("'internal' internal server error: " + e);
+            return;
         }
+        long nanos = System.nanoTime() - start;
+        metrics.record(Metrics.ERROR, nanos);
+        metrics.request(response, nanos);
+        accessLog.request(connection.getInetAddress(), null, response, nanos);
     }
+
     /**
-     * Sends a file to the browser by transforming the characters to bits
-     * @param file
-     * @param socketOut
-     * @throws IOException
+     * Looks up the error page of the default site for a status code, for errors that happen
+     * before the Host header is known. The pages are rendered from the error templates
+     * once, not on every error.
+     * @param errorCode 400,403,404,429,501,503 are defined, the others will return an internal server error
+     * @return
      */
-    private static void sendFile(File file, OutputStream socketOut) throws
-            IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(file));
-        OutputStream out = new BufferedOutputStream(socketOut);
-        while (true) {
-            int x = in.read();
-            if (x < 0)
-                break;
-            out.write(x);
-        }
-        out.flush();
+    static HttpResponse errorResponse(int errorCode) {
+        return hosts.defaultHost().errorPages.get(errorCode);
+    }
+
+    /**
+     * @param host the site whose error templates are used
+     * @param errorCode
+     * @return
+     */
+    static HttpResponse errorResponse(VirtualHost host, int errorCode) {
+        return host.errorPages.get(errorCode);
     }
 }
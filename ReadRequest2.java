@@ -1,9 +1,17 @@
 package lab11;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Scanner;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A basic webserver that reads and send files to the browser
@@ -18,23 +26,20 @@ public class ReadRequest2 {
 //        private final static String rootDirectory = "<ADD PATHNAME>";
     private final static String rootDirectory = "src/lab11/www/rootDirectory";
 
-    private static class ConnectionThread extends Thread {
-        Socket connection;
+    private final static long SHUTDOWN_TIMEOUT = 30_000;
+    private final static int READ_TIMEOUT = Integer.getInteger("server.idleTimeout", 5_000);
+    private final static int HEAD_TIMEOUT = Integer.getInteger("server.headTimeout", 10_000);
+    // room for the status line and the fields of a file response that have a bounded length,
+    // the values that come from the file name or the configuration are added per response
+    private final static int HEAD_SIZE = 512;
+    private final static CachePolicy cachePolicy = CachePolicy.fromSystemProperties();
+    private final static AccessLog accessLog = AccessLog.fromSystemProperties();
+    private final static AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    private final static Map<Integer, byte[]> errorResponses = new HashMap<>();
 
-        ConnectionThread(Socket connection) {
-            this.connection = connection;
-        }
-
-        /**
-         * runs one thread per connection.
-         * Multiple connection will have multiple threads
-         */
-        public void run() {
-            try {
-                handleConnection(connection);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    static {
+        for (int errorCode : new int[]{400, 403, 404, 429, 500, 501, 503}) {
+            errorResponses.put(errorCode, renderErrorResponse(errorCode));
         }
     }
 
@@ -43,21 +48,45 @@ public class ReadRequest2 {
     public static void main(String[] args) {
         ServerSocket serverSocket;
         try {
-            serverSocket = new ServerSocket(LISTENING_PORT);
+            // bound through a channel so accepted sockets can use FileChannel.transferTo
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(LISTENING_PORT)).socket();
         } catch (Exception e) {
             System.out.println("Failed to create listening socket.");
             return;
         }
+        ConnectionExecutor executor = ConnectionExecutor.fromSystemProperties(ReadRequest2::handleConnection,
+                connection -> sendErrorResponse(503, connection.getOutputStream()), accessLog::message);
+        executor.onClose(connection -> admission.release(connection.getInetAddress()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down, waiting for open connections.");
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing the listening socket: " + e);
+            }
+            if (!executor.shutdown(SHUTDOWN_TIMEOUT)) {
+                System.out.println("Some connections did not finish in time.");
+            }
+            accessLog.close(1000);
+        }));
         System.out.println("Listening on port " + LISTENING_PORT);
         try {
             while (true) {
                 Socket connection = serverSocket.accept();
-                System.out.println("\nConnection from "
-                        + connection.getRemoteSocketAddress());
-                ConnectionThread thread = new ConnectionThread(connection);
-                thread.start();
+                accessLog.message("Connection from " + connection.getRemoteSocketAddress());
+                int refusal = admission.admit(connection.getInetAddress());
+                if (refusal != AdmissionControl.ADMITTED) {
+                    try (connection) {
+                        sendErrorResponse(refusal, connection.getOutputStream());
+                    }
+                    continue;
+                }
+                executor.execute(connection);
             }
         } catch (Exception e) {
+            if (serverSocket.isClosed()) {
+                return;
+            }
             System.out.println("Server socket shut down unexpectedly!");
             System.out.println("Error: " + e);
             System.out.println("Exiting.");
@@ -74,32 +103,55 @@ public class ReadRequest2 {
      */
     private static void handleConnection(Socket connection) throws IOException {
         String pathToFile;
-        PrintWriter outWriter;
-        Scanner inScanner;
-        String clientInfo;
+        HttpRequest request = new HttpRequest();
         try {
-            inScanner = new Scanner(connection.getInputStream());
-            outWriter = new PrintWriter(connection.getOutputStream());
-            clientInfo = inScanner.nextLine();
-            if (clientInfo.startsWith("GET")) {
-                if (!clientInfo.contains("HTTP/1.1") && !clientInfo.contains("HTTP/1.0")) {
+            connection.setSoTimeout(READ_TIMEOUT);
+            if (!request.read(connection, HEAD_TIMEOUT)) {
+                return;
+            }
+            if (request.method().equals("GET")) {
+                if (!request.version().equals("HTTP/1.1") && !request.version().equals("HTTP/1.0")) {
                     sendErrorResponse(400, connection.getOutputStream());
                 } else {
-                    pathToFile = clientInfo.replace("GET ", "").replace(" HTTP/1.1", "");
-                    String[] splitLine = clientInfo.replace(" HTTP/1.1", "").replace("GET /", "").split("/");
-                    String filename = splitLine[splitLine.length - 1];
+                    pathToFile = request.path();
+                    String filename = pathToFile.substring(pathToFile.lastIndexOf('/') + 1);
                     File file = new File(rootDirectory + pathToFile);
                     String mimeType = getMimeType(filename);
                     if (file.isDirectory()) {
                         sendErrorResponse(403, connection.getOutputStream());
                     } else if (file.exists() && file.canRead()) {
-                        outWriter.print("HTTP/1.1 200 OK" + "\r\n");
-                        outWriter.print("Connection: close\r\n");
-                        outWriter.print("Content-Type: " + mimeType + "\r\n");
-                        outWriter.print("Content-Length: " + file.length() + "\r\n");
-                        outWriter.print("\r\n");
-                        outWriter.flush();
-                        sendFile(file, connection.getOutputStream());
+                        long lastModified = file.lastModified();
+                        // taken once, the Content-Length and the bytes sent have to agree
+                        long length = file.length();
+                        String etag = HttpResponse.etag(lastModified, length, null);
+                        String cacheControl = cachePolicy.cacheControl(pathToFile, mimeType);
+                        boolean notModified = ConditionalRequests.notModified(etag, lastModified,
+                                request.header("if-none-match"), request.header("if-modified-since"));
+                        int headSize = HEAD_SIZE + mimeType.length() + etag.length()
+                                + (cacheControl == null ? 0 : cacheControl.length());
+                        ByteBuffer head = BufferPool.shared().acquire(headSize);
+                        try {
+                            ResponseHead.status(head, notModified ? "304 Not Modified" : "200 OK");
+                            ResponseHead.field(head, "Connection", "close");
+                            if (!notModified) {
+                                ResponseHead.field(head, "Content-Type", mimeType);
+                                ResponseHead.field(head, "Content-Length", length);
+                            }
+                            ResponseHead.field(head, "ETag", etag);
+                            ResponseHead.field(head, "Last-Modified", HttpResponse.httpDate(lastModified));
+                            if (cacheControl != null) {
+                                ResponseHead.field(head, "Cache-Control", cacheControl);
+                            }
+                            ResponseHead.end(head);
+                            head.flip();
+                            if (notModified) {
+                                sendHead(head, connection);
+                            } else {
+                                sendFile(head, file, length, connection);
+                            }
+                        } finally {
+                            BufferPool.shared().release(head);
+                        }
                     } else {
                         if (!file.exists()) {
                             sendErrorResponse(404, connection.getOutputStream());
@@ -116,14 +168,21 @@ public class ReadRequest2 {
                 sendErrorResponse(501, connection.getOutputStream());
             }
 
+        } catch (HttpRequest.BadRequestException e) {
+            sendErrorResponse(400, connection.getOutputStream());
+        } catch (SocketTimeoutException e) {
+            // the client sent nothing, or its head too slowly
+        } catch (FileTransfer.TruncatedException e) {
+            // part of the response is out already, the client sees the connection close early
+            accessLog.message(e.getMessage());
         } catch (
                 Exception e) {
-            System.out.println("Error while communicating with client: " + e);
+            accessLog.message("Error while communicating with client: " + e);
             try {
                 sendErrorResponse(500, connection.getOutputStream());
-                System.out.println("internal server error" + e);
+                accessLog.message("internal server error" + e);
             } catch (Exception ex) {
-                System.out.println("'internal' internal server error" + e);
+                accessLog.message("'internal' internal server error" + e);
             }
         } finally {
             connection.close();
@@ -165,19 +224,39 @@ public class ReadRequest2 {
     }
 
     /**
-     * This method sends an error response to the browser in case there's no match
+     * This method sends an error response to the browser in case there's no match.
+     * The responses are rendered once when the class is loaded, so this is only a write.
      *
      * @param errorCode 400,403,404,501 are defined, the others will return an internal server error
      * @param socketOut
      */
     private static void sendErrorResponse(int errorCode, OutputStream socketOut) {
+        byte[] response = errorResponses.getOrDefault(errorCode, errorResponses.get(500));
+        try {
+            socketOut.write(response);
+            socketOut.flush();
+            socketOut.close();
+        } catch (Exception e) {
+            accessLog.message("'internal' internal server error");
+        }
+    }
+
+    /**
+     * Builds the complete error response, status line, headers and page.
+     *
+     * @param errorCode 400,403,404,429,501,503 are defined, the others will return an internal server error
+     * @return
+     */
+    private static byte[] renderErrorResponse(int errorCode) {
         String statusInfo = " ";
 
         switch (errorCode) {
             case 400 -> statusInfo += "400 Bad Request";
             case 403 -> statusInfo += "403 Forbidden";
             case 404 -> statusInfo += "404 Not Found";
+            case 429 -> statusInfo += "429 Too Many Requests";
             case 501 -> statusInfo += "501 Not Implemented";
+            case 503 -> statusInfo += "503 Service Unavailable";
             default -> statusInfo += "500 Internal Server Error";
         }
         String errorHtml = "<style>*{\n" +
@@ -222,38 +301,52 @@ public class ReadRequest2 {
                 "    \t</div>\n" +
                 "</div>";
 
-        try {
-            PrintWriter outPW = new PrintWriter(socketOut);
-            outPW.print("HTTP/1.1" + statusInfo + "\r\n");
-            outPW.print("Connection: close\r\n");
-            outPW.print("Content-Type: text/html\r\n");
-            outPW.print("\r\n");
-            outPW.print(errorHtml + "\r\n");
-            outPW.flush();
-            outPW.close();
-        } catch (Exception e) {
-            System.out.println("'internal' internal server error");
-        }
+        byte[] body = (errorHtml + "\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("HTTP/1.1" + statusInfo + "\r\n" +
+                "Connection: close\r\n" +
+                "Content-Type: text/html\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                (errorCode == 429 || errorCode == 503 ? "Retry-After: 1\r\n" : "") +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] response = Arrays.copyOf(head, head.length + body.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+        return response;
     }
 
     /**
-     * Sends a file to the browser by transforming the characters to bits
+     * Sends a file to the browser. The head goes out in the same write as the start of the file,
+     * the rest goes zero-copy from the file to the socket when possible, otherwise it is copied in
+     * bulk through a pooled buffer.
      *
+     * @param head the status line and headers
      * @param file
-     * @param socketOut
+     * @param length the Content-Length in the head
+     * @param connection
      * @throws IOException
      */
-    private static void sendFile(File file, OutputStream socketOut) throws
+    private static void sendFile(ByteBuffer head, File file, long length, Socket connection) throws
             IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(file));
-        OutputStream out = new BufferedOutputStream(socketOut);
-        while (true) {
-            int x = in.read();
-            if (x < 0)
-                break;
-            out.write(x);
+        FileTransfer.send(new ByteBuffer[]{head}, file, 0, length, connection);
+    }
+
+    /**
+     * Sends a response without a body.
+     *
+     * @param head the status line and headers
+     * @param connection
+     * @throws IOException
+     */
+    private static void sendHead(ByteBuffer head, Socket connection) throws IOException {
+        SocketChannel channel = connection.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            while (head.hasRemaining()) {
+                channel.write(head);
+            }
+        } else {
+            byte[] bytes = new byte[head.remaining()];
+            head.get(bytes);
+            connection.getOutputStream().write(bytes);
         }
-        out.flush();
     }
 
 }
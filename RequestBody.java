@@ -0,0 +1,169 @@
+package lab11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The body of a request, read as a stream by the handler of a dynamic route (see Routes).
+ * Bodies are bounded: one over server.maxBodySize is answered with a 413 before anything is read,
+ * and only a Content-Length body is taken on HTTP/1.1; chunked transfer coding gets a 501.
+ * The blocking server streams the body from the socket while the handler reads it, starting with
+ * what was read together with the head. The NIO server cannot block its event loop on a handler
+ * that reads, so it collects the body as it arrives and hands it over once it is complete; the
+ * limit keeps that in bounds. Whatever a handler does not read is skipped before the next request.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class RequestBody extends InputStream {
+
+    final static long MAX_BODY_SIZE = Long.getLong("server.maxBodySize", 1024 * 1024);
+    // the interim response for a client that waits with its body until the server agrees
+    final static byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    final static RequestBody EMPTY = new RequestBody(null, null, new byte[0], 0);
+    // a body that is collected starts in a buffer of this size and grows as its bytes arrive, so a
+    // client that declares a large body and sends nothing does not hold that much memory
+    final static int FIRST_BUFFER_SIZE = 16 * 1024;
+
+    private final HttpRequest request;
+    private final InputStream in;
+    private final byte[] bytes;
+    private final long length;
+    private long position;
+
+    private RequestBody(HttpRequest request, InputStream in, byte[] bytes, long length) {
+        this.request = request;
+        this.in = in;
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * @param bytes the whole body, kept and not copied
+     * @param length of the body in bytes
+     * @return a body that was collected before the handler runs
+     */
+    static RequestBody of(byte[] bytes, int length) {
+        return length == 0 ? EMPTY : new RequestBody(null, null, bytes, length);
+    }
+
+    /**
+     * @param declaredLength the Content-Length, -1 when there is none
+     * @return the buffer to start collecting a body in
+     */
+    static byte[] firstBuffer(long declaredLength) {
+        return new byte[(int) (declaredLength >= 0 ? Math.min(declaredLength, FIRST_BUFFER_SIZE) : FIRST_BUFFER_SIZE)];
+    }
+
+    /**
+     * @param bytes the buffer a body is collected in
+     * @param needed the number of bytes it has to hold
+     * @param limit the most it may ever have to hold
+     * @return bytes, or a copy of it that is at least twice as large and holds needed bytes
+     */
+    static byte[] grow(byte[] bytes, int needed, long limit) {
+        if (needed <= bytes.length) {
+            return bytes;
+        }
+        return Arrays.copyOf(bytes, (int) Math.min(limit, Math.max(needed, 2L * bytes.length)));
+    }
+
+    /**
+     * @param request whose head was read from in, with the first bytes of the body behind it
+     * @param in the socket's stream
+     * @param length the Content-Length
+     * @return a body that is read from the socket as the handler asks for it
+     */
+    static RequestBody stream(HttpRequest request, InputStream in, long length) {
+        return length <= 0 ? EMPTY : new RequestBody(request, in, null, length);
+    }
+
+    /**
+     * @param request a request whose head is complete
+     * @return 0 when its body can be taken, otherwise the status code to answer with: 413 when it
+     * is too large and 501 for a transfer coding
+     * @throws HttpRequest.BadRequestException when the Content-Length is malformed
+     */
+    static int refusal(HttpRequest request) throws HttpRequest.BadRequestException {
+        if (request.header("transfer-encoding") != null) {
+            return 501;
+        }
+        return request.contentLength() > MAX_BODY_SIZE ? 413 : 0;
+    }
+
+    /**
+     * @return the number of bytes in the body
+     */
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int count) throws IOException {
+        if (position == length) {
+            return -1;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        int wanted = (int) Math.min(count, length - position);
+        int read;
+        if (bytes != null) {
+            System.arraycopy(bytes, (int) position, destination, offset, wanted);
+            read = wanted;
+        } else {
+            read = request.takeBuffered(destination, offset, wanted);
+            if (read == 0) {
+                read = in.read(destination, offset, wanted);
+                if (read < 0) {
+                    throw new IOException("Connection closed in the middle of the request body");
+                }
+            }
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return bytes != null ? (int) (length - position) : 0;
+    }
+
+    /**
+     * @return the rest of the body, at most server.maxBodySize bytes
+     * @throws IOException when the client stops sending
+     */
+    public byte[] readAll() throws IOException {
+        if (bytes != null && position == 0) {
+            return bytes.length == length ? bytes : Arrays.copyOf(bytes, (int) length);
+        }
+        byte[] rest = new byte[(int) (length - position)];
+        int filled = 0;
+        while (filled < rest.length) {
+            filled += read(rest, filled, rest.length - filled);
+        }
+        return rest;
+    }
+
+    /**
+     * Skips what the handler did not read, so the next request on the connection starts in the right place.
+     * @throws IOException when the client stops sending
+     */
+    void skipRest() throws IOException {
+        if (bytes != null) {
+            position = length;
+            return;
+        }
+        byte[] scratch = new byte[(int) Math.min(8192, length - position)];
+        while (position < length) {
+            read(scratch, 0, scratch.length);
+        }
+    }
+}
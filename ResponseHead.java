@@ -0,0 +1,93 @@
+package lab11;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a response head straight into a ByteBuffer. Names and values are put character by
+ * character and numbers digit by digit, so no String is concatenated or encoded on the way.
+ * A head is ASCII; other characters become '?'.
+ * Usage: status, any number of field and lines calls, then end. HttpResponse leaves out the end,
+ * its Connection header comes last.
+ *
+ * @Author Thorben Dhaenens
+ */
+public final class ResponseHead {
+
+    private final static byte[] VERSION = {'H', 'T', 'T', 'P', '/', '1', '.', '1', ' '};
+    private final static byte[] SEPARATOR = {':', ' '};
+    private final static byte[] CRLF = {'\r', '\n'};
+
+    private ResponseHead() {
+    }
+
+    /**
+     * @param out in fill mode
+     * @param status for example "200 OK"
+     */
+    public static void status(ByteBuffer out, String status) {
+        out.put(VERSION);
+        ascii(out, status);
+        out.put(CRLF);
+    }
+
+    /**
+     * @param out in fill mode
+     * @param name
+     * @param value
+     */
+    public static void field(ByteBuffer out, String name, String value) {
+        ascii(out, name);
+        out.put(SEPARATOR);
+        ascii(out, value);
+        out.put(CRLF);
+    }
+
+    /**
+     * @param out in fill mode
+     * @param name
+     * @param value not negative, for example a Content-Length
+     */
+    public static void field(ByteBuffer out, String name, long value) {
+        ascii(out, name);
+        out.put(SEPARATOR);
+        digits(out, value);
+        out.put(CRLF);
+    }
+
+    /**
+     * @param out in fill mode
+     * @param lines complete header lines, each ending in CRLF
+     */
+    public static void lines(ByteBuffer out, String lines) {
+        ascii(out, lines);
+    }
+
+    /**
+     * Ends the head with the empty line.
+     * @param out in fill mode
+     */
+    public static void end(ByteBuffer out) {
+        out.put(CRLF);
+    }
+
+    private static void ascii(ByteBuffer out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            out.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    private static void digits(ByteBuffer out, long value) {
+        if (value < 10) {
+            out.put((byte) ('0' + value));
+            return;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package lab11;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Dynamic endpoints next to the static files, such as /metrics and the JSON health and status
+ * pages. A route is an exact path or a prefix, a set of methods and a handler. A prefix matches
+ * whole segments: /api matches /api and /api/users but not /apis. The longest match wins and an
+ * exact path goes before any prefix. Every path that no route matches is a static file.
+ * Every change compiles the routes into a new Dispatch that is swapped in at once: a HashMap for
+ * the exact paths and the prefixes sorted longest first, behind a table of the characters they
+ * start with. A request for a static file usually costs one hash lookup and one array check.
+ * A handler runs where routing runs: on the worker thread of the blocking server and on the event
+ * loop of the NIO server. Work that waits on something else belongs in an AsyncHandler, whose
+ * future may complete on any thread; it gets a copy of the request that stays valid. An answer
+ * that takes longer than server.handlerTimeout milliseconds becomes a 503.
+ * A route that allows GET also answers HEAD, with the body left off. Routes that take POST, PUT or
+ * PATCH find the body in request.body(), bounded by server.maxBodySize (see RequestBody).
+ * Other code adds routes without changing this server through server.routes: class names,
+ * separated by ',', of Plugins with a public constructor without arguments.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Routes {
+
+    private final static long HANDLER_TIMEOUT = Long.getLong("server.handlerTimeout", 30_000);
+
+    /**
+     * Answers a request right away.
+     */
+    public interface Handler {
+        HttpResponse handle(HttpRequest request) throws IOException;
+    }
+
+    /**
+     * Answers a request later, for example after a call to another service.
+     */
+    public interface AsyncHandler {
+        CompletableFuture<HttpResponse> handle(HttpRequest request);
+    }
+
+    /**
+     * Adds routes when the server starts, see server.routes.
+     */
+    public interface Plugin {
+        void register(Routes routes);
+    }
+
+    /**
+     * One registered route.
+     */
+    public static class Route {
+        final String path;
+        final boolean prefix;
+        final Set<String> methods;
+        final Handler handler;
+        final AsyncHandler asyncHandler;
+        // the 405 with an Allow header for this route's methods
+        final HttpResponse notAllowed;
+
+        Route(String path, boolean prefix, String[] methods, Handler handler, AsyncHandler asyncHandler) {
+            if (!path.startsWith("/")) {
+                throw new IllegalArgumentException("A route starts with '/': " + path);
+            }
+            this.path = path;
+            this.prefix = prefix;
+            Set<String> allowed = new TreeSet<>();
+            for (String method : methods.length == 0 ? new String[]{"GET"} : methods) {
+                allowed.add(method.toUpperCase(Locale.ROOT));
+            }
+            if (allowed.contains("GET")) {
+                allowed.add("HEAD");
+            }
+            this.methods = Set.copyOf(allowed);
+            this.handler = handler;
+            this.asyncHandler = asyncHandler;
+            this.notAllowed = HttpResponse.prebuilt("405 Method Not Allowed", "text/plain",
+                    "Allow: " + String.join(", ", allowed) + "\r\n", "405 Method Not Allowed");
+        }
+
+        boolean matches(String requestPath) {
+            if (!prefix) {
+                return requestPath.equals(path);
+            }
+            return requestPath.startsWith(path) && (requestPath.length() == path.length()
+                    || path.endsWith("/") || requestPath.charAt(path.length()) == '/');
+        }
+    }
+
+    /**
+     * The routes as they are looked up, never changed once it is built.
+     */
+    private static class Dispatch {
+        final Map<String, Route> exact;
+        // longest first
+        final Route[] prefixes;
+        // the character after the leading '/' of every prefix, all of them for a prefix of "/"
+        final boolean[] startsWith = new boolean[128];
+        final boolean anyStart;
+
+        Dispatch(List<Route> routes) {
+            Map<String, Route> exact = new HashMap<>();
+            List<Route> prefixes = new ArrayList<>();
+            boolean anyStart = false;
+            for (Route route : routes) {
+                if (!route.prefix) {
+                    exact.put(route.path, route);
+                    continue;
+                }
+                prefixes.add(route);
+                char first = route.path.length() > 1 ? route.path.charAt(1) : 0;
+                if (first == 0 || first >= 128) {
+                    anyStart = true;
+                } else {
+                    startsWith[first] = true;
+                }
+            }
+            prefixes.sort(Comparator.comparingInt((Route route) -> route.path.length()).reversed());
+            this.exact = Map.copyOf(exact);
+            this.prefixes = prefixes.toArray(new Route[0]);
+            this.anyStart = anyStart;
+        }
+
+        Route match(String path) {
+            Route route = exact.isEmpty() ? null : exact.get(path);
+            if (route != null || prefixes.length == 0) {
+                return route;
+            }
+            char first = path.length() > 1 ? path.charAt(1) : 0;
+            if (!anyStart && (first >= 128 || !startsWith[first])) {
+                return null;
+            }
+            for (Route prefix : prefixes) {
+                if (prefix.matches(path)) {
+                    return prefix;
+                }
+            }
+            return null;
+        }
+    }
+
+    // in the order they were added, a later route for the same path replaces an earlier one
+    private final List<Route> routes = new ArrayList<>();
+    private volatile Dispatch dispatch = new Dispatch(List.of());
+
+    /**
+     * @param path
+     * @param handler
+     * @param methods GET when none are given
+     */
+    public void exact(String path, Handler handler, String... methods) {
+        add(new Route(path, false, methods, handler, null));
+    }
+
+    /**
+     * @param prefix
+     * @param handler
+     * @param methods GET when none are given
+     */
+    public void prefix(String prefix, Handler handler, String... methods) {
+        add(new Route(prefix, true, methods, handler, null));
+    }
+
+    /**
+     * @param path
+     * @param handler
+     * @param methods GET when none are given
+     */
+    public void exactAsync(String path, AsyncHandler handler, String... methods) {
+        add(new Route(path, false, methods, null, handler));
+    }
+
+    /**
+     * @param prefix
+     * @param handler
+     * @param methods GET when none are given
+     */
+    public void prefixAsync(String prefix, AsyncHandler handler, String... methods) {
+        add(new Route(prefix, true, methods, null, handler));
+    }
+
+    private synchronized void add(Route route) {
+        routes.removeIf(other -> other.path.equals(route.path) && other.prefix == route.prefix);
+        routes.add(route);
+        dispatch = new Dispatch(routes);
+    }
+
+    /**
+     * Registers the routes of the plugins in server.routes. A plugin that cannot be loaded is
+     * reported and skipped.
+     */
+    public void loadPlugins() {
+        String plugins = System.getProperty("server.routes", "");
+        for (String name : plugins.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            try {
+                ((Plugin) Class.forName(name).getConstructor().newInstance()).register(this);
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                System.out.println("Cannot load the routes of " + name + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @param path the decoded and normalized path of a request
+     * @return the route for it, null for a static file
+     */
+    public Route match(String path) {
+        return dispatch.match(path);
+    }
+
+    /**
+     * Whether a request's body is wanted, decided from its head before the body is read: only a
+     * route that allows the method gets one. Static files and a 405 are answered without it.
+     * @param request a request whose head is complete
+     * @return true when a route matches its path and allows its method
+     */
+    public boolean takesBody(HttpRequest request) {
+        Route route = match(request.path());
+        return route != null && route.methods.contains(request.method());
+    }
+
+    /**
+     * Runs the handler of a route.
+     * @param route from match
+     * @param request
+     * @return the response, a deferred one (see HttpResponse.later) while an async handler is busy
+     * @throws IOException from a handler, answered with a 500
+     */
+    static HttpResponse handle(Route route, HttpRequest request) throws IOException {
+        String method = request.method();
+        if (!route.methods.contains(method)) {
+            return route.notAllowed;
+        }
+        boolean head = method.equals("HEAD");
+        if (route.handler != null) {
+            HttpResponse response = route.handler.handle(request);
+            if (response == null) {
+                throw new IOException("The handler of " + route.path + " gave no response");
+            }
+            return head ? response.withoutBody() : response;
+        }
+        CompletableFuture<HttpResponse> later = route.asyncHandler.handle(request.copy());
+        if (later == null) {
+            throw new IOException("The handler of " + route.path + " gave no response");
+        }
+        if (head) {
+            later = later.thenApply(HttpResponse::withoutBody);
+        }
+        if (later.isDone() && !later.isCompletedExceptionally()) {
+            HttpResponse response = later.join();
+            if (response == null) {
+                throw new IOException("The handler of " + route.path + " gave no response");
+            }
+            return response;
+        }
+        return HttpResponse.deferred(later.orTimeout(HANDLER_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @param response what an async handler completed with, null when it failed
+     * @param error why it failed, null when it did not
+     * @return the response to write: a 503 when the handler took too long and a 500 when it failed
+     */
+    static HttpResponse outcome(HttpResponse response, Throwable error) {
+        if ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error == null && response != null) {
+            return response;
+        }
+        if (error instanceof TimeoutException) {
+            return ReadRequest.errorResponse(503);
+        }
+        ReadRequest.accessLog.message(error != null ? "Error in an async handler: " + error
+                : "An async handler gave no response");
+        return ReadRequest.errorResponse(500);
+    }
+}
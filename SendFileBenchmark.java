@@ -0,0 +1,95 @@
+package lab11;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Compares the throughput of the old byte-by-byte sendFile loop with the pooled bulk copy
+ * and the zero-copy transferTo path of FileTransfer. Everything runs over loopback and
+ * the receiving side just drains the socket.
+ * Usage: SendFileBenchmark [file] [iterations]
+ *
+ * @Author Thorben Dhaenens
+ */
+public class SendFileBenchmark {
+
+    private final static String defaultFile = "src/lab11/www/rootDirectory/image/r_1762546_aYm1W.jpg";
+
+    public static void main(String[] args) throws Exception {
+        File file = new File(args.length > 0 ? args[0] : defaultFile);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        if (!file.canRead()) {
+            System.out.println("Cannot read " + file);
+            return;
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread sink = new Thread(() -> drain(server));
+        sink.setDaemon(true);
+        sink.start();
+
+        try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+            // warm up every path before measuring
+            for (int i = 0; i < 20; i++) {
+                byteLoop(file, client.socket().getOutputStream());
+                bulkCopy(file, client.socket().getOutputStream());
+                FileTransfer.transfer(file, client);
+            }
+            report("byte loop", file, iterations, () -> byteLoop(file, client.socket().getOutputStream()));
+            report("bulk copy", file, iterations, () -> bulkCopy(file, client.socket().getOutputStream()));
+            report("transferTo", file, iterations, () -> FileTransfer.transfer(file, client));
+        }
+        server.close();
+    }
+
+    private interface Send {
+        void run() throws IOException;
+    }
+
+    private static void report(String name, File file, int iterations, Send send) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            send.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        double megabytes = (double) file.length() * iterations / (1024 * 1024);
+        System.out.printf("%-12s %10.1f MB/s %10.1f us/file%n",
+                name, megabytes / (elapsed / 1e9), elapsed / 1e3 / iterations);
+    }
+
+    /**
+     * The sendFile loop as it was before FileTransfer.
+     */
+    private static void byteLoop(File file, OutputStream socketOut) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            OutputStream out = new BufferedOutputStream(socketOut);
+            while (true) {
+                int x = in.read();
+                if (x < 0)
+                    break;
+                out.write(x);
+            }
+            out.flush();
+        }
+    }
+
+    private static void bulkCopy(File file, OutputStream socketOut) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            FileTransfer.copy(in, socketOut);
+        }
+    }
+
+    private static void drain(ServerSocketChannel server) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try (SocketChannel channel = server.accept()) {
+            while (channel.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // benchmark finished
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package lab11;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page template such as custom.html or error404.html, compiled once into a list of segments:
+ * literal text alternating with named placeholders like {{ list }}. Rendering only appends
+ * the segments, the template text is never searched again.
+ * Placeholders without a value are left in the page as they were written.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class Template {
+
+    private final String[] literals;
+    private final String[] names;
+    private final String[] placeholders;
+
+    private Template(String[] literals, String[] names, String[] placeholders) {
+        this.literals = literals;
+        this.names = names;
+        this.placeholders = placeholders;
+    }
+
+    /**
+     * @param file
+     * @return the compiled template
+     * @throws IOException when the file cannot be read
+     */
+    public static Template load(File file) throws IOException {
+        return compile(Files.readString(file.toPath()));
+    }
+
+    /**
+     * @param text
+     * @return the compiled template
+     */
+    public static Template compile(String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int open = text.indexOf("{{", position);
+            int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+            if (close < 0) {
+                break;
+            }
+            literals.add(text.substring(position, open));
+            names.add(text.substring(open + 2, close).trim());
+            placeholders.add(text.substring(open, close + 2));
+            position = close + 2;
+        }
+        literals.add(text.substring(position));
+        return new Template(literals.toArray(new String[0]), names.toArray(new String[0]),
+                placeholders.toArray(new String[0]));
+    }
+
+    /**
+     * @param values placeholder name to value
+     * @return the rendered page
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder out = new StringBuilder(length() + 256);
+        renderTo(out, values);
+        return out.toString();
+    }
+
+    /**
+     * @param out
+     * @param values placeholder name to value
+     */
+    public void renderTo(StringBuilder out, Map<String, String> values) {
+        for (int i = 0; i < names.length; i++) {
+            out.append(literals[i]);
+            String value = values.get(names[i]);
+            out.append(value != null ? value : placeholders[i]);
+        }
+        out.append(literals[names.length]);
+    }
+
+    private int length() {
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        return length;
+    }
+}
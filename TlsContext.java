@@ -0,0 +1,146 @@
+package lab11;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything the TLS connections of the NIO server share: the SSLContext with the server's key,
+ * its session cache and the protocols offered with ALPN. Resumed sessions skip the key exchange,
+ * through the session cache for TLS 1.2 and through stateless session tickets for TLS 1.3.
+ * Settings: server.tlsKeystore (a PKCS12 file; without it there is no TLS), server.tlsPassword,
+ * server.tlsSessionCache (sessions kept), server.tlsSessionTimeout (seconds), server.alpn
+ * (protocols in order of preference, separated by ','; h2 is HTTP/2, see Http2Connection).
+ * For testing locally server.tlsSelfSigned=true creates the keystore with a self-signed
+ * certificate for localhost when it does not exist yet, through the keytool of this JDK:
+ * curl -k --http1.1 https://localhost:1443/text/index.html
+ * curl -k --http2 https://localhost:1443/text/index.html
+ *
+ * @Author Thorben Dhaenens
+ */
+public class TlsContext {
+
+    private final static String[] protocols = {"TLSv1.3", "TLSv1.2"};
+
+    private final SSLContext context;
+    private final List<String> applicationProtocols;
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+
+    /**
+     * @param context with the server's key
+     * @param applicationProtocols ALPN protocols in order of preference
+     */
+    public TlsContext(SSLContext context, List<String> applicationProtocols) {
+        this.context = context;
+        this.applicationProtocols = List.copyOf(applicationProtocols);
+    }
+
+    /**
+     * @return the context, or null when server.tlsKeystore is not set
+     * @throws IOException when the keystore cannot be read or created
+     */
+    public static TlsContext fromSystemProperties() throws IOException {
+        String keystore = System.getProperty("server.tlsKeystore");
+        if (keystore == null) {
+            return null;
+        }
+        char[] password = System.getProperty("server.tlsPassword", "changeit").toCharArray();
+        File file = new File(keystore);
+        if (!file.exists() && Boolean.getBoolean("server.tlsSelfSigned")) {
+            createSelfSigned(file, password);
+        }
+        // stateless tickets for TLS 1.3, read by the JDK when the first context is made
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            keys.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(Integer.getInteger("server.tlsSessionCache", 20_000));
+            sessions.setSessionTimeout(Integer.getInteger("server.tlsSessionTimeout", 3600));
+            return new TlsContext(context,
+                    Arrays.asList(System.getProperty("server.alpn", "h2,http/1.1").split("\\s*,\\s*")));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use the keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void createSelfSigned(File file, char[] password) throws IOException {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-validity", "365", "-storetype", "PKCS12",
+                "-keystore", file.getPath(), "-storepass", new String(password),
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1")
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                throw new IOException("keytool could not create " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + file);
+        }
+        System.out.println("Created " + file + " with a self-signed certificate for localhost");
+    }
+
+    /**
+     * @param channel a connection that was just accepted
+     * @return the TLS state of the connection, handshake not started
+     */
+    public TlsSession newSession(SocketChannel channel) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        parameters.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(parameters);
+        // the first protocol of ours that the client offers, none when there is no match
+        engine.setHandshakeApplicationProtocolSelector((sslEngine, offered) -> {
+            for (String protocol : applicationProtocols) {
+                if (offered.contains(protocol)) {
+                    return protocol;
+                }
+            }
+            return null;
+        });
+        return new TlsSession(engine, channel, this);
+    }
+
+    /**
+     * Counts a finished handshake.
+     * @param wasResumed true when an earlier session was used
+     */
+    void handshakeFinished(boolean wasResumed) {
+        handshakes.increment();
+        if (wasResumed) {
+            resumed.increment();
+        }
+    }
+
+    public long handshakes() {
+        return handshakes.sum();
+    }
+
+    public long resumedHandshakes() {
+        return resumed.sum();
+    }
+}
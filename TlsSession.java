@@ -0,0 +1,279 @@
+package lab11;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The TLS side of one non-blocking connection: an SSLEngine with its buffers. The event loop
+ * reads and writes through it instead of through the channel. read decrypts what arrived into the
+ * request buffer and write encrypts as much of a response as the socket takes; the handshake is
+ * driven by both as the engine asks for it, so it never blocks the event loop on the network.
+ * The engine's delegated tasks (key agreement, signing) are run right away on the event loop;
+ * they take well under a millisecond with the EC key that tlsSelfSigned creates.
+ * Files cannot go out with transferTo under TLS, they are read in chunks and encrypted instead.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class TlsSession {
+
+    private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    private final TlsContext context;
+    private final long started = System.currentTimeMillis();
+    // encrypted bytes read from the client, in fill mode
+    private ByteBuffer netIn;
+    // encrypted bytes for the client, in fill mode
+    private ByteBuffer netOut;
+    // decrypted bytes the request buffer had no room for, in fill mode
+    private ByteBuffer appIn;
+    private boolean handshakeDone;
+    private boolean inputClosed;
+
+    TlsSession(SSLEngine engine, SocketChannel channel, TlsContext context) {
+        this.engine = engine;
+        this.channel = channel;
+        this.context = context;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Reads what the socket has, decrypts it and moves as much as fits into app.
+     * @param app the request buffer, in fill mode
+     * @return the bytes added to app, -1 when the client closed the connection and nothing is left
+     * @throws IOException also when the handshake fails
+     */
+    public int read(ByteBuffer app) throws IOException {
+        if (channel.read(netIn) < 0) {
+            inputClosed = true;
+        }
+        process();
+        int moved = drain(app);
+        if (moved == 0 && appIn.position() == 0 && (inputClosed || engine.isInboundDone())) {
+            return -1;
+        }
+        return moved;
+    }
+
+    /**
+     * Moves decrypted bytes that are still waiting into app.
+     * @param app the request buffer, in fill mode
+     * @return the bytes moved
+     */
+    public int drain(ByteBuffer app) {
+        if (appIn.position() == 0 || !app.hasRemaining()) {
+            return 0;
+        }
+        appIn.flip();
+        int moved = Math.min(appIn.remaining(), app.remaining());
+        ByteBuffer slice = appIn.slice();
+        slice.limit(moved);
+        app.put(slice);
+        appIn.position(appIn.position() + moved);
+        appIn.compact();
+        return moved;
+    }
+
+    /**
+     * @return true when decrypted bytes are waiting for room in the request buffer
+     */
+    public boolean buffered() {
+        return appIn.position() > 0;
+    }
+
+    /**
+     * Unwraps what is in netIn and takes the handshake as far as it can go without waiting.
+     */
+    private void process() throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!wrap(new ByteBuffer[]{EMPTY}) || !flush()) {
+                    return; // the rest of the handshake goes out once the socket takes it
+                }
+                continue;
+            }
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            finished(result);
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW -> {
+                    if (netIn.position() == netIn.capacity()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        continue;
+                    }
+                    return; // the rest of the record has not arrived yet
+                }
+                case BUFFER_OVERFLOW -> {
+                    if (appIn.position() > 0) {
+                        return; // the request buffer has to take some first
+                    }
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                }
+                case CLOSED -> {
+                    inputClosed = true;
+                    return;
+                }
+                case OK -> {
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK
+                            && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypts as much of buffers as fits in netOut and writes it to the socket.
+     * @param buffers the plain response, its position moves on as it is encrypted
+     * @return true when everything is encrypted and written, false when the socket buffer is full
+     */
+    public boolean write(ByteBuffer[] buffers) throws IOException {
+        if (!flush()) {
+            return false;
+        }
+        if (handshaking()) {
+            process();
+            if (handshaking()) {
+                return false;
+            }
+        }
+        while (HttpResponse.hasRemaining(buffers)) {
+            if (!wrap(buffers) || !flush()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true once the first handshake is done
+     */
+    public boolean established() {
+        return handshakeDone;
+    }
+
+    private boolean handshaking() {
+        return !handshakeDone && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * Writes what is waiting and goes on with the handshake when it was waiting for the socket.
+     * @return true when nothing is left to write
+     */
+    public boolean flushPending() throws IOException {
+        if (!flush()) {
+            return false;
+        }
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            process();
+        }
+        return netOut.position() == 0;
+    }
+
+    /**
+     * @return false when netOut is full and has to be written first
+     */
+    private boolean wrap(ByteBuffer[] buffers) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(buffers, netOut);
+            finished(result);
+            switch (result.getStatus()) {
+                case OK -> {
+                    return true;
+                }
+                case BUFFER_OVERFLOW -> {
+                    if (netOut.position() > 0) {
+                        return false;
+                    }
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                }
+                case CLOSED -> throw new SSLException("Connection closed while writing");
+                default -> throw new SSLException("Unexpected result of wrap: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Writes the encrypted bytes that are waiting.
+     * @return true when nothing is left to write
+     */
+    public boolean flush() throws IOException {
+        if (netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    /**
+     * @return true when encrypted bytes, such as the rest of the handshake, wait for the socket
+     */
+    public boolean pendingOutput() {
+        return netOut.position() > 0 || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    /**
+     * @return the protocol agreed on with ALPN, "" or null when there was none
+     */
+    public String applicationProtocol() {
+        return engine.getApplicationProtocol();
+    }
+
+    /**
+     * Sends close_notify when the socket takes it right away. The channel is closed by the caller.
+     */
+    public void close() {
+        engine.closeOutbound();
+        try {
+            if (handshakeDone && wrap(new ByteBuffer[]{EMPTY})) {
+                flush();
+            }
+        } catch (IOException e) {
+            // the connection is closed anyway
+        }
+    }
+
+    private void finished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !handshakeDone) {
+            handshakeDone = true;
+            // a resumed session was made before this connection
+            context.handshakeFinished(engine.getSession().getCreationTime() < started);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
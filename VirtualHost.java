@@ -0,0 +1,142 @@
+package lab11;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One site served by the server: its root directory and everything that is kept per root,
+ * the file cache, the compressed variants, the error pages, the directory listings and the
+ * optional path index. Sites share nothing but the Cache-Control policy, so a change in one root
+ * never throws away what is cached for another.
+ * The templates are looked up in the site's own text directory (error404.html, error500.html and
+ * custom.html); a site without them uses the templates of the default site.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class VirtualHost {
+
+    final String name;
+    final String rootDirectory;
+    final File error404File;
+    final File error500File;
+    final File customFile;
+    final FileCache fileCache;
+    final ContentEncoding contentEncoding;
+    final ErrorPages errorPages;
+    final DirectoryListings directoryListings;
+    final PathIndex pathIndex;
+    private volatile boolean watched;
+    private DirectoryWatcher watcher;
+
+    /**
+     * @param name the first host name of the site, used in messages
+     * @param rootDirectory
+     * @param cachePolicy
+     * @param share the part of the cache budgets this site gets, between 0 and 1
+     * @param fallback where templates the site does not have come from, null for the default site
+     */
+    public VirtualHost(String name, String rootDirectory, CachePolicy cachePolicy, double share, VirtualHost fallback) {
+        this.name = name;
+        this.rootDirectory = rootDirectory;
+        this.error404File = template("error404.html", fallback != null ? fallback.error404File : null);
+        this.error500File = template("error500.html", fallback != null ? fallback.error500File : null);
+        this.customFile = template("custom.html", fallback != null ? fallback.customFile : null);
+        this.fileCache = FileCache.fromSystemProperties(cachePolicy, share);
+        this.contentEncoding = ContentEncoding.fromSystemProperties(cachePolicy, share);
+        this.errorPages = new ErrorPages(error404File, error500File);
+        this.directoryListings = new DirectoryListings(customFile);
+        this.pathIndex = Boolean.getBoolean("server.pathIndex") ? new PathIndex(rootDirectory) : null;
+    }
+
+    private File template(String fileName, File fallback) {
+        File own = new File(rootDirectory + "/text/" + fileName);
+        return own.isFile() || fallback == null ? own : fallback;
+    }
+
+    /**
+     * Starts a DirectoryWatcher on the root and lets the caches listen to it, once.
+     */
+    public synchronized void watch() {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            watcher = DirectoryWatcher.start(rootDirectory);
+            fileCache.watch(watcher);
+            contentEncoding.watch(watcher);
+            watcher.addListener(errorPages);
+            watcher.addListener(directoryListings);
+            if (pathIndex != null) {
+                // listening before the walk, so nothing that changes during it is missed
+                watcher.addListener(pathIndex);
+            }
+            watched = true;
+        } catch (IOException e) {
+            System.out.println("Cannot watch " + rootDirectory
+                    + ", cached files are checked on every hit and pages are not reloaded: " + e);
+            if (pathIndex != null) {
+                System.out.println("The path index of " + name + " cannot be kept up to date and is not used.");
+            }
+        }
+    }
+
+    /**
+     * Walks the root for the path index, when server.pathIndex is on and the root is watched.
+     */
+    public void index() {
+        if (pathIndex != null && !pathIndex.built() && watched) {
+            long start = System.nanoTime();
+            int paths = pathIndex.build();
+            System.out.println("Indexed " + paths + " paths of " + name + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+
+    /**
+     * Stops watching the root, for a site that a reload took away.
+     */
+    public synchronized void close() {
+        try {
+            if (watcher != null) {
+                watcher.close();
+            }
+        } catch (IOException e) {
+            // the watcher thread ends either way
+        }
+    }
+
+    /**
+     * Renders the error pages again and drops the directory listings, so edited templates are
+     * used even when the root cannot be watched.
+     */
+    public void reloadTemplates() {
+        errorPages.reload();
+        directoryListings.changed(null);
+    }
+
+    /**
+     * @param max
+     * @return the paths that were requested most recently, from both caches, every path once
+     */
+    public List<String> recentPaths(int max) {
+        Set<String> paths = new LinkedHashSet<>(contentEncoding.recentPaths(max));
+        for (String path : fileCache.recentPaths(max)) {
+            if (paths.size() >= max) {
+                break;
+            }
+            paths.add(path);
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * @return the path index when it can be used, null otherwise
+     */
+    PathIndex pathIndex() {
+        return pathIndex != null && pathIndex.built() ? pathIndex : null;
+    }
+}
@@ -0,0 +1,198 @@
+package lab11;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Picks the site for a request from its Host header, so one process can serve several sites.
+ * The sites come from server.hosts, separated by ';', each a list of host names and a root
+ * directory joined by '=', for example:
+ * server.hosts=example.com,www.example.com=/srv/example;blog.test=/srv/blog
+ * The built-in root directory is always there as the default site, for requests without a Host
+ * header and for names that are not listed. The cache budgets are split evenly over the sites,
+ * so a busy site cannot push the files of a quiet one out of memory.
+ * When server.config changes (see Lifecycle) the sites are built again. A site with the same name
+ * and root is kept with its warm caches, unless a setting that shapes the caches changed.
+ *
+ * @Author Thorben Dhaenens
+ */
+public class VirtualHosts {
+
+    // what a VirtualHost is built from besides its root, a site is only kept when these stay the same
+    private final static String[] SITE_SETTINGS = {"server.cacheControl", "server.cacheBytes",
+            "server.cacheMaxFile", "server.mmap", "server.mmapBytes", "server.compressBytes",
+            "server.compressMinSize", "server.compressMaxFile", "server.gzipLevel", "server.pathIndex"};
+
+    private final VirtualHost defaultHost;
+    private final List<VirtualHost> hosts;
+    private final Map<String, VirtualHost> byName;
+    private final String settings;
+
+    private VirtualHosts(VirtualHost defaultHost, List<VirtualHost> hosts, Map<String, VirtualHost> byName,
+                         String settings) {
+        this.defaultHost = defaultHost;
+        this.hosts = List.copyOf(hosts);
+        this.byName = Map.copyOf(byName);
+        this.settings = settings;
+    }
+
+    /**
+     * @param defaultRoot root directory of the default site
+     * @param cachePolicy
+     * @return
+     */
+    public static VirtualHosts fromSystemProperties(String defaultRoot, CachePolicy cachePolicy) {
+        return fromSystemProperties(defaultRoot, cachePolicy, null);
+    }
+
+    /**
+     * @param defaultRoot root directory of the default site
+     * @param cachePolicy
+     * @param previous the sites before a reload, whose unchanged sites are kept; null at startup
+     * @return
+     */
+    public static VirtualHosts fromSystemProperties(String defaultRoot, CachePolicy cachePolicy, VirtualHosts previous) {
+        String config = System.getProperty("server.hosts", "");
+        List<String[]> sites = new ArrayList<>();
+        for (String site : config.split(";")) {
+            int equals = site.lastIndexOf('=');
+            if (equals <= 0 || equals == site.length() - 1) {
+                if (!site.isBlank()) {
+                    System.out.println("Ignoring the host " + site + ", it should look like name,alias=root");
+                }
+                continue;
+            }
+            sites.add(new String[]{site.substring(0, equals), site.substring(equals + 1).trim()});
+        }
+        double share = 1.0 / (sites.size() + 1);
+        StringBuilder settings = new StringBuilder().append(sites.size());
+        for (String setting : SITE_SETTINGS) {
+            settings.append(';').append(System.getProperty(setting));
+        }
+        // the share of every site depends on their number, so that is part of the settings too
+        boolean keep = previous != null && previous.settings.contentEquals(settings);
+        VirtualHost defaultHost = keep && previous.defaultHost.rootDirectory.equals(defaultRoot)
+                ? previous.defaultHost : new VirtualHost("default", defaultRoot, cachePolicy, share, null);
+        List<VirtualHost> hosts = new ArrayList<>();
+        hosts.add(defaultHost);
+        Map<String, VirtualHost> byName = new HashMap<>();
+        for (String[] site : sites) {
+            String[] names = site[0].split(",");
+            VirtualHost host = keep && defaultHost == previous.defaultHost ? previous.find(normalize(names[0]), site[1]) : null;
+            if (host == null) {
+                host = new VirtualHost(normalize(names[0]), site[1], cachePolicy, share, defaultHost);
+            }
+            hosts.add(host);
+            for (String name : names) {
+                byName.put(normalize(name), host);
+            }
+        }
+        return new VirtualHosts(defaultHost, hosts, byName, settings.toString());
+    }
+
+    private VirtualHost find(String name, String rootDirectory) {
+        for (VirtualHost host : hosts) {
+            if (host != defaultHost && host.name.equals(name) && host.rootDirectory.equals(rootDirectory)) {
+                return host;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops watching the sites that the sites after a reload no longer have.
+     * @param successor
+     */
+    public void close(VirtualHosts successor) {
+        for (VirtualHost host : hosts) {
+            if (!successor.hosts.contains(host)) {
+                host.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the templates of every site again.
+     */
+    public void reloadTemplates() {
+        for (VirtualHost host : hosts) {
+            host.reloadTemplates();
+        }
+    }
+
+    /**
+     * @return every site, the default site first
+     */
+    public List<VirtualHost> sites() {
+        return hosts;
+    }
+
+    /**
+     * Starts watching the root of every site.
+     */
+    public void watch() {
+        for (VirtualHost host : hosts) {
+            host.watch();
+        }
+    }
+
+    /**
+     * Builds the path index of every site, when server.pathIndex is on.
+     */
+    public void index() {
+        for (VirtualHost host : hosts) {
+            host.index();
+        }
+    }
+
+    /**
+     * @param hostHeader the Host header, may be null
+     * @return the site with that name, the default site when there is none
+     */
+    public VirtualHost get(String hostHeader) {
+        if (hostHeader == null || byName.isEmpty()) {
+            return defaultHost;
+        }
+        VirtualHost host = byName.get(hostHeader);
+        if (host == null) {
+            host = byName.get(normalize(hostHeader));
+        }
+        return host != null ? host : defaultHost;
+    }
+
+    public VirtualHost defaultHost() {
+        return defaultHost;
+    }
+
+    /**
+     * @param value for example the bytes in the file cache of one site
+     * @return the value summed over all sites
+     */
+    public long sum(ToLongFunction<VirtualHost> value) {
+        long sum = 0;
+        for (VirtualHost host : hosts) {
+            sum += value.applyAsLong(host);
+        }
+        return sum;
+    }
+
+    /**
+     * Lower case, without the port and without a trailing dot.
+     */
+    private static String normalize(String name) {
+        name = name.trim().toLowerCase(Locale.ROOT);
+        int colon = name.lastIndexOf(':');
+        // a colon inside the brackets of an IPv6 address is not a port
+        if (colon >= 0 && name.indexOf(']', colon) < 0) {
+            name = name.substring(0, colon);
+        }
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,69 @@
+package lab11;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old request handling (Scanner.nextLine and the replace/split chain) with the
+ * HttpRequest parser. Run with -prof gc for the bytes allocated per request.
+ *
+ * @Author Thorben Dhaenens
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmarks {
+
+    private final static byte[] request = ("GET /text/test/book.txt HTTP/1.1\r\n" +
+            "Host: localhost:1194\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:91.0) Gecko/20100101 Firefox/91.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final HttpRequest parser = new HttpRequest();
+
+    /**
+     * What handleConnection did before HttpRequest.
+     */
+    @Benchmark
+    public int scanner() {
+        Scanner inScanner = new Scanner(new ByteArrayInputStream(request));
+        String clientInfo = inScanner.nextLine();
+        if (clientInfo.startsWith("GET") && clientInfo.contains("HTTP/1.1")) {
+            String pathToFile = clientInfo.replace("GET ", "").replace(" HTTP/1.1", "");
+            String[] splitLine = clientInfo.replace(" HTTP/1.1", "").replace("GET /", "").split("/");
+            String filename = splitLine[splitLine.length - 1];
+            return pathToFile.length() + filename.length();
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public int parser() throws HttpRequest.BadRequestException {
+        parser.reset(0);
+        parser.parse(request, request.length);
+        if (parser.method().equals("GET") && parser.keepAlive()) {
+            String pathToFile = parser.path();
+            return pathToFile.length() + pathToFile.lastIndexOf('/');
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,102 @@
+package lab11;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The code that runs on every request: getMimeType, parsing the request head, writing an error
+ * response and rendering the custom page. Every result is returned, so JMH keeps the work alive.
+ * Run with -prof gc to see the bytes allocated per operation as well.
+ *
+ * @Author Thorben Dhaenens
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestBenchmarks {
+
+    private final static String[] fileNames = {"index.html", "book.txt", "favicon.ico", "style.css",
+            "r_1762546_aYm1W.jpg", "app.js", "README", "archive.zip"};
+    private final static byte[] head = ("GET /text/test/book.txt HTTP/1.1\r\n" +
+            "Host: localhost:1194\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:91.0) Gecko/20100101 Firefox/91.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+    private final static String directory = "src/lab11/www/rootDirectory/text";
+    private final static File customFile = new File("src/lab11/www/rootDirectory/text/custom.html");
+
+    private final HttpRequest request = new HttpRequest();
+    private final OutputStream discard = OutputStream.nullOutputStream();
+    private DirectoryListings listings;
+    private Path listed;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // the server classes log through the access log, keep it quiet
+        System.setProperty("server.accessLog", System.getProperty("server.accessLog", "off"));
+        if (!customFile.exists()) {
+            throw new IllegalStateException("Run from the directory the server is started from");
+        }
+        listings = new DirectoryListings(customFile);
+        listed = Path.of(directory).toAbsolutePath().normalize().resolve("index.html");
+    }
+
+    @Benchmark
+    public String getMimeType() {
+        return ReadRequest.getMimeType(fileNames[next++ & 7]);
+    }
+
+    @Benchmark
+    public String parseHead() throws HttpRequest.BadRequestException {
+        request.reset(0);
+        request.parse(head, head.length);
+        return request.keepAlive() ? request.path() : null;
+    }
+
+    @Benchmark
+    public String parseRequestLine() throws HttpRequest.BadRequestException {
+        request.reset(0);
+        request.parse(head, head.length);
+        return request.method() + request.target() + request.version();
+    }
+
+    @Benchmark
+    public HttpResponse sendErrorResponse404() throws IOException {
+        HttpResponse response = ReadRequest.errorResponse(404);
+        response.writeTo(discard, false);
+        return response;
+    }
+
+    @Benchmark
+    public HttpResponse customPageCached() {
+        return ReadRequest.customPage(true, "/text");
+    }
+
+    @Benchmark
+    public HttpResponse customPageRendered() throws IOException {
+        // drops the page of the directory but keeps the compiled template
+        listings.changed(listed);
+        return listings.page(new File(directory), "/text", "200 OK");
+    }
+}